@@ -0,0 +1,106 @@
+package org.appspot.apprtc;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import de.tavendo.autobahn.WebSocket.WebSocketConnectionObserver;
+import de.tavendo.autobahn.WebSocketConnection;
+import de.tavendo.autobahn.WebSocketException;
+import de.tavendo.autobahn.WebSocketOptions;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * {@link WebSocketTransport} on the bundled autobahn library.
+ *
+ * <p>Autobahn binds a connection to the looper it is created on and calls back on that looper.
+ * Signaling runs on executors without a looper, so all autobahn connections are created on one
+ * shared looper thread of their own; connect() waits for that to be done.
+ */
+public class AutobahnWebSocketTransport implements WebSocketTransport {
+    private static Handler looperHandler;
+
+    private volatile WebSocketConnection ws;
+    // Do not remove this member variable. If this is removed, the observer gets garbage collected.
+    private WebSocketConnectionObserver observer;
+
+    @Override
+    public void connect(final URI uri, final String[] subProtocols, final Listener listener) throws IOException {
+        observer = new WebSocketConnectionObserver() {
+            @Override
+            public void onOpen() {
+                listener.onOpen();
+            }
+
+            @Override
+            public void onClose(WebSocketCloseNotification code, String reason) {
+                listener.onClose(code + ": " + reason);
+            }
+
+            @Override
+            public void onTextMessage(String payload) {
+                listener.onTextMessage(payload);
+            }
+
+            @Override
+            public void onRawTextMessage(byte[] payload) {}
+
+            @Override
+            public void onBinaryMessage(byte[] payload) {}
+        };
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        final WebSocketException[] error = new WebSocketException[1];
+        looperHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    WebSocketConnection connection = new WebSocketConnection();
+                    ws = connection;
+                    connection.connect(uri, subProtocols, observer, new WebSocketOptions());
+                } catch (WebSocketException e) {
+                    error[0] = e;
+                } finally {
+                    connected.countDown();
+                }
+            }
+        });
+        try {
+            connected.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting");
+        }
+        if (error[0] != null) {
+            throw new IOException(error[0].getMessage(), error[0]);
+        }
+    }
+
+    @Override
+    public void sendText(String payload) {
+        WebSocketConnection connection = ws;
+        if (connection != null) {
+            connection.sendTextMessage(payload);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        WebSocketConnection connection = ws;
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    private static synchronized Handler looperHandler() {
+        if (looperHandler == null) {
+            HandlerThread thread = new HandlerThread("AutobahnWebSocket");
+            thread.start();
+            looperHandler = new Handler(thread.getLooper());
+        }
+        return looperHandler;
+    }
+}
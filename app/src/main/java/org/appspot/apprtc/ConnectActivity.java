@@ -412,6 +412,9 @@ public class ConnectActivity extends Activity {
         VideoRoomActivity.EXTRA_USE_LEGACY_AUDIO_DEVICE, R.string.pref_use_legacy_audio_device_default,
         useValuesFromIntent);
 
+    boolean multistream = sharedPrefGetBoolean(R.string.pref_multistream_key,
+        VideoRoomActivity.EXTRA_MULTISTREAM, R.string.pref_multistream_default, useValuesFromIntent);
+
     // Get datachannel options
     boolean dataChannelEnabled = sharedPrefGetBoolean(R.string.pref_enable_datachannel_key,
         VideoRoomActivity.EXTRA_DATA_CHANNEL_ENABLED, R.string.pref_enable_datachannel_default,
@@ -485,6 +488,7 @@ public class ConnectActivity extends Activity {
       intent.putExtra(VideoRoomActivity.EXTRA_CMDLINE, commandLineRun);
       intent.putExtra(VideoRoomActivity.EXTRA_RUNTIME, runTimeMs);
       intent.putExtra(VideoRoomActivity.EXTRA_USE_LEGACY_AUDIO_DEVICE, useLegacyAudioDevice);
+      intent.putExtra(VideoRoomActivity.EXTRA_MULTISTREAM, multistream);
 
       intent.putExtra(VideoRoomActivity.EXTRA_DATA_CHANNEL_ENABLED, dataChannelEnabled);
 
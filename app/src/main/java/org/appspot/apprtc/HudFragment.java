@@ -19,8 +19,12 @@ import android.view.ViewGroup;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
+import org.appspot.apprtc.janus.JanusSignalingMetrics;
+import org.appspot.apprtc.util.HttpClient;
+import org.appspot.apprtc.util.LongHashMap;
 import org.webrtc.StatsReport;
 
+import java.math.BigInteger;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -33,11 +37,14 @@ public class HudFragment extends Fragment {
   private TextView hudViewConnection;
   private TextView hudViewVideoSend;
   private TextView hudViewVideoRecv;
+  private TextView hudViewSignaling;
   private ImageButton toggleDebugButton;
   private boolean videoCallEnabled;
   private boolean displayHud;
   private volatile boolean isRunning;
   private CpuMonitor cpuMonitor;
+  // Latest stats of each handle, UI thread only.
+  private final LongHashMap<RtcStatsCollector.Snapshot> connectionStats = new LongHashMap<>();
 
   @Override
   public View onCreateView(
@@ -50,6 +57,7 @@ public class HudFragment extends Fragment {
     hudViewConnection = controlView.findViewById(R.id.hud_stat_connection);
     hudViewVideoSend = controlView.findViewById(R.id.hud_stat_video_send);
     hudViewVideoRecv = controlView.findViewById(R.id.hud_stat_video_recv);
+    hudViewSignaling = controlView.findViewById(R.id.hud_stat_signaling);
     toggleDebugButton = controlView.findViewById(R.id.button_toggle_debug);
 
     toggleDebugButton.setOnClickListener(new View.OnClickListener() {
@@ -97,10 +105,12 @@ public class HudFragment extends Fragment {
     hudViewConnection.setVisibility(visibility);
     hudViewVideoSend.setVisibility(visibility);
     hudViewVideoRecv.setVisibility(visibility);
+    hudViewSignaling.setVisibility(visibility);
     hudViewBwe.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
     hudViewConnection.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
     hudViewVideoSend.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
     hudViewVideoRecv.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
+    hudViewSignaling.setTextSize(TypedValue.COMPLEX_UNIT_PT, 5);
   }
 
   private Map<String, String> getReportMap(StatsReport report) {
@@ -111,6 +121,52 @@ public class HudFragment extends Fragment {
     return reportMap;
   }
 
+  // Janus transaction latencies per request type: reply and ack p50/p95/p99, queueing p95 in
+  // ms and reply handling p95 in ms. Followed by the HTTP request latencies, if any.
+  public void updateSignalingStatistics(JanusSignalingMetrics metrics) {
+    if (!isRunning || !displayHud) {
+      return;
+    }
+    hudViewSignaling.setText("signaling reply/ack p50/p95/p99\n" + metrics.format()
+        + HttpClient.getDefault().format());
+  }
+
+  // One line per PeerConnection, the sending one also in the encoder summary.
+  public void updateConnectionStatistics(RtcStatsCollector.Snapshot stats) {
+    connectionStats.put(stats.handleId, stats);
+    if (!isRunning || !displayHud) {
+      return;
+    }
+    StringBuilder encoderStat = new StringBuilder(128);
+    StringBuilder connectionStat = new StringBuilder();
+    for (RtcStatsCollector.Snapshot snapshot : connectionStats.values()) {
+      connectionStat.append(snapshot).append("\n");
+      if (videoCallEnabled && snapshot.isSending()) {
+        encoderStat.append("Fps:  ").append(Math.round(snapshot.sendFps)).append("\n")
+            .append("Available BR: ").append(snapshot.availableSendKbps).append("\n")
+            .append("Actual BR: ").append(snapshot.sendVideoKbps).append("\n");
+      }
+    }
+    hudViewConnection.setText(connectionStat.toString());
+    appendCpuStatistics(encoderStat);
+    encoderStatView.setText(encoderStat.toString());
+  }
+
+  public void removeConnectionStatistics(BigInteger handleId) {
+    connectionStats.remove(handleId.longValue());
+  }
+
+  private void appendCpuStatistics(StringBuilder encoderStat) {
+    if (cpuMonitor != null) {
+      encoderStat.append("CPU%: ")
+          .append(cpuMonitor.getCpuUsageCurrent())
+          .append("/")
+          .append(cpuMonitor.getCpuUsageAverage())
+          .append(". Freq: ")
+          .append(cpuMonitor.getFrequencyScaleAverage());
+    }
+  }
+
   public void updateEncoderStatistics(final StatsReport[] reports) {
     if (!isRunning || !displayHud) {
       return;
@@ -191,14 +247,7 @@ public class HudFragment extends Fragment {
       }
     }
 
-    if (cpuMonitor != null) {
-      encoderStat.append("CPU%: ")
-          .append(cpuMonitor.getCpuUsageCurrent())
-          .append("/")
-          .append(cpuMonitor.getCpuUsageAverage())
-          .append(". Freq: ")
-          .append(cpuMonitor.getFrequencyScaleAverage());
-    }
+    appendCpuStatistics(encoderStat);
     encoderStatView.setText(encoderStat.toString());
   }
 }
@@ -0,0 +1,990 @@
+package org.appspot.apprtc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * {@link WebSocketTransport} on non-blocking NIO, all connections share one selector thread.
+ *
+ * <p>Frames are decoded in place from a single reused read buffer, fragmented messages
+ * are assembled in a reused byte array, and text messages are handed to the listener
+ * right from the selector thread. Autobahn instead runs a reader and a writer thread per
+ * connection and posts every frame through a Handler before it reaches us. Text is sent
+ * from any thread: the frame is queued and written by the selector thread. Listeners must
+ * not block, every connection waits for them.
+ *
+ * <p>The selector thread starts with the first connection and ends with the last. Host
+ * names are resolved on a short-lived resolver thread, a slow DNS lookup does not hold
+ * up the other connections.
+ *
+ * <p>wss:// runs TLS through an {@link SSLEngine} of the default SSLContext, with the
+ * server certificate checked against the host name.
+ *
+ * <p>permessage-deflate (RFC 7692) is offered in the handshake and used when the server
+ * accepts it: text of {@link #COMPRESS_MIN_SIZE} bytes or more goes out compressed, with
+ * or without context takeover as configured. Raw and on-the-wire payload byte counts are
+ * kept both ways.
+ *
+ * <p>Plain Java, no Android classes, so the signaling stack can be run and benchmarked on
+ * a desktop JVM against a local server.
+ */
+public class NioWebSocketTransport implements WebSocketTransport {
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_HANDSHAKE_SIZE = 8 * 1024;
+
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xa;
+    private static final int CLOSE_NORMAL = 1000;
+    // Smaller messages, like keepalives and acks, gain nothing from compression.
+    public static final int COMPRESS_MIN_SIZE = 128;
+    // Appended to a compressed message before inflating, stripped after deflating.
+    private static final byte[] DEFLATE_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+    private static final int FLAG_RSV1 = 0x40;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final boolean offerDeflate;
+    private final boolean offerContextTakeover;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> sendQueue = new ConcurrentLinkedQueue<>();
+    private final SecureRandom random = new SecureRandom();
+    private volatile Loop loop;
+    private volatile boolean closing;
+    // Set by the resolver thread, null until the host name is resolved.
+    private volatile InetSocketAddress address;
+    // Queued on the loop, see Loop.wakeup().
+    private final AtomicBoolean wakeupQueued = new AtomicBoolean();
+    private Listener listener;
+    private String host;
+    private String[] subProtocols;
+    private byte[] request;
+    private String secKey;
+
+    // Negotiated in the handshake, before onOpen().
+    private volatile boolean deflate;
+    private volatile boolean clientContextTakeover;
+    private boolean serverContextTakeover;
+
+    // Compression of outgoing messages, guarded by sendLock so that compressed messages
+    // are queued in the order the shared deflate context saw them.
+    private final Object sendLock = new Object();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true /* nowrap */);
+    private byte[] deflated = new byte[4 * 1024];
+    private volatile long rawBytesSent;
+    private volatile long wireBytesSent;
+
+    // Selector thread only.
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private ByteBuffer writing;
+    private boolean open;
+    private boolean finished;
+    // Set once the close handshake is over and the connection can go.
+    private boolean done;
+    private String closeReason = "Connection lost";
+    private boolean closedByServer;
+    // Size the read buffer must grow to for the frame at its head, 0 if it fits.
+    private int neededCapacity;
+    // Message being assembled from fragments, opcode -1 if none.
+    private byte[] message = new byte[4 * 1024];
+    private int messageLength;
+    private int messageOpcode = -1;
+    private boolean messageCompressed;
+    private final Inflater inflater = new Inflater(true /* nowrap */);
+    private byte[] inflated = new byte[4 * 1024];
+    private volatile long rawBytesReceived;
+    private volatile long wireBytesReceived;
+
+    // TLS, null engine for ws://. Records read but not unwrapped yet are in netIn, records
+    // wrapped but not written yet in netOut (flipped for reading).
+    private SSLEngine engine;
+    // The engine checks the certificate host name, otherwise it is checked after the handshake.
+    private boolean endpointIdentification;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private boolean tlsReady;
+    // Null for the default SSLContext.
+    private SSLContext sslContext;
+
+    public NioWebSocketTransport() {
+        this(true /* deflate */, true /* contextTakeover */);
+    }
+
+    /**
+     * @param deflate offer permessage-deflate.
+     * @param contextTakeover keep the compression context across messages, which compresses
+     *     better at the cost of a 32 KB window per direction kept for the connection lifetime.
+     */
+    public NioWebSocketTransport(boolean deflate, boolean contextTakeover) {
+        this.offerDeflate = deflate;
+        this.offerContextTakeover = contextTakeover;
+    }
+
+    // Runs wss:// on |sslContext| instead of the default one, e.g. to trust a test certificate.
+    // Must be called before connect().
+    void setSslContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    @Override
+    public boolean isDeflateNegotiated() {
+        return deflate;
+    }
+
+    @Override
+    public long getRawBytesSent() {
+        return rawBytesSent;
+    }
+
+    @Override
+    public long getWireBytesSent() {
+        return wireBytesSent;
+    }
+
+    @Override
+    public long getRawBytesReceived() {
+        return rawBytesReceived;
+    }
+
+    @Override
+    public long getWireBytesReceived() {
+        return wireBytesReceived;
+    }
+
+    @Override
+    public void connect(URI uri, String[] subProtocols, Listener listener) throws IOException {
+        boolean secure = "wss".equalsIgnoreCase(uri.getScheme());
+        if (!secure && !"ws".equalsIgnoreCase(uri.getScheme())) {
+            throw new IOException("Unsupported scheme: " + uri.getScheme());
+        }
+        if (loop != null) {
+            throw new IllegalStateException("Transport already connected");
+        }
+        this.listener = listener;
+        this.subProtocols = subProtocols;
+        host = uri.getHost();
+        int port = uri.getPort() != -1 ? uri.getPort() : secure ? 443 : 80;
+        request = handshakeRequest(uri, subProtocols);
+        if (secure) {
+            engine = createEngine(host, port);
+        }
+        Loop joined = Loop.join(this);
+        loop = joined;
+        joined.resolve(this, port);
+    }
+
+    @Override
+    public void sendText(String payload) {
+        Loop loop = this.loop;
+        if (loop == null || closing) return;
+        byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+        synchronized (sendLock) {
+            // The deflater is gone once the connection is.
+            if (closing) return;
+            if (deflate && data.length >= COMPRESS_MIN_SIZE) {
+                int length = compress(data);
+                sendQueue.add(frame(OPCODE_TEXT, FLAG_RSV1, deflated, length));
+                wireBytesSent += length;
+            } else {
+                sendQueue.add(frame(OPCODE_TEXT, 0, data, data.length));
+                wireBytesSent += data.length;
+            }
+            rawBytesSent += data.length;
+        }
+        loop.wakeup(this);
+    }
+
+    @Override
+    public void disconnect() {
+        Loop loop = this.loop;
+        if (loop == null || closing) return;
+        closing = true;
+        sendQueue.add(control(OPCODE_CLOSE, closePayload(CLOSE_NORMAL)));
+        loop.wakeup(this);
+    }
+
+    // ----------------------------------------------------------------------------
+    // Selector thread
+    // ----------------------------------------------------------------------------
+    // Returns true if the connection ended in this call.
+    private boolean process(Selector selector, int readyOps) {
+        if (finished) return false;
+        try {
+            if (!advance(selector, readyOps)) return false;
+        } catch (IOException | RuntimeException e) {
+            closeReason = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        finish();
+        return true;
+    }
+
+    // Returns true once the connection is over.
+    private boolean advance(Selector selector, int readyOps) throws IOException {
+        if (closing && !open) {
+            closeReason = "Disconnected";
+            return true;
+        }
+        if (channel == null) {
+            InetSocketAddress resolved = address;
+            if (resolved == null) return false;
+            if (resolved.isUnresolved()) throw new UnknownHostException("Unknown host: " + host);
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            if (channel.connect(resolved)) onConnected();
+        }
+
+        if ((readyOps & SelectionKey.OP_CONNECT) != 0 && channel.finishConnect()) {
+            onConnected();
+        }
+        if ((readyOps & SelectionKey.OP_READ) != 0) {
+            read();
+        }
+        if (channel.isConnected()) {
+            flush();
+        }
+        if (done) return true;
+        if (closing && open && writing == null && sendQueue.isEmpty()
+                && (engine == null || !netOut.hasRemaining())) {
+            // Our close frame is out. Not waiting for the server's reply, Janus
+            // drops the connection right after anyway.
+            if (!closedByServer) closeReason = "Disconnected";
+            return true;
+        }
+        updateInterest();
+        return false;
+    }
+
+    private void onConnected() throws IOException {
+        if (engine == null) {
+            writing = ByteBuffer.wrap(request);
+            return;
+        }
+        int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packetSize);
+        netOut = ByteBuffer.allocate(packetSize);
+        netOut.flip();
+        engine.beginHandshake();
+    }
+
+    private void finish() {
+        finished = true;
+        if (engine != null && tlsReady) {
+            // Best effort close_notify, the socket goes either way.
+            try {
+                engine.closeOutbound();
+                netOut.clear();
+                engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                channel.write(netOut);
+            } catch (IOException e) {
+                // Nothing left to do.
+            }
+        }
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            // Nothing left to do.
+        }
+        synchronized (sendLock) {
+            closing = true;
+            deflater.end();
+        }
+        inflater.end();
+        listener.onClose(closeReason);
+    }
+
+    private void updateInterest() {
+        int ops;
+        if (!channel.isConnected()) {
+            ops = SelectionKey.OP_CONNECT;
+        } else {
+            ops = SelectionKey.OP_READ;
+            if (writing != null || (open && !sendQueue.isEmpty())
+                    || (engine != null && netOut.hasRemaining())) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+        if (key.interestOps() != ops) key.interestOps(ops);
+    }
+
+    private void flush() throws IOException {
+        while (true) {
+            if (engine != null) {
+                if (netOut.hasRemaining()) {
+                    channel.write(netOut);
+                    if (netOut.hasRemaining()) return;
+                }
+                if (!tlsReady || engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    tls(false /* reading */);
+                    if (netOut.hasRemaining()) continue;
+                    if (!tlsReady) return;
+                }
+            }
+            if (writing == null) {
+                // Frames wait for the handshake to complete.
+                if (!open) return;
+                writing = sendQueue.poll();
+                if (writing == null) return;
+            }
+            if (engine == null) {
+                channel.write(writing);
+                if (writing.hasRemaining()) return;
+            } else {
+                wrap(writing);
+                if (writing.hasRemaining()) continue;
+            }
+            writing = null;
+        }
+    }
+
+    private void read() throws IOException {
+        if (channel.read(engine == null ? readBuffer : netIn) < 0) {
+            throw new EOFException(closing ? "Disconnected" : "Connection lost");
+        }
+        if (engine != null) {
+            tls(true /* reading */);
+        }
+        readBuffer.flip();
+        if (!open) {
+            handshakeResponse();
+        }
+        if (open) {
+            decodeFrames();
+        }
+        readBuffer.compact();
+
+        if (neededCapacity > readBuffer.capacity()) {
+            readBuffer = grow(readBuffer, neededCapacity);
+        }
+    }
+
+    // |buffer| is being filled, the copy keeps its content and position.
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+
+    // ----------------------------------------------------------------------------
+    // TLS
+    // ----------------------------------------------------------------------------
+    private SSLEngine createEngine(String host, int port) throws IOException {
+        SSLEngine engine;
+        try {
+            SSLContext context = sslContext != null ? sslContext : SSLContext.getDefault();
+            engine = context.createSSLEngine(host, port);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS not available: " + e.getMessage());
+        }
+        engine.setUseClientMode(true);
+        try {
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+            endpointIdentification = true;
+        } catch (NoSuchMethodError e) {
+            // Android before API 24, see checkHostname().
+        }
+        return engine;
+    }
+
+    // Drives the handshake and, when |reading|, unwraps the records read into readBuffer.
+    private void tls(boolean reading) throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    // Certificate checks mostly, short enough to run on the selector thread.
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    break;
+                case NEED_WRAP:
+                    // One record at a time, the next once this one is written.
+                    if (netOut.hasRemaining()) return;
+                    wrap(EMPTY);
+                    break;
+                case NEED_UNWRAP:
+                    if (!unwrap()) return;
+                    break;
+                default:
+                    if (!tlsReady) {
+                        checkHostname();
+                        tlsReady = true;
+                        writing = ByteBuffer.wrap(request);
+                    }
+                    if (!reading || !unwrap()) return;
+            }
+        }
+    }
+
+    private void checkHostname() throws SSLPeerUnverifiedException {
+        if (!endpointIdentification
+                && !HttpsURLConnection.getDefaultHostnameVerifier().verify(host, engine.getSession())) {
+            throw new SSLPeerUnverifiedException("Certificate does not match " + host);
+        }
+    }
+
+    // Wraps |data| into the empty netOut.
+    private void wrap(ByteBuffer data) throws IOException {
+        while (true) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(data, netOut);
+            } finally {
+                netOut.flip();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    // The session asks for larger records than it started with.
+                    netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                    netOut.flip();
+                    continue;
+                case CLOSED:
+                    throw new EOFException(closing ? "Disconnected" : "Connection lost");
+                default:
+                    return;
+            }
+        }
+    }
+
+    // Unwraps one record of netIn into readBuffer. False if there is no complete record.
+    private boolean unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, readBuffer);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    readBuffer = grow(readBuffer,
+                            readBuffer.capacity() + engine.getSession().getApplicationBufferSize());
+                    continue;
+                case BUFFER_UNDERFLOW:
+                    int packetSize = engine.getSession().getPacketBufferSize();
+                    if (netIn.capacity() < packetSize) netIn = grow(netIn, packetSize);
+                    return false;
+                case CLOSED:
+                    throw new EOFException(closing ? "Disconnected" : "Connection lost");
+                default:
+                    return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+    // Framing
+    // ----------------------------------------------------------------------------
+    private void decodeFrames() throws IOException {
+        ByteBuffer buffer = readBuffer;
+        neededCapacity = 0;
+        while (!done && buffer.remaining() >= 2) {
+            int start = buffer.position();
+            int b0 = buffer.get(start) & 0xff;
+            int b1 = buffer.get(start + 1) & 0xff;
+            if ((b1 & 0x80) != 0) {
+                throw new ProtocolException("Masked frame from server");
+            }
+            int opcode = b0 & 0x0f;
+            boolean compressed = (b0 & FLAG_RSV1) != 0;
+            if ((b0 & 0x30) != 0 || (compressed && (!deflate || opcode == OPCODE_CONTINUATION || opcode >= OPCODE_CLOSE))) {
+                throw new ProtocolException("Unexpected reserved bits");
+            }
+
+            int headerLength = 2;
+            long length = b1 & 0x7f;
+            if (length == 126) {
+                headerLength = 4;
+                if (buffer.remaining() < headerLength) return;
+                length = buffer.getShort(start + 2) & 0xffff;
+            } else if (length == 127) {
+                headerLength = 10;
+                if (buffer.remaining() < headerLength) return;
+                length = buffer.getLong(start + 2);
+            }
+            if (length < 0 || length > MAX_MESSAGE_SIZE) {
+                throw new ProtocolException("Frame too large: " + length);
+            }
+
+            int frameLength = headerLength + (int) length;
+            if (buffer.remaining() < frameLength) {
+                if (frameLength > buffer.capacity()) neededCapacity = frameLength;
+                return;
+            }
+            buffer.position(start + frameLength);
+            onFrame((b0 & 0x80) != 0, opcode, compressed, buffer.array(),
+                    buffer.arrayOffset() + start + headerLength, (int) length);
+        }
+    }
+
+    private void onFrame(boolean fin, int opcode, boolean compressed, byte[] data, int offset, int length)
+            throws IOException {
+        switch (opcode) {
+            case OPCODE_CLOSE:
+                int code = length >= 2 ? ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff) : CLOSE_NORMAL;
+                closeReason = "Closed by server: " + code;
+                if (closing) {
+                    // Reply to our own close.
+                    done = true;
+                } else {
+                    closing = true;
+                    closedByServer = true;
+                    sendQueue.add(control(OPCODE_CLOSE, closePayload(code)));
+                }
+                return;
+            case OPCODE_PING:
+                byte[] payload = new byte[length];
+                System.arraycopy(data, offset, payload, 0, length);
+                sendQueue.add(control(OPCODE_PONG, payload));
+                return;
+            case OPCODE_PONG:
+                return;
+            case OPCODE_CONTINUATION:
+                if (messageOpcode < 0) throw new ProtocolException("Unexpected continuation frame");
+                wireBytesReceived += length;
+                append(data, offset, length);
+                if (fin) {
+                    onAssembledMessage();
+                }
+                return;
+            default:
+                if (messageOpcode >= 0) throw new ProtocolException("Interleaved message");
+                wireBytesReceived += length;
+                if (fin && !compressed) {
+                    // Unfragmented, straight from the read buffer.
+                    onMessage(opcode, data, offset, length);
+                    return;
+                }
+                messageOpcode = opcode;
+                messageCompressed = compressed;
+                append(data, offset, length);
+                if (fin) {
+                    onAssembledMessage();
+                }
+        }
+    }
+
+    private void onAssembledMessage() throws IOException {
+        if (messageCompressed) {
+            append(DEFLATE_TAIL, 0, DEFLATE_TAIL.length);
+            int length = inflate(message, messageLength);
+            onMessage(messageOpcode, inflated, 0, length);
+        } else {
+            onMessage(messageOpcode, message, 0, messageLength);
+        }
+        messageOpcode = -1;
+        messageLength = 0;
+        messageCompressed = false;
+    }
+
+    private void onMessage(int opcode, byte[] data, int offset, int length) {
+        rawBytesReceived += length;
+        // Janus only speaks text.
+        if (opcode == OPCODE_TEXT && !closing) {
+            listener.onTextMessage(new String(data, offset, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    private void append(byte[] data, int offset, int length) throws ProtocolException {
+        int total = messageLength + length;
+        if (total > MAX_MESSAGE_SIZE) {
+            throw new ProtocolException("Message too large: " + total);
+        }
+        if (total > message.length) {
+            byte[] larger = new byte[Math.max(total, message.length * 2)];
+            System.arraycopy(message, 0, larger, 0, messageLength);
+            message = larger;
+        }
+        System.arraycopy(data, offset, message, messageLength, length);
+        messageLength = total;
+    }
+
+    // ----------------------------------------------------------------------------
+    // permessage-deflate
+    // ----------------------------------------------------------------------------
+    // Compresses |data| into |deflated| and returns the compressed length, RFC 7692 7.2.1.
+    private int compress(byte[] data) {
+        if (!clientContextTakeover) deflater.reset();
+        deflater.setInput(data);
+        int length = 0;
+        while (true) {
+            if (length == deflated.length) deflated = Arrays.copyOf(deflated, deflated.length * 2);
+            length += deflater.deflate(deflated, length, deflated.length - length, Deflater.SYNC_FLUSH);
+            // A sync flush is complete once it leaves output space unused.
+            if (length < deflated.length) break;
+        }
+        // Strip the 00 00 ff ff the sync flush ends with.
+        return length - DEFLATE_TAIL.length;
+    }
+
+    // Inflates |length| bytes of |data|, tail included, into |inflated|. RFC 7692 7.2.2.
+    private int inflate(byte[] data, int length) throws ProtocolException {
+        inflater.setInput(data, 0, length);
+        int total = 0;
+        try {
+            while (true) {
+                if (total == inflated.length) {
+                    if (total >= MAX_MESSAGE_SIZE) throw new ProtocolException("Message too large");
+                    inflated = Arrays.copyOf(inflated, Math.min(inflated.length * 2, MAX_MESSAGE_SIZE));
+                }
+                int n = inflater.inflate(inflated, total, inflated.length - total);
+                total += n;
+                if (n == 0 && total < inflated.length) {
+                    if (inflater.needsDictionary()) throw new ProtocolException("Bad compressed message");
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Bad compressed message: " + e.getMessage());
+        }
+        if (!serverContextTakeover) inflater.reset();
+        return total;
+    }
+
+    // Parses the Sec-WebSocket-Extensions reply, e.g. "permessage-deflate; client_no_context_takeover".
+    private void negotiateDeflate(String extensions) throws ProtocolException {
+        if (extensions == null) return;
+        for (String extension : extensions.split(",")) {
+            String[] params = extension.split(";");
+            if (!params[0].trim().equalsIgnoreCase("permessage-deflate")) continue;
+            if (!offerDeflate) throw new ProtocolException("Extension not offered: permessage-deflate");
+
+            boolean clientTakeover = offerContextTakeover;
+            boolean serverTakeover = offerContextTakeover;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.equalsIgnoreCase("client_no_context_takeover")) {
+                    clientTakeover = false;
+                } else if (param.equalsIgnoreCase("server_no_context_takeover")) {
+                    serverTakeover = false;
+                } else if (!param.toLowerCase().startsWith("server_max_window_bits")) {
+                    // Deflater has a fixed 15 bit window, client_max_window_bits was not offered.
+                    throw new ProtocolException("Unsupported permessage-deflate parameter: " + param);
+                }
+            }
+            clientContextTakeover = clientTakeover;
+            serverContextTakeover = serverTakeover;
+            deflate = true;
+            return;
+        }
+    }
+
+    // Client frames are masked, see RFC 6455 section 5.3.
+    private ByteBuffer control(int opcode, byte[] payload) {
+        return frame(opcode, 0, payload, payload.length);
+    }
+
+    private ByteBuffer frame(int opcode, int flags, byte[] payload, int length) {
+        int headerLength = length < 126 ? 2 : length <= 0xffff ? 4 : 10;
+        byte[] frame = new byte[headerLength + 4 + length];
+        frame[0] = (byte) (0x80 | flags | opcode);
+        if (length < 126) {
+            frame[1] = (byte) (0x80 | length);
+        } else if (length <= 0xffff) {
+            frame[1] = (byte) (0x80 | 126);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = (byte) (0x80 | 127);
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((long) length >>> (56 - 8 * i));
+            }
+        }
+
+        int mask = random.nextInt();
+        for (int i = 0; i < 4; i++) {
+            frame[headerLength + i] = (byte) (mask >>> (24 - 8 * i));
+        }
+        int payloadStart = headerLength + 4;
+        for (int i = 0; i < length; i++) {
+            frame[payloadStart + i] = (byte) (payload[i] ^ frame[headerLength + (i & 3)]);
+        }
+        return ByteBuffer.wrap(frame);
+    }
+
+    private static byte[] closePayload(int code) {
+        return new byte[] {(byte) (code >>> 8), (byte) code};
+    }
+
+    // ----------------------------------------------------------------------------
+    // Opening handshake
+    // ----------------------------------------------------------------------------
+    private byte[] handshakeRequest(URI uri, String[] subProtocols) {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        secKey = base64(nonce);
+
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) path += "?" + uri.getRawQuery();
+
+        StringBuilder request = new StringBuilder(256)
+                .append("GET ").append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(uri.getHost());
+        if (uri.getPort() != -1) request.append(':').append(uri.getPort());
+        request.append("\r\n")
+                .append("Upgrade: websocket\r\n")
+                .append("Connection: Upgrade\r\n")
+                .append("Sec-WebSocket-Key: ").append(secKey).append("\r\n")
+                .append("Sec-WebSocket-Version: 13\r\n");
+        if (offerDeflate) {
+            request.append("Sec-WebSocket-Extensions: permessage-deflate");
+            if (!offerContextTakeover) {
+                request.append("; client_no_context_takeover; server_no_context_takeover");
+            }
+            request.append("\r\n");
+        }
+        if (subProtocols != null && subProtocols.length > 0) {
+            request.append("Sec-WebSocket-Protocol: ");
+            for (int i = 0; i < subProtocols.length; i++) {
+                if (i > 0) request.append(", ");
+                request.append(subProtocols[i]);
+            }
+            request.append("\r\n");
+        }
+        request.append("\r\n");
+        return request.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Consumes the HTTP response once it is complete and opens the connection.
+    private void handshakeResponse() throws IOException {
+        ByteBuffer buffer = readBuffer;
+        int end = -1;
+        for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n'
+                    && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                end = i + 4;
+                break;
+            }
+        }
+        if (end < 0) {
+            if (buffer.remaining() > MAX_HANDSHAKE_SIZE) throw new ProtocolException("Handshake too large");
+            return;
+        }
+
+        String response = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                end - buffer.position(), StandardCharsets.ISO_8859_1);
+        buffer.position(end);
+
+        String[] lines = response.split("\r\n");
+        if (!lines[0].startsWith("HTTP/1.1 101")) {
+            throw new ProtocolException("Handshake failed: " + lines[0]);
+        }
+        String accept = null;
+        String extensions = null;
+        String protocol = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) continue;
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Sec-WebSocket-Accept")) {
+                accept = value;
+            } else if (name.equalsIgnoreCase("Sec-WebSocket-Extensions")) {
+                extensions = extensions == null ? value : extensions + ", " + value;
+            } else if (name.equalsIgnoreCase("Sec-WebSocket-Protocol")) {
+                protocol = value;
+            }
+        }
+        if (!expectedAccept().equals(accept)) {
+            throw new ProtocolException("Handshake failed: bad Sec-WebSocket-Accept");
+        }
+        if (!isRequestedProtocol(protocol)) {
+            throw new ProtocolException("Handshake failed: Sec-WebSocket-Protocol " + protocol
+                    + " instead of " + Arrays.toString(subProtocols));
+        }
+        negotiateDeflate(extensions);
+
+        open = true;
+        listener.onOpen();
+    }
+
+    // The server must pick one of the requested subprotocols, or none if none was requested.
+    private boolean isRequestedProtocol(String protocol) {
+        if (subProtocols == null || subProtocols.length == 0) {
+            return protocol == null;
+        }
+        for (String requested : subProtocols) {
+            if (requested.equals(protocol)) return true;
+        }
+        return false;
+    }
+
+    private String expectedAccept() {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((secKey + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // java.util.Base64 needs API 26.
+    private static String base64(byte[] data) {
+        StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xff) << 16;
+            if (i + 1 < data.length) b |= (data[i + 1] & 0xff) << 8;
+            if (i + 2 < data.length) b |= data[i + 2] & 0xff;
+            out.append(BASE64[(b >>> 18) & 0x3f]).append(BASE64[(b >>> 12) & 0x3f]);
+            out.append(i + 1 < data.length ? BASE64[(b >>> 6) & 0x3f] : '=');
+            out.append(i + 2 < data.length ? BASE64[b & 0x3f] : '=');
+        }
+        return out.toString();
+    }
+
+    // ----------------------------------------------------------------------------
+    // Shared selector loop
+    // ----------------------------------------------------------------------------
+    // One selector thread shared by all connections, started with the first and ended with
+    // the last.
+    private static final class Loop implements Runnable {
+        private static final Object lock = new Object();
+        // Guarded by lock.
+        private static Loop current;
+
+        // DNS lookups block, they get a thread of their own.
+        private static final ThreadPoolExecutor resolver = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                10, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), runnable -> {
+                    Thread thread = new Thread(runnable, "NioWebSocketResolver");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        private final Selector selector;
+        // Guarded by lock.
+        private final Set<NioWebSocketTransport> transports = new HashSet<>();
+        // Transports to process outside of a selected key: resolved, or with frames queued.
+        private final ConcurrentLinkedQueue<NioWebSocketTransport> woken = new ConcurrentLinkedQueue<>();
+
+        private Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        static Loop join(NioWebSocketTransport transport) throws IOException {
+            synchronized (lock) {
+                if (current == null) {
+                    current = new Loop(Selector.open());
+                    Thread thread = new Thread(current, "NioWebSocketTransport");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                current.transports.add(transport);
+                return current;
+            }
+        }
+
+        void resolve(final NioWebSocketTransport transport, final int port) {
+            resolver.execute(() -> {
+                transport.address = new InetSocketAddress(transport.host, port);
+                wakeup(transport);
+            });
+        }
+
+        void wakeup(NioWebSocketTransport transport) {
+            if (transport.wakeupQueued.compareAndSet(false, true)) {
+                woken.add(transport);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    selector.select();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        int readyOps = key.isValid() ? key.readyOps() : 0;
+                        if (process((NioWebSocketTransport) key.attachment(), readyOps)) return;
+                    }
+                    selector.selectedKeys().clear();
+
+                    NioWebSocketTransport transport;
+                    while ((transport = woken.poll()) != null) {
+                        transport.wakeupQueued.set(false);
+                        if (process(transport, 0)) return;
+                    }
+                }
+            } catch (IOException e) {
+                List<NioWebSocketTransport> failed;
+                synchronized (lock) {
+                    failed = new ArrayList<>(transports);
+                    transports.clear();
+                    if (current == this) current = null;
+                }
+                for (NioWebSocketTransport transport : failed) {
+                    if (transport.finished) continue;
+                    transport.closeReason = "Selector failed: " + e.getMessage();
+                    transport.finish();
+                }
+                close();
+            }
+        }
+
+        // Returns true once the loop is over, |transport| ended and was the last one.
+        private boolean process(NioWebSocketTransport transport, int readyOps) {
+            if (!transport.process(selector, readyOps)) return false;
+            synchronized (lock) {
+                transports.remove(transport);
+                if (!transports.isEmpty()) return false;
+                current = null;
+            }
+            close();
+            return true;
+        }
+
+        private void close() {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing left to do.
+            }
+        }
+    }
+}
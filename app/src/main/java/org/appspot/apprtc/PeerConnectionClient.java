@@ -22,10 +22,8 @@ import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Timer;
@@ -33,8 +31,6 @@ import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.annotation.Nullable;
 
 import org.appspot.apprtc.janus.JanusConnection;
@@ -102,13 +98,11 @@ public class PeerConnectionClient {
   private static final String VIDEO_CODEC_H264_HIGH = "H264 High";
   private static final String AUDIO_CODEC_OPUS = "opus";
   private static final String AUDIO_CODEC_ISAC = "ISAC";
-  private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
   private static final String VIDEO_FLEXFEC_FIELDTRIAL =
       "WebRTC-FlexFEC-03-Advertised/Enabled/WebRTC-FlexFEC-03/Enabled/";
   private static final String VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL = "WebRTC-IntelVP8/Enabled/";
   private static final String DISABLE_WEBRTC_AGC_FIELDTRIAL =
       "WebRTC-Audio-MinimizeResamplingOnMobile/Enabled/";
-  private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
   private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
   private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl";
   private static final String AUDIO_HIGH_PASS_FILTER_CONSTRAINT = "googHighpassFilter";
@@ -141,6 +135,9 @@ public class PeerConnectionClient {
   @Nullable private SurfaceTextureHelper surfaceTextureHelper;
   @Nullable private VideoSource videoSource;
   private boolean preferIsac;
+  // SDP edits, built with the factory and indexed by isVideoCallEnabled() ? 1 : 0.
+  private final SdpRewriter[] localSdpRewriters = new SdpRewriter[2];
+  private final SdpRewriter[] remoteSdpRewriters = new SdpRewriter[2];
   private boolean videoCapturerStopped;
   private boolean isError;
   @Nullable
@@ -404,6 +401,10 @@ public class PeerConnectionClient {
     // Check if ISAC is used by default.
     preferIsac = peerConnectionParameters.audioCodec != null
         && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
+    for (int video = 0; video < 2; video++) {
+      localSdpRewriters[video] = createSdpRewriter(false /* remote */, video == 1);
+      remoteSdpRewriters[video] = createSdpRewriter(true /* remote */, video == 1);
+    }
 
     final AudioDeviceModule adm = peerConnectionParameters.useLegacyAudioDevice
         ? createLegacyAudioDevice()
@@ -888,18 +889,8 @@ public class PeerConnectionClient {
       if (peerConnection == null || isError) {
         return;
       }
-      String sdpDescription = sdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (isVideoCallEnabled()) {
-        sdpDescription =
-            preferCodec(sdpDescription, getSdpVideoCodecName(peerConnectionParameters), false);
-      }
-      if (peerConnectionParameters.audioStartBitrate > 0) {
-        sdpDescription = setStartBitrate(
-            AUDIO_CODEC_OPUS, false, sdpDescription, peerConnectionParameters.audioStartBitrate);
-      }
+      String sdpDescription =
+          remoteSdpRewriters[isVideoCallEnabled() ? 1 : 0].rewrite(sdp.description);
       Log.d(TAG, "Set remote SDP.");
       SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
       peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
@@ -1044,148 +1035,20 @@ public class PeerConnectionClient {
     return fieldTrials;
   }
 
-  @SuppressWarnings("StringSplitter")
-  private static String setStartBitrate(
-      String codec, boolean isVideoCodec, String sdpDescription, int bitrateKbps) {
-    String[] lines = sdpDescription.split("\r\n");
-    int rtpmapLineIndex = -1;
-    boolean sdpFormatUpdated = false;
-    String codecRtpMap = null;
-    // Search for codec rtpmap in format
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
-        rtpmapLineIndex = i;
-        break;
-      }
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec + " codec");
-      return sdpDescription;
-    }
-    Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + " at " + lines[rtpmapLineIndex]);
-
-    // Check if a=fmtp string already exist in remote SDP for this codec and
-    // update it with new bitrate parameter.
-    regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-    codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        Log.d(TAG, "Found " + codec + " " + lines[i]);
-        if (isVideoCodec) {
-          lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Update remote SDP line: " + lines[i]);
-        sdpFormatUpdated = true;
-        break;
-      }
+  // Codec preference for both directions, the audio start bitrate for what we receive.
+  private SdpRewriter createSdpRewriter(boolean remote, boolean videoCallEnabled) {
+    SdpRewriter rewriter = new SdpRewriter();
+    if (preferIsac) {
+      rewriter.preferCodec(AUDIO_CODEC_ISAC, true /* isAudio */);
     }
-
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (int i = 0; i < lines.length; i++) {
-      newSdpDescription.append(lines[i]).append("\r\n");
-      // Append new a=fmtp line if no such line exist for a codec.
-      if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-        String bitrateSet;
-        if (isVideoCodec) {
-          bitrateSet =
-              "a=fmtp:" + codecRtpMap + " " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          bitrateSet = "a=fmtp:" + codecRtpMap + " " + AUDIO_CODEC_PARAM_BITRATE + "="
-              + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-        newSdpDescription.append(bitrateSet).append("\r\n");
-      }
+    if (videoCallEnabled) {
+      rewriter.preferCodec(getSdpVideoCodecName(peerConnectionParameters), false /* isAudio */);
     }
-    return newSdpDescription.toString();
-  }
-
-  /** Returns the line number containing "m=audio|video", or -1 if no such line exists. */
-  private static int findMediaDescriptionLine(boolean isAudio, String[] sdpLines) {
-    final String mediaDescription = isAudio ? "m=audio " : "m=video ";
-    for (int i = 0; i < sdpLines.length; ++i) {
-      if (sdpLines[i].startsWith(mediaDescription)) {
-        return i;
-      }
+    if (remote && peerConnectionParameters.audioStartBitrate > 0) {
+      rewriter.setStartBitrate(
+          AUDIO_CODEC_OPUS, false /* isVideoCodec */, peerConnectionParameters.audioStartBitrate);
     }
-    return -1;
-  }
-
-  private static String joinString(
-      Iterable<? extends CharSequence> s, String delimiter, boolean delimiterAtEnd) {
-    Iterator<? extends CharSequence> iter = s.iterator();
-    if (!iter.hasNext()) {
-      return "";
-    }
-    StringBuilder buffer = new StringBuilder(iter.next());
-    while (iter.hasNext()) {
-      buffer.append(delimiter).append(iter.next());
-    }
-    if (delimiterAtEnd) {
-      buffer.append(delimiter);
-    }
-    return buffer.toString();
-  }
-
-  private static @Nullable String movePayloadTypesToFront(
-      List<String> preferredPayloadTypes, String mLine) {
-    // The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
-    final List<String> origLineParts = Arrays.asList(mLine.split(" "));
-    if (origLineParts.size() <= 3) {
-      Log.e(TAG, "Wrong SDP media description format: " + mLine);
-      return null;
-    }
-    final List<String> header = origLineParts.subList(0, 3);
-    final List<String> unpreferredPayloadTypes =
-        new ArrayList<>(origLineParts.subList(3, origLineParts.size()));
-    unpreferredPayloadTypes.removeAll(preferredPayloadTypes);
-    // Reconstruct the line with |preferredPayloadTypes| moved to the beginning of the payload
-    // types.
-    final List<String> newLineParts = new ArrayList<>();
-    newLineParts.addAll(header);
-    newLineParts.addAll(preferredPayloadTypes);
-    newLineParts.addAll(unpreferredPayloadTypes);
-    return joinString(newLineParts, " ", false /* delimiterAtEnd */);
-  }
-
-  private static String preferCodec(String sdpDescription, String codec, boolean isAudio) {
-    final String[] lines = sdpDescription.split("\r\n");
-    final int mLineIndex = findMediaDescriptionLine(isAudio, lines);
-    if (mLineIndex == -1) {
-      Log.w(TAG, "No mediaDescription line, so can't prefer " + codec);
-      return sdpDescription;
-    }
-    // A list with all the payload types with name |codec|. The payload types are integers in the
-    // range 96-127, but they are stored as strings here.
-    final List<String> codecPayloadTypes = new ArrayList<>();
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
-    for (String line : lines) {
-      Matcher codecMatcher = codecPattern.matcher(line);
-      if (codecMatcher.matches()) {
-        codecPayloadTypes.add(codecMatcher.group(1));
-      }
-    }
-    if (codecPayloadTypes.isEmpty()) {
-      Log.w(TAG, "No payload types with name " + codec);
-      return sdpDescription;
-    }
-
-    final String newMLine = movePayloadTypesToFront(codecPayloadTypes, lines[mLineIndex]);
-    if (newMLine == null) {
-      return sdpDescription;
-    }
-    Log.d(TAG, "Change media description from: " + lines[mLineIndex] + " to " + newMLine);
-    lines[mLineIndex] = newMLine;
-    return joinString(Arrays.asList(lines), "\r\n", true /* delimiterAtEnd */);
+    return rewriter;
   }
 
   private void drainCandidates(BigInteger handleId) {
@@ -1367,14 +1230,8 @@ public class PeerConnectionClient {
         reportError("Multiple SDP create.");
         return;
       }
-      String sdpDescription = origSdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (isVideoCallEnabled()) {
-        sdpDescription =
-            preferCodec(sdpDescription, getSdpVideoCodecName(peerConnectionParameters), false);
-      }
+      String sdpDescription =
+          localSdpRewriters[isVideoCallEnabled() ? 1 : 0].rewrite(origSdp.description);
       final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
       localSdp = sdp;
       executor.execute(() -> {
@@ -25,19 +25,24 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.Nullable;
 
 import org.appspot.apprtc.janus.JanusConnection2;
+import org.appspot.apprtc.util.LongHashMap;
+import org.appspot.apprtc.util.PooledSerialExecutor;
+import org.appspot.apprtc.util.SerialExecutor;
+import org.appspot.apprtc.util.SignalingTrace;
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
 import org.webrtc.CameraVideoCapturer;
@@ -61,8 +66,6 @@ import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
 import org.webrtc.SoftwareVideoDecoderFactory;
 import org.webrtc.SoftwareVideoEncoderFactory;
-import org.webrtc.StatsObserver;
-import org.webrtc.StatsReport;
 import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
@@ -88,9 +91,11 @@ import org.webrtc.voiceengine.WebRtcAudioUtils;
 /**
  * Peer connection client implementation.
  *
- * <p>All public methods are routed to local looper thread.
- * All PeerConnectionEvents callbacks are invoked from the same looper thread.
- * This class is a singleton.CreateOffer
+ * <p>All public methods are routed to executor threads. Factory, capture and close run on
+ * one global executor; everything about a single handle runs on the serial lane of its
+ * PeerConnection, lanes share a small pool, so that negotiating one subscriber does not
+ * hold up the others. A lane task runs after the global tasks submitted before it.
+ * PeerConnectionEvents callbacks are invoked from the lane of their handle.
  */
 public class PeerConnectionClient2 {
   public static final String VIDEO_TRACK_ID = "ARDAMSv0";
@@ -104,13 +109,11 @@ public class PeerConnectionClient2 {
   private static final String VIDEO_CODEC_H264_HIGH = "H264 High";
   private static final String AUDIO_CODEC_OPUS = "opus";
   private static final String AUDIO_CODEC_ISAC = "ISAC";
-  private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
   private static final String VIDEO_FLEXFEC_FIELDTRIAL =
       "WebRTC-FlexFEC-03-Advertised/Enabled/WebRTC-FlexFEC-03/Enabled/";
   private static final String VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL = "WebRTC-IntelVP8/Enabled/";
   private static final String DISABLE_WEBRTC_AGC_FIELDTRIAL =
       "WebRTC-Audio-MinimizeResamplingOnMobile/Enabled/";
-  private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
   private static final String AUDIO_ECHO_CANCELLATION_CONSTRAINT = "googEchoCancellation";
   private static final String AUDIO_AUTO_GAIN_CONTROL_CONSTRAINT = "googAutoGainControl";
   private static final String AUDIO_HIGH_PASS_FILTER_CONSTRAINT = "googHighpassFilter";
@@ -120,33 +123,61 @@ public class PeerConnectionClient2 {
   private static final int HD_VIDEO_HEIGHT = 720;
   private static final int BPS_IN_KBPS = 1000;
   private static final String RTCEVENTLOG_OUTPUT_DIR_NAME = "rtc_event_log";
+  private static final int CONNECTION_THREADS =
+      Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  private static final int CLOSE_TIMEOUT_MS = 5000;
+  // Stats are polled less often when nobody looks at them: with the HUD hidden only quality
+  // control reads them, in the background nothing does.
+  private static final int STATS_HUD_HIDDEN_PERIOD_FACTOR = 3;
+  private static final int STATS_BACKGROUND_PERIOD_FACTOR = 10;
 
   // Executor thread is started once in private ctor and is used for all
   // peer connection API calls to ensure new peer connection factory is
   // created on the same thread as previously destroyed factory.
   private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+  // Tasks submitted to |executor| and not run yet. While there are any, lane tasks are
+  // handed to their lane through |executor|, so they run after them.
+  private static final AtomicInteger pendingGlobalTasks = new AtomicInteger();
+  // Runs the connection lanes, bounded so that a big room does not start a thread per feed.
+  private static final ThreadPoolExecutor connectionPool = createConnectionPool();
+  // Schedules the stats polling of all clients, on the shared signaling pool.
+  private static final SerialExecutor statsExecutor = new PooledSerialExecutor();
 
   //private final PCObserver pcObserver = new PCObserver();
   //private final SDPObserver sdpObserver = new SDPObserver();
-  private final Timer statsTimer = new Timer();
+  private final RtcStatsCollector statsCollector = new RtcStatsCollector();
+  private final Runnable statsTick = this::pollStats;
+  // Stats polling state, |statsExecutor| only. The period is 0 while disabled.
+  private long[] statsHandles = new long[8];
+  private int statsPeriodMs;
+  private boolean statsHudVisible = true;
+  private boolean statsForeground = true;
   private final EglBase rootEglBase;
   private final Context appContext;
   private final PeerConnectionParameters peerConnectionParameters;
   private final PeerConnectionEvents events;
 
   @Nullable
-  private PeerConnectionFactory factory;
-  @Nullable
-  private ConcurrentHashMap<BigInteger,JanusConnection2> peerConnectionMap;
-  @Nullable
-  private ConcurrentHashMap<BigInteger,proxyVideoSinks> videoSinkMap;
+  private volatile PeerConnectionFactory factory;
+  // Keyed on the Janus handle id and shared by all lanes: every access, iteration included,
+  // holds the lock of the map itself.
+  private final LongHashMap<JanusConnection2> peerConnectionMap = new LongHashMap<>();
+  private final LongHashMap<proxyVideoSinks> videoSinkMap = new LongHashMap<>();
+  private final LongHashMap<SerialExecutor> connectionLanes = new LongHashMap<>();
+  // Handles that get no lane and no PeerConnection any more, as keys, guarded by
+  // |connectionLanes|. Emptied when the lanes close, none are handed out after that.
+  private final LongHashMap<Boolean> disposedHandles = new LongHashMap<>();
+  private boolean lanesClosed;
   @Nullable
   private AudioSource audioSource;
   @Nullable private SurfaceTextureHelper surfaceTextureHelper;
   @Nullable private VideoSource videoSource;
   private boolean preferIsac;
+  // SDP edits, built with the factory and indexed by isVideoCallEnabled() ? 1 : 0.
+  private final SdpRewriter[] localSdpRewriters = new SdpRewriter[2];
+  private final SdpRewriter[] remoteSdpRewriters = new SdpRewriter[2];
   private boolean videoCapturerStopped;
-  private boolean isError;
+  private volatile boolean isError;
   @Nullable
   private VideoSink localSink;
   @Nullable private List<VideoSink> remoteSinks;
@@ -155,24 +186,19 @@ public class PeerConnectionClient2 {
   private int videoFps;
   private MediaConstraints audioConstraints;
   private MediaConstraints sdpMediaConstraints;
-  // Queued remote ICE candidates are consumed only after both local and
-  // remote descriptions are set. Similarly local ICE candidates are sent to
-  // remote peer after both local and remote description are set.
-  @Nullable
-  private List<IceCandidate> queuedRemoteCandidates;
   private boolean isInitiator;
   @Nullable
   private SessionDescription localSdp; // either offer or answer SDP
   @Nullable
-  private VideoCapturer videoCapturer;
+  private volatile VideoCapturer videoCapturer;
   // enableVideo is set to true if video should be rendered and sent.
   private boolean renderVideo = true;
   @Nullable
   private VideoTrack localVideoTrack;
   @Nullable
-  private VideoTrack remoteVideoTrack;
+  private volatile VideoTrack remoteVideoTrack;
   @Nullable
-  private RtpSender localVideoSender;
+  private volatile RtpSender localVideoSender;
   // enableAudio is set to true if audio should be sent.
   private boolean enableAudio = true;
   @Nullable
@@ -311,7 +337,8 @@ public class PeerConnectionClient2 {
     /**
      * Callback fired once peer connection statistics is ready.
      */
-    void onPeerConnectionStatsReady(final BigInteger handleId, final StatsReport[] reports);
+    void onPeerConnectionStatsReady(
+        final BigInteger handleId, final RtcStatsCollector.Snapshot stats);
 
     /**
      * Callback fired once peer connection error happened.
@@ -355,13 +382,10 @@ public class PeerConnectionClient2 {
     this.peerConnectionParameters = peerConnectionParameters;
     this.dataChannelEnabled = peerConnectionParameters.dataChannelParameters != null;
 
-    this.peerConnectionMap=new ConcurrentHashMap<>();
-    this.videoSinkMap=new ConcurrentHashMap<>();
-
     Log.d(TAG, "Preferred video codec: " + getSdpVideoCodecName(peerConnectionParameters));
 
     final String fieldTrials = getFieldTrials(peerConnectionParameters);
-    executor.execute(() -> {
+    executeGlobal(() -> {
       Log.d(TAG, "Initialize WebRTC. Field trials: " + fieldTrials);
       PeerConnectionFactory.initialize(
           PeerConnectionFactory.InitializationOptions.builder(appContext)
@@ -378,7 +402,7 @@ public class PeerConnectionClient2 {
     if (factory != null) {
       throw new IllegalStateException("PeerConnectionFactory has already been constructed");
     }
-    executor.execute(() -> createPeerConnectionFactoryInternal(options));
+    executeGlobal(() -> createPeerConnectionFactoryInternal(options));
   }
 
   public void createPeerConnection(final VideoCapturer videoCapturer, final BigInteger handleId) {
@@ -390,10 +414,10 @@ public class PeerConnectionClient2 {
       return;
     }
     this.videoCapturer = videoCapturer;
-    executor.execute(() -> {
+    executeGlobal(() -> {
       try {
         createMediaConstraintsInternal();
-        createPeerConnectionInternal(handleId);
+        createPeerConnectionInternal(handleId.longValue());
         //maybeCreateAndStartRtcEventLog();
       } catch (Exception e) {
         reportError("Failed to create peer connection: " + e.getMessage());
@@ -403,7 +427,7 @@ public class PeerConnectionClient2 {
   }
 
   public void close() {
-    executor.execute(this ::closeInternal);
+    executeGlobal(this::closeInternal);
   }
 
   private boolean isVideoCallEnabled() {
@@ -422,6 +446,10 @@ public class PeerConnectionClient2 {
     // Check if ISAC is used by default.
     preferIsac = peerConnectionParameters.audioCodec != null
         && peerConnectionParameters.audioCodec.equals(AUDIO_CODEC_ISAC);
+    for (int video = 0; video < 2; video++) {
+      localSdpRewriters[video] = createSdpRewriter(false /* remote */, video == 1);
+      remoteSdpRewriters[video] = createSdpRewriter(true /* remote */, video == 1);
+    }
 
     final AudioDeviceModule adm = peerConnectionParameters.useLegacyAudioDevice
         ? createLegacyAudioDevice()
@@ -453,6 +481,12 @@ public class PeerConnectionClient2 {
                   .createPeerConnectionFactory();
     Log.d(TAG, "Peer connection factory created.");
     adm.release();
+
+    // Set INFO libjingle logging.
+    // NOTE: this _must_ happen while |factory| is alive!
+    Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
+    // Keep encoder/decoder output threads from waiting on logcat.
+    Logging.enableAsyncLogging(1024);
   }
 
   AudioDeviceModule createLegacyAudioDevice() {
@@ -630,27 +664,24 @@ public class PeerConnectionClient2 {
         "OfferToReceiveVideo", Boolean.toString(isVideoCallEnabled())));
   }
 
-  private void createPeerConnectionInternal(final BigInteger handleId) {
+  private void createPeerConnectionInternal(final long handleId) {
     if (factory == null || isError) {
       Log.e(TAG, "Peerconnection factory is not created");
       return;
     }
     Log.d(TAG, "Create peer connection.");
 
-    queuedRemoteCandidates = new ArrayList<>();
-
     Log.d(TAG, "createPeerConnectioning...");
 
     PeerConnection peerConnection=createPeerConnection(handleId,true);
-
-    // Set INFO libjingle logging.
-    // NOTE: this _must_ happen while |factory| is alive!
-    Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
+    if (peerConnection == null) {
+      return;
+    }
 
     List<String> mediaStreamLabels = Collections.singletonList("ARDAMS");
     if (isVideoCallEnabled()) {
       peerConnection.addTrack(createVideoTrack(handleId, videoCapturer), mediaStreamLabels);
-      events.onLocalRender(handleId);
+      events.onLocalRender(BigInteger.valueOf(handleId));
       // We can add the renderers right away because we don't need to wait for an
       // answer to get the remote track.
      /*remoteVideoTrack = getRemoteVideoTrack(handleId);
@@ -685,7 +716,7 @@ public class PeerConnectionClient2 {
     Log.d(TAG, "Peer connection created.");
   }
 
-  private PeerConnection createPeerConnection(final BigInteger handleId, final boolean type) {
+  private PeerConnection createPeerConnection(final long handleId, final boolean type) {
     Log.d(TAG, "Create peer connection.");
     PeerConnection.IceServer iceServer = new PeerConnection.IceServer("stun:stun.freeswitch.org");
     List<PeerConnection.IceServer> iceServers = new ArrayList<>();
@@ -707,6 +738,11 @@ public class PeerConnectionClient2 {
     rtcConfig.enableDtlsSrtp = true;//!peerConnectionParameters.loopback;
     rtcConfig.sdpSemantics = PeerConnection.SdpSemantics.UNIFIED_PLAN;
 
+    SerialExecutor lane = laneFor(handleId);
+    if (lane == null) {
+      Log.w(TAG, "Not creating a peer connection for closed handle " + handleId);
+      return null;
+    }
     PCObserver pcObserver = new PCObserver();
     SDPObserver sdpObserver = new SDPObserver();
     PeerConnection peerConnection = factory.createPeerConnection(rtcConfig, pcObserver);
@@ -716,15 +752,50 @@ public class PeerConnectionClient2 {
     JanusConnection2.sdpObserver = sdpObserver;
     JanusConnection2.peerConnection = peerConnection;
     JanusConnection2.type = type;
-    Log.d(TAG,"We are putting handleId="+handleId);
-    peerConnectionMap.put(handleId, JanusConnection2);
-    videoSinkMap.put(handleId, new proxyVideoSinks());
+    JanusConnection2.executor = lane;
+    if (type) {
+      JanusConnection2.queuedRemoteCandidates = new ArrayList<>();
+    }
+    if (SignalingTrace.isEnabled()) SignalingTrace.note(TAG, "PeerConnection for handle " + handleId);
+    synchronized (peerConnectionMap) {
+      peerConnectionMap.put(handleId, JanusConnection2);
+    }
+    putVideoSink(handleId, new proxyVideoSinks());
     pcObserver.setConnection(JanusConnection2);
     sdpObserver.setConnection(JanusConnection2);
     Log.d(TAG, "Peer connection created.");
     return peerConnection;
   }
 
+  // Subscriber PeerConnection of |handleId|, created on first use. Lane of |handleId| only.
+  // Null once the handle is disposed or the client closed.
+  @Nullable
+  private PeerConnection getOrCreateSubscriber(final long handleId) {
+    JanusConnection2 connection = getConnection(handleId);
+    if (connection != null) {
+      return connection.peerConnection;
+    }
+    if (factory == null) {
+      return null;
+    }
+    return createPeerConnection(handleId, false);
+  }
+
+  // Sink of m-line |mid| of a multistream subscriber, set up on first use.
+  private proxyVideoSinks streamSink(JanusConnection2 connection, String mid) {
+    if (connection.streamSinks == null) {
+      connection.streamFeeds = new HashMap<>();
+      connection.streamSinks = new HashMap<>();
+      connection.streamTracks = new HashMap<>();
+    }
+    proxyVideoSinks sink = connection.streamSinks.get(mid);
+    if (sink == null) {
+      sink = new proxyVideoSinks();
+      connection.streamSinks.put(mid, sink);
+    }
+    return sink;
+  }
+
   private File createRtcEventLogOutputFile() {
     DateFormat dateFormat = new SimpleDateFormat("yyyyMMdd_hhmm_ss", Locale.getDefault());
     Date date = new Date();
@@ -739,26 +810,33 @@ public class PeerConnectionClient2 {
       factory.stopAecDump();
     }
     Log.d(TAG, "Closing peer connection.");
-    statsTimer.cancel();
+    enableStatsEvents(false, 0);
+    // The peer connections are disposed on their lanes, the factory after all of them.
+    closeLanes(this::closeFactoryInternal);
+  }
+
+  // Global executor, once the lanes are closed.
+  private void closeFactoryInternal() {
+    statsCollector.clear();
 
-    if (peerConnectionMap != null) {
+    synchronized (peerConnectionMap) {
       for(JanusConnection2 conn : peerConnectionMap.values()) {
         if (conn.peerConnection != null) {
           conn.peerConnection.dispose();
           conn.peerConnection = null;
         }
       }
+      peerConnectionMap.clear();
     }
-    peerConnectionMap.clear();
 
-    if(videoSinkMap != null) {
+    synchronized (videoSinkMap) {
       for(proxyVideoSinks sink : videoSinkMap.values()) {
         if (sink != null) {
           sink.reset();
         }
       }
+      videoSinkMap.clear();
     }
-    videoSinkMap.clear();
 
 
     Log.d(TAG, "Closing audio source.");
@@ -805,42 +883,90 @@ public class PeerConnectionClient2 {
     return isVideoCallEnabled() && videoWidth * videoHeight >= 1280 * 720;
   }
 
-  @SuppressWarnings("deprecation") // TODO(sakal): getStats is deprecated.
-  private void getStats(final BigInteger handleId) {
-    PeerConnection peerConnection=peerConnectionMap.get(handleId).peerConnection;
-    if (peerConnection == null || isError) {
+  private void getStats(final long handleId) {
+    final JanusConnection2 connection = getConnection(handleId);
+    if (connection == null || connection.peerConnection == null || isError) {
       return;
     }
-    boolean success = peerConnection.getStats(new StatsObserver() {
-      @Override
-      public void onComplete(final StatsReport[] reports) {
-        //events.onPeerConnectionStatsReady(reports); fixme:
+    // The report arrives on the WebRTC signaling thread, the deltas are computed on the lane.
+    connection.peerConnection.getStats(report -> connection.executor.execute(() -> {
+      RtcStatsCollector.Snapshot stats = statsCollector.update(handleId, report);
+      if (stats != null && !isError) {
+        events.onPeerConnectionStatsReady(BigInteger.valueOf(handleId), stats);
+      }
+    }));
+  }
+
+  // Polls the stats of all connected handles every |periodMs|, until disabled or closed.
+  // The period stretches while the HUD is hidden or the app is in the background.
+  public void enableStatsEvents(final boolean enable, final int periodMs) {
+    statsExecutor.execute(() -> {
+      if (statsPeriodMs == (enable ? periodMs : 0)) {
+        return;
+      }
+      statsPeriodMs = enable ? periodMs : 0;
+      statsExecutor.remove(statsTick);
+      if (enable) {
+        statsExecutor.execute(statsTick);
       }
-    }, null);
-    if (!success) {
-      Log.e(TAG, "getStats() returns false!");
+    });
+  }
+
+  public void setStatsHudVisible(final boolean visible) {
+    statsExecutor.execute(() -> {
+      statsHudVisible = visible;
+      rescheduleStats();
+    });
+  }
+
+  public void setStatsForeground(final boolean foreground) {
+    statsExecutor.execute(() -> {
+      statsForeground = foreground;
+      rescheduleStats();
+    });
+  }
+
+  private void rescheduleStats() {
+    statsExecutor.remove(statsTick);
+    if (statsPeriodMs > 0) {
+      statsExecutor.executeDelayed(statsTick, currentStatsPeriodMs());
     }
   }
 
-  public void enableStatsEvents(boolean enable, int periodMs,final BigInteger handleId) {
-    if (enable) {
-      try {
-        statsTimer.schedule(new TimerTask() {
-          @Override
-          public void run() {
-            executor.execute(() -> getStats(handleId));
+  private int currentStatsPeriodMs() {
+    if (!statsForeground) {
+      return statsPeriodMs * STATS_BACKGROUND_PERIOD_FACTOR;
+    }
+    return statsHudVisible ? statsPeriodMs : statsPeriodMs * STATS_HUD_HIDDEN_PERIOD_FACTOR;
+  }
+
+  // One tick for all handles; those without a connected ICE transport have nothing to report.
+  private void pollStats() {
+    if (statsPeriodMs == 0) {
+      return;
+    }
+    if (!isError) {
+      int count = 0;
+      synchronized (peerConnectionMap) {
+        for (JanusConnection2 connection : peerConnectionMap.values()) {
+          if (connection.iceConnected) {
+            if (count == statsHandles.length) {
+              statsHandles = Arrays.copyOf(statsHandles, count * 2);
+            }
+            statsHandles[count++] = connection.handleId;
           }
-        }, 0, periodMs);
-      } catch (Exception e) {
-        Log.e(TAG, "Can not schedule statistics timer", e);
+        }
+      }
+      for (int i = 0; i < count; i++) {
+        final long handleId = statsHandles[i];
+        executeOnConnection(handleId, () -> getStats(handleId));
       }
-    } else {
-      statsTimer.cancel();
     }
+    statsExecutor.executeDelayed(statsTick, currentStatsPeriodMs());
   }
 
   public void setAudioEnabled(final boolean enable) {
-    executor.execute(() -> {
+    executeGlobal(() -> {
       enableAudio = enable;
       if (localAudioTrack != null) {
         localAudioTrack.setEnabled(enableAudio);
@@ -849,7 +975,7 @@ public class PeerConnectionClient2 {
   }
 
   public void setVideoEnabled(final boolean enable) {
-    executor.execute(() -> {
+    executeGlobal(() -> {
       renderVideo = enable;
       if (localVideoTrack != null) {
         localVideoTrack.setEnabled(renderVideo);
@@ -861,9 +987,12 @@ public class PeerConnectionClient2 {
   }
 
   public void createOffer(final BigInteger handleId) {
-    executor.execute(() -> {
-      Log.d(TAG,"peerConnectionMap get handleId="+handleId);
-      JanusConnection2 connection = peerConnectionMap.get(handleId);
+    final long id = handleId.longValue();
+    executeOnConnection(id, () -> {
+      JanusConnection2 connection = getConnection(id);
+      if (connection == null) {
+        return;
+      }
       PeerConnection peerConnection=connection.peerConnection;
       if (peerConnection != null && !isError) {
         Log.d(TAG, "PC Create OFFER");
@@ -872,26 +1001,86 @@ public class PeerConnectionClient2 {
     });
   }
 
+  /**
+   * Creates the subscriber PeerConnection of |handleId| ahead of its offer, so that the
+   * setup overlaps with the join round trip. Optional: the offer creates it if needed.
+   */
+  public void prepareSubscriber(final BigInteger handleId) {
+    final long id = handleId.longValue();
+    executeOnConnection(id, () -> {
+      if (factory == null || isError) {
+        return;
+      }
+      getOrCreateSubscriber(id);
+    });
+  }
+
   public void subscriberHandleRemoteJsep(final BigInteger handleId,final SessionDescription sdp) {
-    executor.execute(() -> {
-      PeerConnection peerConnection = createPeerConnection(handleId, false);
-      SDPObserver sdpObserver = peerConnectionMap.get(handleId).sdpObserver;
+    final long id = handleId.longValue();
+    executeOnConnection(id, () -> {
+      PeerConnection peerConnection = getOrCreateSubscriber(id);
       if (peerConnection != null && !isError) {
         Log.d(TAG, "PC create ANSWER");
-        JanusConnection2 connection = peerConnectionMap.get(handleId);
+        JanusConnection2 connection = getConnection(id);
+        SDPObserver sdpObserver = connection.sdpObserver;
+        // A multistream subscriber is renegotiated on every subscription update.
+        sdpObserver.localSdp = null;
         peerConnection.setRemoteDescription(sdpObserver, sdp);
         peerConnection.createAnswer(connection.sdpObserver, sdpMediaConstraints);
       }
     });
   }
 
+  /**
+   * Multistream: video of |feedId| arrives on m-line |mid| of the subscriber PeerConnection of
+   * |handleId|. The feed is then rendered through setVideoRender(feedId, ...), once
+   * onRemoteRender(feedId) reports its track.
+   */
+  public void addRemoteStream(final BigInteger handleId, final String mid, final BigInteger feedId) {
+    final long id = handleId.longValue();
+    final long feed = feedId.longValue();
+    executeOnConnection(id, () -> {
+      if (factory == null || isError) {
+        return;
+      }
+      if (getOrCreateSubscriber(id) == null) {
+        return;
+      }
+      JanusConnection2 connection = getConnection(id);
+      connection.streamFeeds.put(mid, feed);
+      putVideoSink(feed, streamSink(connection, mid));
+      if (connection.streamTracks.containsKey(mid)) {
+        // Recycled m-line, its track is already flowing.
+        events.onRemoteRender(feedId);
+      }
+    });
+  }
+
+  public void removeRemoteStream(final BigInteger handleId, final String mid, final BigInteger feedId) {
+    final long id = handleId.longValue();
+    final long feed = feedId.longValue();
+    executeOnConnection(id, () -> {
+      JanusConnection2 connection = getConnection(id);
+      if (connection == null || connection.streamFeeds == null) {
+        return;
+      }
+      Long current = connection.streamFeeds.get(mid);
+      if (current != null && current == feed) {
+        connection.streamFeeds.remove(mid);
+        streamSink(connection, mid).reset();
+      }
+      removeVideoSink(feed);
+    });
+  }
+
   public void addRemoteIceCandidate(final IceCandidate candidate,final BigInteger handleId) {
-    executor.execute(() -> {
-      PeerConnection peerConnection = createPeerConnection(handleId, false);
-      SDPObserver sdpObserver = peerConnectionMap.get(handleId).sdpObserver;
+    final long id = handleId.longValue();
+    executeOnConnection(id, () -> {
+      PeerConnection peerConnection = getOrCreateSubscriber(id);
+      JanusConnection2 connection = getConnection(id);
       if (peerConnection != null && !isError) {
-        if (queuedRemoteCandidates != null) {
-          queuedRemoteCandidates.add(candidate);
+        if (connection.queuedRemoteCandidates != null) {
+          connection.queuedRemoteCandidates.add(candidate);
         } else {
           peerConnection.addIceCandidate(candidate);
         }
@@ -900,64 +1089,94 @@ public class PeerConnectionClient2 {
   }
 
   public void removeRemoteIceCandidates(final IceCandidate[] candidates,final BigInteger handleId) {
-    executor.execute(() -> {
-      PeerConnection peerConnection = peerConnectionMap.get(handleId).peerConnection;
-      SDPObserver sdpObserver = peerConnectionMap.get(handleId).sdpObserver;
-      if (peerConnection == null || isError) {
+    final long id = handleId.longValue();
+    executeOnConnection(id, () -> {
+      JanusConnection2 connection = getConnection(id);
+      if (connection == null || connection.peerConnection == null || isError) {
         return;
       }
+      PeerConnection peerConnection = connection.peerConnection;
       // Drain the queued remote candidates if there is any so that
       // they are processed in the proper order.
-      drainCandidates(handleId);
+      drainCandidates(id);
       peerConnection.removeIceCandidates(candidates);
     });
   }
 
   public void setRemoteDescription(BigInteger handleId, final SessionDescription sdp) {
-    executor.execute(() -> {
-      PeerConnection peerConnection = peerConnectionMap.get(handleId).peerConnection;
-      SDPObserver sdpObserver = peerConnectionMap.get(handleId).sdpObserver;
-      if (peerConnection == null || isError) {
+    final long id = handleId.longValue();
+    executeOnConnection(id, () -> {
+      JanusConnection2 connection = getConnection(id);
+      if (connection == null || connection.peerConnection == null || isError) {
         return;
       }
-      String sdpDescription = sdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (isVideoCallEnabled()) {
-        sdpDescription =
-            preferCodec(sdpDescription, getSdpVideoCodecName(peerConnectionParameters), false);
-      }
-      if (peerConnectionParameters.audioStartBitrate > 0) {
-        sdpDescription = setStartBitrate(
-            AUDIO_CODEC_OPUS, false, sdpDescription, peerConnectionParameters.audioStartBitrate);
-      }
+      PeerConnection peerConnection = connection.peerConnection;
+      SDPObserver sdpObserver = connection.sdpObserver;
+      String sdpDescription =
+          remoteSdpRewriters[isVideoCallEnabled() ? 1 : 0].rewrite(sdp.description);
       Log.d(TAG, "Set remote SDP.");
       SessionDescription sdpRemote = new SessionDescription(sdp.type, sdpDescription);
       peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
     });
   }
 
+  // On the global executor: |handleId| may be a multistream feed id, which has no lane. Its
+  // sink exists already, onLocalRender() / onRemoteRender() reported it.
   public void setVideoRender(BigInteger handleId, SurfaceViewRenderer videoRender) {
-    executor.execute(() -> {
-      videoSinkMap.get(handleId).setTarget(videoRender);
+    final long id = handleId.longValue();
+    executeGlobal(() -> {
+      proxyVideoSinks sink = getVideoSink(id);
+      if (sink != null) {
+        sink.setTarget(videoRender);
+      }
     });
   }
+  // Disposes the PeerConnection of |handleId|. Later calls for the handle, e.g. a late
+  // trickle candidate, are dropped rather than creating a new one.
   public void dispose(BigInteger handleId) {
-    executor.execute(() -> {
-      videoSinkMap.remove(handleId);
-      JanusConnection2 conn = peerConnectionMap.get(handleId);
-      if (conn.peerConnection != null) {
-        conn.peerConnection.dispose();
-        conn.peerConnection = null;
+    final long id = handleId.longValue();
+    final SerialExecutor lane;
+    synchronized (connectionLanes) {
+      if (!lanesClosed) {
+        disposedHandles.put(id, Boolean.TRUE);
       }
-      peerConnectionMap.remove(handleId);
+      lane = connectionLanes.remove(id);
+    }
+    if (lane == null) {
+      return;
+    }
+    executeOnLane(lane, () -> {
+      // This task is the last of the lane, whatever is queued behind it is dropped.
+      lane.shutdown();
+      disposeConnection(id);
     });
   }
 
+  // Lane of |handleId|, or the global executor once the lanes are closed.
+  private void disposeConnection(long handleId) {
+    removeVideoSink(handleId);
+    statsCollector.remove(handleId);
+    JanusConnection2 conn = getConnection(handleId);
+    if (conn == null) {
+      return;
+    }
+    if (conn.streamFeeds != null) {
+      for (long feedId : conn.streamFeeds.values()) {
+        removeVideoSink(feedId);
+      }
+    }
+    if (conn.peerConnection != null) {
+      conn.peerConnection.dispose();
+      conn.peerConnection = null;
+    }
+    synchronized (peerConnectionMap) {
+      peerConnectionMap.remove(handleId);
+    }
+  }
+
 
   public void stopVideoSource() {
-    executor.execute(() -> {
+    executeGlobal(() -> {
       if (videoCapturer != null && !videoCapturerStopped) {
         Log.d(TAG, "Stop video source.");
         try {
@@ -970,7 +1189,7 @@ public class PeerConnectionClient2 {
   }
 
   public void startVideoSource() {
-    executor.execute(() -> {
+    executeGlobal(() -> {
       if (videoCapturer != null && videoCapturerStopped) {
         Log.d(TAG, "Restart video source.");
         videoCapturer.startCapture(videoWidth, videoHeight, videoFps);
@@ -980,10 +1199,11 @@ public class PeerConnectionClient2 {
   }
 
   public void setVideoMaxBitrate(@Nullable final Integer maxBitrateKbps,final BigInteger handleId) {
-    PeerConnection peerConnection = peerConnectionMap.get(handleId).peerConnection;
-    SDPObserver sdpObserver = peerConnectionMap.get(handleId).sdpObserver;
-    executor.execute(() -> {
-      if (peerConnection == null || localVideoSender == null || isError) {
+    final long id = handleId.longValue();
+    executeOnConnection(id, () -> {
+      JanusConnection2 connection = getConnection(id);
+      if (connection == null || connection.peerConnection == null || localVideoSender == null
+          || isError) {
         return;
       }
       Log.d(TAG, "Requested max video bitrate: " + maxBitrateKbps);
@@ -1009,9 +1229,143 @@ public class PeerConnectionClient2 {
     });
   }
 
+  private static void executeGlobal(final Runnable task) {
+    pendingGlobalTasks.incrementAndGet();
+    executor.execute(() -> {
+      try {
+        task.run();
+      } finally {
+        pendingGlobalTasks.decrementAndGet();
+      }
+    });
+  }
+
+  // Runs |task| on the lane of |handleId|, after the global tasks submitted before it.
+  // Dropped if the handle is disposed or the client closed.
+  private void executeOnConnection(final long handleId, final Runnable task) {
+    final SerialExecutor lane = laneFor(handleId);
+    if (lane == null) {
+      Log.d(TAG, "Dropping a task for closed handle " + handleId);
+      return;
+    }
+    executeOnLane(lane, task);
+  }
+
+  private static void executeOnLane(final SerialExecutor lane, final Runnable task) {
+    if (pendingGlobalTasks.get() == 0) {
+      lane.execute(task);
+    } else {
+      // Handed over in order: until this runs, later tasks of the lane come this way too.
+      executeGlobal(() -> lane.execute(task));
+    }
+  }
+
+  // Lane of |handleId|, created on first use. Null once the handle is disposed or the lanes
+  // are closed, nothing may be set up for it then.
+  @Nullable
+  private SerialExecutor laneFor(long handleId) {
+    synchronized (connectionLanes) {
+      if (lanesClosed || disposedHandles.containsKey(handleId)) {
+        return null;
+      }
+      SerialExecutor lane = connectionLanes.get(handleId);
+      if (lane == null) {
+        lane = new PooledSerialExecutor(connectionPool);
+        connectionLanes.put(handleId, lane);
+      }
+      return lane;
+    }
+  }
+
+  // Global executor only. Refuses new lanes, disposes every connection as the last task of
+  // its lane and shuts the lane down. Once all lanes are through, or after CLOSE_TIMEOUT_MS,
+  // |then| runs on the global executor; nothing blocks meanwhile.
+  private void closeLanes(final Runnable then) {
+    final long[] handleIds;
+    final List<SerialExecutor> lanes = new ArrayList<>();
+    synchronized (connectionLanes) {
+      lanesClosed = true;
+      disposedHandles.clear();
+      handleIds = connectionLanes.keys();
+      for (long handleId : handleIds) {
+        lanes.add(connectionLanes.get(handleId));
+      }
+      connectionLanes.clear();
+    }
+
+    final AtomicBoolean done = new AtomicBoolean();
+    final Runnable finish = () -> {
+      if (done.compareAndSet(false, true)) {
+        executeGlobal(then);
+      }
+    };
+    if (lanes.isEmpty()) {
+      finish.run();
+      return;
+    }
+    final AtomicInteger remaining = new AtomicInteger(lanes.size());
+    for (int i = 0; i < lanes.size(); i++) {
+      final SerialExecutor lane = lanes.get(i);
+      final long handleId = handleIds[i];
+      lane.execute(() -> {
+        lane.shutdown();
+        disposeConnection(handleId);
+        if (remaining.decrementAndGet() == 0) {
+          finish.run();
+        }
+      });
+    }
+    statsExecutor.executeDelayed(() -> {
+      if (!done.get()) {
+        Log.w(TAG, "Closing with " + remaining.get() + " busy peer connection lanes.");
+        finish.run();
+      }
+    }, CLOSE_TIMEOUT_MS);
+  }
+
+  private static ThreadPoolExecutor createConnectionPool() {
+    final AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(CONNECTION_THREADS, CONNECTION_THREADS,
+        30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "PeerConnection-" + threadCount.incrementAndGet());
+          }
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  @Nullable
+  private JanusConnection2 getConnection(long handleId) {
+    synchronized (peerConnectionMap) {
+      return peerConnectionMap.get(handleId);
+    }
+  }
+
+  @Nullable
+  private proxyVideoSinks getVideoSink(long handleId) {
+    synchronized (videoSinkMap) {
+      return videoSinkMap.get(handleId);
+    }
+  }
+
+  private void putVideoSink(long handleId, proxyVideoSinks sink) {
+    synchronized (videoSinkMap) {
+      videoSinkMap.put(handleId, sink);
+    }
+  }
+
+  private void removeVideoSink(long handleId) {
+    synchronized (videoSinkMap) {
+      videoSinkMap.remove(handleId);
+    }
+  }
+
   private void reportError(final String errorMessage) {
     Log.e(TAG, "Peerconnection error: " + errorMessage);
-    executor.execute(() -> {
+    SignalingTrace.dump(errorMessage);
+    executeGlobal(() -> {
       if (!isError) {
         //events.onPeerConnectionError(errorMessage); fixme:
         isError = true;
@@ -1028,7 +1382,7 @@ public class PeerConnectionClient2 {
   }
 
   @Nullable
-  private VideoTrack createVideoTrack(BigInteger handleId, VideoCapturer capturer) {
+  private VideoTrack createVideoTrack(long handleId, VideoCapturer capturer) {
     surfaceTextureHelper =
         SurfaceTextureHelper.create("CaptureThread", rootEglBase.getEglBaseContext());
     videoSource = factory.createVideoSource(capturer.isScreencast());
@@ -1037,12 +1391,12 @@ public class PeerConnectionClient2 {
 
     localVideoTrack = factory.createVideoTrack(VIDEO_TRACK_ID, videoSource);
     localVideoTrack.setEnabled(renderVideo);
-    localVideoTrack.addSink(videoSinkMap.get(handleId));
+    localVideoTrack.addSink(getVideoSink(handleId));
     return localVideoTrack;
   }
 
-  private void findVideoSender(final BigInteger handleId) {
-    PeerConnection peerConnection = peerConnectionMap.get(handleId).peerConnection;
+  private void findVideoSender(final long handleId) {
+    PeerConnection peerConnection = getConnection(handleId).peerConnection;
     for (RtpSender sender : peerConnection.getSenders()) {
       if (sender.track() != null) {
         String trackType = sender.track().kind();
@@ -1055,8 +1409,8 @@ public class PeerConnectionClient2 {
   }
 
   // Returns the remote VideoTrack, assuming there is only one.
-  private @Nullable VideoTrack getRemoteVideoTrack(BigInteger handleId) {
-    PeerConnection peerConnection = peerConnectionMap.get(handleId).peerConnection;
+  private @Nullable VideoTrack getRemoteVideoTrack(long handleId) {
+    PeerConnection peerConnection = getConnection(handleId).peerConnection;
     for (RtpTransceiver transceiver : peerConnection.getTransceivers()) {
       MediaStreamTrack track = transceiver.getReceiver().track();
       if (track instanceof VideoTrack) {
@@ -1094,158 +1448,30 @@ public class PeerConnectionClient2 {
     return fieldTrials;
   }
 
-  @SuppressWarnings("StringSplitter")
-  private static String setStartBitrate(
-      String codec, boolean isVideoCodec, String sdpDescription, int bitrateKbps) {
-    String[] lines = sdpDescription.split("\r\n");
-    int rtpmapLineIndex = -1;
-    boolean sdpFormatUpdated = false;
-    String codecRtpMap = null;
-    // Search for codec rtpmap in format
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    String regex = "^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$";
-    Pattern codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        codecRtpMap = codecMatcher.group(1);
-        rtpmapLineIndex = i;
-        break;
-      }
-    }
-    if (codecRtpMap == null) {
-      Log.w(TAG, "No rtpmap for " + codec + " codec");
-      return sdpDescription;
-    }
-    Log.d(TAG, "Found " + codec + " rtpmap " + codecRtpMap + " at " + lines[rtpmapLineIndex]);
-
-    // Check if a=fmtp string already exist in remote SDP for this codec and
-    // update it with new bitrate parameter.
-    regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-    codecPattern = Pattern.compile(regex);
-    for (int i = 0; i < lines.length; i++) {
-      Matcher codecMatcher = codecPattern.matcher(lines[i]);
-      if (codecMatcher.matches()) {
-        Log.d(TAG, "Found " + codec + " " + lines[i]);
-        if (isVideoCodec) {
-          lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE + "=" + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Update remote SDP line: " + lines[i]);
-        sdpFormatUpdated = true;
-        break;
-      }
-    }
-
-    StringBuilder newSdpDescription = new StringBuilder();
-    for (int i = 0; i < lines.length; i++) {
-      newSdpDescription.append(lines[i]).append("\r\n");
-      // Append new a=fmtp line if no such line exist for a codec.
-      if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-        String bitrateSet;
-        if (isVideoCodec) {
-          bitrateSet =
-              "a=fmtp:" + codecRtpMap + " " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + bitrateKbps;
-        } else {
-          bitrateSet = "a=fmtp:" + codecRtpMap + " " + AUDIO_CODEC_PARAM_BITRATE + "="
-              + (bitrateKbps * 1000);
-        }
-        Log.d(TAG, "Add remote SDP line: " + bitrateSet);
-        newSdpDescription.append(bitrateSet).append("\r\n");
-      }
-    }
-    return newSdpDescription.toString();
-  }
-
-  /** Returns the line number containing "m=audio|video", or -1 if no such line exists. */
-  private static int findMediaDescriptionLine(boolean isAudio, String[] sdpLines) {
-    final String mediaDescription = isAudio ? "m=audio " : "m=video ";
-    for (int i = 0; i < sdpLines.length; ++i) {
-      if (sdpLines[i].startsWith(mediaDescription)) {
-        return i;
-      }
-    }
-    return -1;
-  }
-
-  private static String joinString(
-      Iterable<? extends CharSequence> s, String delimiter, boolean delimiterAtEnd) {
-    Iterator<? extends CharSequence> iter = s.iterator();
-    if (!iter.hasNext()) {
-      return "";
+  // Codec preference for both directions, the audio start bitrate for what we receive.
+  private SdpRewriter createSdpRewriter(boolean remote, boolean videoCallEnabled) {
+    SdpRewriter rewriter = new SdpRewriter();
+    if (preferIsac) {
+      rewriter.preferCodec(AUDIO_CODEC_ISAC, true /* isAudio */);
     }
-    StringBuilder buffer = new StringBuilder(iter.next());
-    while (iter.hasNext()) {
-      buffer.append(delimiter).append(iter.next());
+    if (videoCallEnabled) {
+      rewriter.preferCodec(getSdpVideoCodecName(peerConnectionParameters), false /* isAudio */);
     }
-    if (delimiterAtEnd) {
-      buffer.append(delimiter);
+    if (remote && peerConnectionParameters.audioStartBitrate > 0) {
+      rewriter.setStartBitrate(
+          AUDIO_CODEC_OPUS, false /* isVideoCodec */, peerConnectionParameters.audioStartBitrate);
     }
-    return buffer.toString();
+    return rewriter;
   }
 
-  private static @Nullable String movePayloadTypesToFront(
-      List<String> preferredPayloadTypes, String mLine) {
-    // The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
-    final List<String> origLineParts = Arrays.asList(mLine.split(" "));
-    if (origLineParts.size() <= 3) {
-      Log.e(TAG, "Wrong SDP media description format: " + mLine);
-      return null;
-    }
-    final List<String> header = origLineParts.subList(0, 3);
-    final List<String> unpreferredPayloadTypes =
-        new ArrayList<>(origLineParts.subList(3, origLineParts.size()));
-    unpreferredPayloadTypes.removeAll(preferredPayloadTypes);
-    // Reconstruct the line with |preferredPayloadTypes| moved to the beginning of the payload
-    // types.
-    final List<String> newLineParts = new ArrayList<>();
-    newLineParts.addAll(header);
-    newLineParts.addAll(preferredPayloadTypes);
-    newLineParts.addAll(unpreferredPayloadTypes);
-    return joinString(newLineParts, " ", false /* delimiterAtEnd */);
-  }
-
-  private static String preferCodec(String sdpDescription, String codec, boolean isAudio) {
-    final String[] lines = sdpDescription.split("\r\n");
-    final int mLineIndex = findMediaDescriptionLine(isAudio, lines);
-    if (mLineIndex == -1) {
-      Log.w(TAG, "No mediaDescription line, so can't prefer " + codec);
-      return sdpDescription;
-    }
-    // A list with all the payload types with name |codec|. The payload types are integers in the
-    // range 96-127, but they are stored as strings here.
-    final List<String> codecPayloadTypes = new ArrayList<>();
-    // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-    final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
-    for (String line : lines) {
-      Matcher codecMatcher = codecPattern.matcher(line);
-      if (codecMatcher.matches()) {
-        codecPayloadTypes.add(codecMatcher.group(1));
+  private void drainCandidates(long handleId) {
+    JanusConnection2 connection = getConnection(handleId);
+    if (connection != null && connection.queuedRemoteCandidates != null) {
+      Log.d(TAG, "Add " + connection.queuedRemoteCandidates.size() + " remote candidates");
+      for (IceCandidate candidate : connection.queuedRemoteCandidates) {
+        connection.peerConnection.addIceCandidate(candidate);
       }
-    }
-    if (codecPayloadTypes.isEmpty()) {
-      Log.w(TAG, "No payload types with name " + codec);
-      return sdpDescription;
-    }
-
-    final String newMLine = movePayloadTypesToFront(codecPayloadTypes, lines[mLineIndex]);
-    if (newMLine == null) {
-      return sdpDescription;
-    }
-    Log.d(TAG, "Change media description from: " + lines[mLineIndex] + " to " + newMLine);
-    lines[mLineIndex] = newMLine;
-    return joinString(Arrays.asList(lines), "\r\n", true /* delimiterAtEnd */);
-  }
-
-  private void drainCandidates(BigInteger handleId) {
-    PeerConnection peerConnection = peerConnectionMap.get(handleId).peerConnection;
-    if (queuedRemoteCandidates != null) {
-      Log.d(TAG, "Add " + queuedRemoteCandidates.size() + " remote candidates");
-      for (IceCandidate candidate : queuedRemoteCandidates) {
-        peerConnection.addIceCandidate(candidate);
-      }
-      queuedRemoteCandidates = null;
+      connection.queuedRemoteCandidates = null;
     }
   }
 
@@ -1265,11 +1491,11 @@ public class PeerConnectionClient2 {
   }
 
   public void switchCamera() {
-    executor.execute(this ::switchCameraInternal);
+    executeGlobal(this::switchCameraInternal);
   }
 
   public void changeCaptureFormat(final int width, final int height, final int framerate) {
-    executor.execute(() -> changeCaptureFormatInternal(width, height, framerate));
+    executeGlobal(() -> changeCaptureFormatInternal(width, height, framerate));
   }
 
   private void changeCaptureFormatInternal(int width, int height, int framerate) {
@@ -1293,12 +1519,14 @@ public class PeerConnectionClient2 {
     }
     @Override
     public void onIceCandidate(final IceCandidate candidate) {
-      executor.execute(() -> events.onIceCandidate(connection.handleId, candidate));
+      connection.executor.execute(
+          () -> events.onIceCandidate(BigInteger.valueOf(connection.handleId), candidate));
     }
 
     @Override
     public void onIceCandidatesRemoved(final IceCandidate[] candidates) {
-      executor.execute(() -> events.onIceCandidatesRemoved(connection.handleId, candidates));
+      connection.executor.execute(
+          () -> events.onIceCandidatesRemoved(BigInteger.valueOf(connection.handleId), candidates));
     }
 
     @Override
@@ -1308,12 +1536,14 @@ public class PeerConnectionClient2 {
 
     @Override
     public void onIceConnectionChange(final PeerConnection.IceConnectionState newState) {
-      executor.execute(() -> {
+      connection.iceConnected = newState == IceConnectionState.CONNECTED
+          || newState == IceConnectionState.COMPLETED;
+      connection.executor.execute(() -> {
         Log.d(TAG, "IceConnectionState: " + newState);
         if (newState == IceConnectionState.CONNECTED) {
-          events.onIceConnected(connection.handleId);
+          events.onIceConnected(BigInteger.valueOf(connection.handleId));
         } else if (newState == IceConnectionState.DISCONNECTED) {
-          events.onIceDisconnected(connection.handleId);
+          events.onIceDisconnected(BigInteger.valueOf(connection.handleId));
         } else if (newState == IceConnectionState.FAILED) {
           reportError("ICE connection failed.");
         }
@@ -1332,19 +1562,20 @@ public class PeerConnectionClient2 {
 
     @Override
     public void onAddStream(final MediaStream stream) {
-      executor.execute(new Runnable() {
+      connection.executor.execute(new Runnable() {
         @Override
         public void run() {
           if (peerConnection == null || isError) {
             return;
           }
           Log.d(TAG, "==onAddStream tracks size:"+stream.videoTracks.size());
-          if (stream.videoTracks.size() == 1) {
+          // Multistream tracks are routed by mid in onTrack().
+          if (stream.videoTracks.size() == 1 && connection.streamSinks == null) {
             remoteVideoTrack = stream.videoTracks.get(0);
             remoteVideoTrack.setEnabled(true);
             connection.videoTrack = remoteVideoTrack;
-            connection.videoTrack.addSink(videoSinkMap.get(connection.handleId));
-            events.onRemoteRender(connection.handleId);
+            connection.videoTrack.addSink(getVideoSink(connection.handleId));
+            events.onRemoteRender(BigInteger.valueOf(connection.handleId));
           }
         }
       });
@@ -1396,6 +1627,29 @@ public class PeerConnectionClient2 {
     public void onAddTrack(final RtpReceiver receiver, final MediaStream[] mediaStreams) {
       Log.d(TAG, "==onAddTrack mediaStreams size:"+mediaStreams.length);
     }
+
+    @Override
+    public void onTrack(final RtpTransceiver transceiver) {
+      final String mid = transceiver.getMid();
+      final MediaStreamTrack track = transceiver.getReceiver().track();
+      connection.executor.execute(() -> {
+        if (peerConnection == null || isError || connection.streamSinks == null) {
+          return;
+        }
+        if (!(track instanceof VideoTrack) || connection.streamTracks.containsKey(mid)) {
+          return;
+        }
+        VideoTrack videoTrack = (VideoTrack) track;
+        videoTrack.setEnabled(true);
+        videoTrack.addSink(streamSink(connection, mid));
+        connection.streamTracks.put(mid, videoTrack);
+
+        Long feedId = connection.streamFeeds.get(mid);
+        if (feedId != null) {
+          events.onRemoteRender(BigInteger.valueOf(feedId));
+        }
+      });
+    }
   }
 
   // Implementation detail: handle offer creation/signaling and answer setting,
@@ -1403,34 +1657,35 @@ public class PeerConnectionClient2 {
   public class SDPObserver implements SdpObserver {
     private PeerConnection peerConnection;
     private SDPObserver sdpObserver;
-    private BigInteger handleId;
-    private SessionDescription localSdp;
+    private long handleId;
+    private SerialExecutor connectionExecutor;
     private boolean type;
+    // Lane only, like the rest of the negotiation: the SdpObserver callbacks come on the
+    // WebRTC signaling thread and are posted to the lane before touching them.
+    private SessionDescription localSdp;
+    // Set between applying the local SDP and its onSetSuccess().
+    private boolean settingLocal;
     public void setConnection(JanusConnection2 connection) {
       this.peerConnection = connection.peerConnection;
       this.sdpObserver = connection.sdpObserver;
       this.handleId = connection.handleId;
+      this.connectionExecutor = connection.executor;
       this.type = connection.type;
     }
     @Override
     public void onCreateSuccess(final SessionDescription origSdp) {
-      if (localSdp != null) {
-        reportError("Multiple SDP create.");
-        return;
-      }
-      String sdpDescription = origSdp.description;
-      if (preferIsac) {
-        sdpDescription = preferCodec(sdpDescription, AUDIO_CODEC_ISAC, true);
-      }
-      if (isVideoCallEnabled()) {
-        sdpDescription =
-            preferCodec(sdpDescription, getSdpVideoCodecName(peerConnectionParameters), false);
-      }
-      final SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
-      localSdp = sdp;
-      executor.execute(() -> {
+      connectionExecutor.execute(() -> {
+        if (localSdp != null) {
+          reportError("Multiple SDP create.");
+          return;
+        }
+        String sdpDescription =
+            localSdpRewriters[isVideoCallEnabled() ? 1 : 0].rewrite(origSdp.description);
+        SessionDescription sdp = new SessionDescription(origSdp.type, sdpDescription);
+        localSdp = sdp;
         if (peerConnection != null && !isError) {
           Log.d(TAG, "Set local SDP from " + sdp.type);
+          settingLocal = true;
           peerConnection.setLocalDescription(sdpObserver, sdp);
         }
       });
@@ -1438,7 +1693,7 @@ public class PeerConnectionClient2 {
 
     @Override
     public void onSetSuccess() {
-      executor.execute(() -> {
+      connectionExecutor.execute(() -> {
         if (peerConnection == null || isError) {
           return;
         }
@@ -1448,7 +1703,7 @@ public class PeerConnectionClient2 {
           if (peerConnection.getRemoteDescription() == null) {
             // We've just set our local SDP so time to send it.
             Log.d(TAG, "Local SDP set succesfully");
-            events.onLocalDescription(handleId, localSdp);
+            events.onLocalDescription(BigInteger.valueOf(handleId), localSdp);
           } else {
             // We've just set remote description, so drain remote
             // and send local ICE candidates.
@@ -1458,11 +1713,12 @@ public class PeerConnectionClient2 {
         } else {
           // For answering peer connection we set remote SDP and then
           // create answer and set local SDP.
-          if (peerConnection.getLocalDescription() != null) {
+          if (settingLocal) {
             // We've just set our local SDP so time to send it, drain
             // remote and send local ICE candidates.
+            settingLocal = false;
             Log.d(TAG, "Local SDP set succesfully");
-            events.onLocalDescription(handleId, localSdp);
+            events.onLocalDescription(BigInteger.valueOf(handleId), localSdp);
             drainCandidates(handleId);
           } else {
             // We've just set remote SDP - do nothing for now -
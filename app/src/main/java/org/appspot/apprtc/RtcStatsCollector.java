@@ -0,0 +1,234 @@
+package org.appspot.apprtc;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+import org.appspot.apprtc.util.LongHashMap;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+/**
+ * Turns the standard RTCStatsReport of each PeerConnection into a typed {@link Snapshot}:
+ * bitrates, frame rates and packet loss over the last polling interval, jitter, round trip
+ * time and the available bandwidth.
+ *
+ * <p>The cumulative counters of a handle are summed over its RTP streams into a fixed
+ * {@code long[]}, compared with the previous report and kept for the next one; a report is
+ * read through RTCStats.getMembers() lookups, nothing is parsed or copied into maps. The first
+ * report of a handle only primes its counters. Counters that go backwards (a stream went
+ * away) count as no traffic for that interval.
+ *
+ * <p>Thread safe.
+ */
+public class RtcStatsCollector {
+  // Cumulative counters, summed over the RTP streams of a handle. Package-private, like the
+  // Snapshot constructor, so that tests can build snapshots.
+  static final int AUDIO_BYTES_SENT = 0;
+  static final int VIDEO_BYTES_SENT = 1;
+  static final int AUDIO_BYTES_RECEIVED = 2;
+  static final int VIDEO_BYTES_RECEIVED = 3;
+  static final int FRAMES_ENCODED = 4;
+  static final int FRAMES_DECODED = 5;
+  static final int PACKETS_RECEIVED = 6;
+  static final int PACKETS_LOST = 7;
+  static final int COUNTERS = 8;
+
+  // Values of the current report only.
+  static final int JITTER_MS = 0;
+  static final int RTT_MS = 1;
+  static final int AVAILABLE_SEND_BPS = 2;
+  static final int AVAILABLE_RECV_BPS = 3;
+  static final int SEND_WIDTH = 4;
+  static final int SEND_HEIGHT = 5;
+  static final int RECV_WIDTH = 6;
+  static final int RECV_HEIGHT = 7;
+  static final int GAUGES = 8;
+
+  /**
+   * Quality of one PeerConnection over the last polling interval.
+   */
+  public static class Snapshot {
+    public final long handleId;
+    public final long timestampMs;
+    public final long intervalMs;
+    public final int sendAudioKbps;
+    public final int sendVideoKbps;
+    public final int recvAudioKbps;
+    public final int recvVideoKbps;
+    public final double sendFps;
+    public final double recvFps;
+    // Of the packets expected during the interval, audio and video.
+    public final double packetLossPercent;
+    // Largest of the inbound streams.
+    public final double jitterMs;
+    // Of the selected candidate pair, 0 until known.
+    public final double rttMs;
+    public final int availableSendKbps;
+    public final int availableRecvKbps;
+    public final int sendWidth;
+    public final int sendHeight;
+    // Largest of the remote video tracks.
+    public final int recvWidth;
+    public final int recvHeight;
+
+    Snapshot(long handleId, long timestampMs, long intervalMs, long[] deltas,
+        double[] gauges) {
+      double seconds = intervalMs / 1000.0;
+      this.handleId = handleId;
+      this.timestampMs = timestampMs;
+      this.intervalMs = intervalMs;
+      this.sendAudioKbps = kbps(deltas[AUDIO_BYTES_SENT], seconds);
+      this.sendVideoKbps = kbps(deltas[VIDEO_BYTES_SENT], seconds);
+      this.recvAudioKbps = kbps(deltas[AUDIO_BYTES_RECEIVED], seconds);
+      this.recvVideoKbps = kbps(deltas[VIDEO_BYTES_RECEIVED], seconds);
+      this.sendFps = deltas[FRAMES_ENCODED] / seconds;
+      this.recvFps = deltas[FRAMES_DECODED] / seconds;
+      long expected = deltas[PACKETS_RECEIVED] + deltas[PACKETS_LOST];
+      this.packetLossPercent = expected == 0 ? 0 : 100.0 * deltas[PACKETS_LOST] / expected;
+      this.jitterMs = gauges[JITTER_MS];
+      this.rttMs = gauges[RTT_MS];
+      this.availableSendKbps = (int) (gauges[AVAILABLE_SEND_BPS] / 1000);
+      this.availableRecvKbps = (int) (gauges[AVAILABLE_RECV_BPS] / 1000);
+      this.sendWidth = (int) gauges[SEND_WIDTH];
+      this.sendHeight = (int) gauges[SEND_HEIGHT];
+      this.recvWidth = (int) gauges[RECV_WIDTH];
+      this.recvHeight = (int) gauges[RECV_HEIGHT];
+    }
+
+    public boolean isSending() {
+      return sendAudioKbps > 0 || sendVideoKbps > 0;
+    }
+
+    private static int kbps(long bytes, double seconds) {
+      return (int) (bytes * 8 / seconds / 1000);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US,
+          "%s send %d+%d kbps %.0f fps %dx%d recv %d+%d kbps %.0f fps %dx%d "
+              + "loss %.1f%% jitter %.0f rtt %.0f bwe %d/%d",
+          handleId, sendVideoKbps, sendAudioKbps, sendFps, sendWidth, sendHeight, recvVideoKbps,
+          recvAudioKbps, recvFps, recvWidth, recvHeight, packetLossPercent, jitterMs, rttMs,
+          availableSendKbps, availableRecvKbps);
+    }
+  }
+
+  private static class HandleState {
+    long[] counters = new long[COUNTERS];
+    // The counters of the report being read, swapped with |counters| afterwards.
+    long[] current = new long[COUNTERS];
+    final long[] deltas = new long[COUNTERS];
+    final double[] gauges = new double[GAUGES];
+    long timestampUs;
+  }
+
+  private final LongHashMap<HandleState> states = new LongHashMap<>();
+
+  // Returns the quality of |handleId| since its previous report, null for its first one.
+  @Nullable
+  public synchronized Snapshot update(long handleId, RTCStatsReport report) {
+    HandleState state = states.get(handleId);
+    if (state == null) {
+      state = new HandleState();
+      states.put(handleId, state);
+    }
+    long[] current = state.current;
+    double[] gauges = state.gauges;
+    Arrays.fill(current, 0);
+    Arrays.fill(gauges, 0);
+    for (RTCStats stats : report.getStatsMap().values()) {
+      Map<String, Object> members = stats.getMembers();
+      switch (stats.getType()) {
+        case "outbound-rtp":
+          if (isVideo(members)) {
+            current[VIDEO_BYTES_SENT] += longMember(members, "bytesSent");
+            current[FRAMES_ENCODED] += longMember(members, "framesEncoded");
+          } else {
+            current[AUDIO_BYTES_SENT] += longMember(members, "bytesSent");
+          }
+          break;
+        case "inbound-rtp":
+          if (isVideo(members)) {
+            current[VIDEO_BYTES_RECEIVED] += longMember(members, "bytesReceived");
+            current[FRAMES_DECODED] += longMember(members, "framesDecoded");
+          } else {
+            current[AUDIO_BYTES_RECEIVED] += longMember(members, "bytesReceived");
+          }
+          current[PACKETS_RECEIVED] += longMember(members, "packetsReceived");
+          current[PACKETS_LOST] += Math.max(0, longMember(members, "packetsLost"));
+          gauges[JITTER_MS] = Math.max(gauges[JITTER_MS], doubleMember(members, "jitter") * 1000);
+          break;
+        case "candidate-pair":
+          if (Boolean.TRUE.equals(members.get("nominated"))
+              && "succeeded".equals(members.get("state"))) {
+            gauges[RTT_MS] = doubleMember(members, "currentRoundTripTime") * 1000;
+            gauges[AVAILABLE_SEND_BPS] = doubleMember(members, "availableOutgoingBitrate");
+            gauges[AVAILABLE_RECV_BPS] = doubleMember(members, "availableIncomingBitrate");
+          }
+          break;
+        case "track":
+          if (!isVideo(members)) {
+            break;
+          }
+          if (Boolean.TRUE.equals(members.get("remoteSource"))) {
+            long width = longMember(members, "frameWidth");
+            if (width > gauges[RECV_WIDTH]) {
+              gauges[RECV_WIDTH] = width;
+              gauges[RECV_HEIGHT] = longMember(members, "frameHeight");
+            }
+          } else {
+            gauges[SEND_WIDTH] = longMember(members, "frameWidth");
+            gauges[SEND_HEIGHT] = longMember(members, "frameHeight");
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    long timestampUs = (long) report.getTimestampUs();
+    long previousUs = state.timestampUs;
+    long[] previous = state.counters;
+    state.counters = current;
+    state.current = previous;
+    state.timestampUs = timestampUs;
+    long intervalMs = (timestampUs - previousUs) / 1000;
+    if (previousUs == 0 || intervalMs <= 0) {
+      return null;
+    }
+    for (int i = 0; i < COUNTERS; i++) {
+      state.deltas[i] = Math.max(0, current[i] - previous[i]);
+    }
+    return new Snapshot(handleId, timestampUs / 1000, intervalMs, state.deltas, gauges);
+  }
+
+  public synchronized void remove(long handleId) {
+    states.remove(handleId);
+  }
+
+  public synchronized void clear() {
+    states.clear();
+  }
+
+  private static boolean isVideo(Map<String, Object> members) {
+    Object kind = members.get("kind");
+    if (kind == null) {
+      // Older native stats.
+      kind = members.get("mediaType");
+    }
+    return "video".equals(kind);
+  }
+
+  private static long longMember(Map<String, Object> members, String name) {
+    Object value = members.get(name);
+    return value instanceof Number ? ((Number) value).longValue() : 0;
+  }
+
+  private static double doubleMember(Map<String, Object> members, String name) {
+    Object value = members.get(name);
+    return value instanceof Number ? ((Number) value).doubleValue() : 0;
+  }
+}
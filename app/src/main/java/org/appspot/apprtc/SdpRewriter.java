@@ -0,0 +1,399 @@
+package org.appspot.apprtc;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Rewrites session descriptions: codec preference, start and max bitrate, fmtp parameters and
+ * legacy (SSRC group) simulcast.
+ *
+ * <p>The edits are configured once and then applied to any number of descriptions. Each
+ * rewrite() parses the SDP once into its lines and an index of the media sections (rtpmap,
+ * fmtp, ssrc and bandwidth lines per section), applies every edit to that model and
+ * serializes once. Lines are never moved while editing: edits replace or drop lines in place
+ * and attach new lines after existing ones, so the index stays valid for the next edit. No
+ * regular expressions are involved.
+ *
+ * <p>Configure on one thread, rewrite() is then thread safe.
+ */
+public class SdpRewriter {
+  private static final String TAG = "SdpRewriter";
+
+  private interface Edit {
+    void apply(Sdp sdp);
+  }
+
+  private final List<Edit> edits = new ArrayList<>();
+  private final Random random = new Random();
+
+  // Moves the payload types of |codec| to the front of every audio or video m-line.
+  public SdpRewriter preferCodec(final String codec, final boolean isAudio) {
+    edits.add(sdp -> {
+      boolean found = false;
+      for (Media media : sdp.media) {
+        if (media.isAudio == isAudio) {
+          found |= preferCodec(sdp, media, codec);
+        }
+      }
+      if (!found) {
+        Log.w(TAG, "No payload types with name " + codec);
+      }
+    });
+    return this;
+  }
+
+  // Sets x-google-start-bitrate of a video codec, or maxaveragebitrate of an audio codec.
+  public SdpRewriter setStartBitrate(String codec, boolean isVideoCodec, int bitrateKbps) {
+    if (isVideoCodec) {
+      return setFmtpParameter(
+          codec, false, "x-google-start-bitrate", Integer.toString(bitrateKbps));
+    }
+    return setFmtpParameter(codec, true, "maxaveragebitrate", Integer.toString(bitrateKbps * 1000));
+  }
+
+  // Sets |name|=|value| on the fmtp line of every payload type of |codec|, adding the line if
+  // there is none.
+  public SdpRewriter setFmtpParameter(
+      final String codec, final boolean isAudio, final String name, final String value) {
+    edits.add(sdp -> {
+      for (Media media : sdp.media) {
+        if (media.isAudio != isAudio) {
+          continue;
+        }
+        for (int i = 0; i < media.payloadTypes.size(); i++) {
+          if (codec.equalsIgnoreCase(media.encodings.get(i))) {
+            setFmtpParameter(sdp, media, i, name, value);
+          }
+        }
+      }
+    });
+    return this;
+  }
+
+  // Caps the bandwidth of every audio or video section with a b=AS line.
+  public SdpRewriter setMaxBitrate(final boolean isAudio, final int bitrateKbps) {
+    edits.add(sdp -> {
+      String bandwidth = "b=AS:" + bitrateKbps;
+      for (Media media : sdp.media) {
+        if (media.isAudio != isAudio) {
+          continue;
+        }
+        if (media.bandwidthLine >= 0) {
+          sdp.lines.set(media.bandwidthLine, bandwidth);
+        } else {
+          // b= follows the c= line of the section, if any.
+          sdp.addAfter(media.connectionLine >= 0 ? media.connectionLine : media.mLine, bandwidth);
+        }
+      }
+    });
+    return this;
+  }
+
+  // Splits the first sending video track into |layers| SSRCs grouped as SIM, each with its
+  // own RTX SSRC if the track has one. For local offers of a publisher.
+  public SdpRewriter enableSimulcast(final int layers) {
+    edits.add(sdp -> {
+      for (Media media : sdp.media) {
+        if (!media.isAudio && !media.ssrcLines.isEmpty()) {
+          enableSimulcast(sdp, media, layers);
+          return;
+        }
+      }
+      Log.w(TAG, "No video SSRC, can't enable simulcast");
+    });
+    return this;
+  }
+
+  public boolean isEmpty() {
+    return edits.isEmpty();
+  }
+
+  public String rewrite(String description) {
+    if (edits.isEmpty()) {
+      return description;
+    }
+    Sdp sdp = new Sdp(description);
+    for (Edit edit : edits) {
+      edit.apply(sdp);
+    }
+    return sdp.toString();
+  }
+
+  // ----------------------------------------------------------------------------
+  // Edits
+  // ----------------------------------------------------------------------------
+  private static boolean preferCodec(Sdp sdp, Media media, String codec) {
+    List<String> preferred = new ArrayList<>();
+    for (int i = 0; i < media.payloadTypes.size(); i++) {
+      if (codec.equalsIgnoreCase(media.encodings.get(i))) {
+        preferred.add(media.payloadTypes.get(i));
+      }
+    }
+    if (preferred.isEmpty()) {
+      return false;
+    }
+
+    // m=<media> <port> <proto> <fmt> ...
+    String[] parts = sdp.lines.get(media.mLine).split(" ");
+    if (parts.length <= 3) {
+      Log.e(TAG, "Wrong SDP media description format: " + sdp.lines.get(media.mLine));
+      return true;
+    }
+    StringBuilder mLine = new StringBuilder(sdp.lines.get(media.mLine).length());
+    mLine.append(parts[0]).append(' ').append(parts[1]).append(' ').append(parts[2]);
+    for (String payloadType : preferred) {
+      mLine.append(' ').append(payloadType);
+    }
+    for (int i = 3; i < parts.length; i++) {
+      if (!preferred.contains(parts[i])) {
+        mLine.append(' ').append(parts[i]);
+      }
+    }
+    sdp.lines.set(media.mLine, mLine.toString());
+    return true;
+  }
+
+  private static void setFmtpParameter(
+      Sdp sdp, Media media, int index, String name, String value) {
+    String payloadType = media.payloadTypes.get(index);
+    Integer fmtpLine = media.fmtpLines.get(payloadType);
+    if (fmtpLine == null) {
+      media.fmtpLines.put(payloadType, sdp.addAfter(media.rtpmapLines.get(index),
+          "a=fmtp:" + payloadType + " " + name + "=" + value));
+      return;
+    }
+
+    // a=fmtp:<payload type> <name>=<value>;<name>=<value>...
+    String line = sdp.lines.get(fmtpLine);
+    int parametersStart = line.indexOf(' ');
+    if (parametersStart < 0) {
+      sdp.lines.set(fmtpLine, line + " " + name + "=" + value);
+      return;
+    }
+    StringBuilder updated = new StringBuilder(line.length() + name.length() + value.length() + 2);
+    updated.append(line, 0, parametersStart + 1);
+    boolean replaced = false;
+    int start = parametersStart + 1;
+    while (start <= line.length()) {
+      int end = line.indexOf(';', start);
+      if (end < 0) {
+        end = line.length();
+      }
+      String parameter = line.substring(start, end).trim();
+      if (!parameter.isEmpty()) {
+        if (updated.length() > parametersStart + 1) {
+          updated.append(';');
+        }
+        if (parameter.startsWith(name + "=")) {
+          updated.append(name).append('=').append(value);
+          replaced = true;
+        } else {
+          updated.append(parameter);
+        }
+      }
+      start = end + 1;
+    }
+    if (!replaced) {
+      if (updated.length() > parametersStart + 1) {
+        updated.append(';');
+      }
+      updated.append(name).append('=').append(value);
+    }
+    sdp.lines.set(fmtpLine, updated.toString());
+  }
+
+  private void enableSimulcast(Sdp sdp, Media media, int layers) {
+    // The sending track: the FID (RTX) group if there is one, else the first SSRC.
+    String primary = null;
+    String rtx = null;
+    for (int line : media.ssrcGroupLines) {
+      String[] parts = sdp.lines.get(line).split(" ");
+      if (parts[0].equals("a=ssrc-group:FID") && parts.length == 3) {
+        primary = parts[1];
+        rtx = parts[2];
+        break;
+      }
+    }
+    if (primary == null) {
+      String first = sdp.lines.get(media.ssrcLines.get(0));
+      int end = first.indexOf(' ');
+      primary = first.substring("a=ssrc:".length(), end < 0 ? first.length() : end);
+    }
+
+    // cname, msid... of the track, copied to every layer.
+    List<String> attributes = new ArrayList<>();
+    for (int line : media.ssrcLines) {
+      String text = sdp.lines.get(line);
+      if (text.startsWith("a=ssrc:" + primary + " ")) {
+        attributes.add(text.substring(("a=ssrc:" + primary).length()));
+      }
+    }
+
+    String[] ssrcs = new String[layers];
+    String[] rtxSsrcs = new String[layers];
+    ssrcs[0] = primary;
+    rtxSsrcs[0] = rtx;
+    for (int i = 1; i < layers; i++) {
+      ssrcs[i] = newSsrc();
+      rtxSsrcs[i] = rtx != null ? newSsrc() : null;
+    }
+
+    int last = media.ssrcLines.get(media.ssrcLines.size() - 1);
+    for (int line : media.ssrcGroupLines) {
+      last = Math.max(last, line);
+      sdp.lines.set(line, null);
+    }
+    for (int line : media.ssrcLines) {
+      sdp.lines.set(line, null);
+    }
+
+    StringBuilder group = new StringBuilder("a=ssrc-group:SIM");
+    for (String ssrc : ssrcs) {
+      group.append(' ').append(ssrc);
+    }
+    sdp.addAfter(last, group.toString());
+    for (int i = 0; i < layers; i++) {
+      for (String attribute : attributes) {
+        sdp.addAfter(last, "a=ssrc:" + ssrcs[i] + attribute);
+      }
+      if (rtxSsrcs[i] != null) {
+        for (String attribute : attributes) {
+          sdp.addAfter(last, "a=ssrc:" + rtxSsrcs[i] + attribute);
+        }
+        sdp.addAfter(last, "a=ssrc-group:FID " + ssrcs[i] + " " + rtxSsrcs[i]);
+      }
+    }
+  }
+
+  private String newSsrc() {
+    long ssrc;
+    do {
+      ssrc = random.nextInt() & 0xffffffffL;
+    } while (ssrc == 0);
+    return Long.toString(ssrc);
+  }
+
+  // ----------------------------------------------------------------------------
+  // Model
+  // ----------------------------------------------------------------------------
+  private static class Media {
+    final boolean isAudio;
+    final int mLine;
+    int connectionLine = -1;
+    int bandwidthLine = -1;
+    // Payload types in rtpmap order, with their encoding name and rtpmap line.
+    final List<String> payloadTypes = new ArrayList<>();
+    final List<String> encodings = new ArrayList<>();
+    final List<Integer> rtpmapLines = new ArrayList<>();
+    final HashMap<String, Integer> fmtpLines = new HashMap<>();
+    final List<Integer> ssrcLines = new ArrayList<>();
+    final List<Integer> ssrcGroupLines = new ArrayList<>();
+
+    Media(boolean isAudio, int mLine) {
+      this.isAudio = isAudio;
+      this.mLine = mLine;
+    }
+  }
+
+  private static class Sdp {
+    // Parsed lines, then added lines. Dropped lines are null.
+    final List<String> lines = new ArrayList<>();
+    final List<Media> media = new ArrayList<>();
+    int parsedLines;
+    // Indexes of the lines added after a line, by the index of that line.
+    final HashMap<Integer, List<Integer>> added = new HashMap<>();
+    int length;
+
+    Sdp(String description) {
+      length = description.length();
+      Media current = null;
+      int start = 0;
+      while (start < description.length()) {
+        int end = description.indexOf('\n', start);
+        if (end < 0) {
+          end = description.length();
+        }
+        int lineEnd = end > start && description.charAt(end - 1) == '\r' ? end - 1 : end;
+        String line = description.substring(start, lineEnd);
+        start = end + 1;
+        if (line.isEmpty()) {
+          continue;
+        }
+        int index = lines.size();
+        lines.add(line);
+
+        if (line.startsWith("m=")) {
+          boolean isAudio = line.startsWith("m=audio ");
+          current = line.startsWith("m=video ") || isAudio ? new Media(isAudio, index) : null;
+          if (current != null) {
+            media.add(current);
+          }
+        } else if (current == null) {
+          continue;
+        } else if (line.startsWith("a=rtpmap:")) {
+          // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+          int space = line.indexOf(' ');
+          int slash = line.indexOf('/', space + 1);
+          if (space > 0 && slash > space) {
+            current.payloadTypes.add(line.substring("a=rtpmap:".length(), space));
+            current.encodings.add(line.substring(space + 1, slash));
+            current.rtpmapLines.add(index);
+          }
+        } else if (line.startsWith("a=fmtp:")) {
+          int space = line.indexOf(' ');
+          current.fmtpLines.put(
+              line.substring("a=fmtp:".length(), space < 0 ? line.length() : space), index);
+        } else if (line.startsWith("a=ssrc:")) {
+          current.ssrcLines.add(index);
+        } else if (line.startsWith("a=ssrc-group:")) {
+          current.ssrcGroupLines.add(index);
+        } else if (line.startsWith("c=")) {
+          current.connectionLine = index;
+        } else if (line.startsWith("b=AS:")) {
+          current.bandwidthLine = index;
+        }
+      }
+      parsedLines = lines.size();
+    }
+
+    // Adds |line| after the line at |index| and the lines added there before, returns the
+    // index of the new line.
+    int addAfter(int index, String line) {
+      List<Integer> following = added.get(index);
+      if (following == null) {
+        following = new ArrayList<>(2);
+        added.put(index, following);
+      }
+      following.add(lines.size());
+      lines.add(line);
+      length += line.length() + 2;
+      return lines.size() - 1;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder description = new StringBuilder(length + 2 * lines.size());
+      for (int i = 0; i < parsedLines; i++) {
+        append(description, i);
+      }
+      return description.toString();
+    }
+
+    private void append(StringBuilder description, int index) {
+      String line = lines.get(index);
+      if (line != null) {
+        description.append(line).append("\r\n");
+      }
+      List<Integer> following = added.get(index);
+      if (following != null) {
+        for (int addedIndex : following) {
+          append(description, addedIndex);
+        }
+      }
+    }
+  }
+}
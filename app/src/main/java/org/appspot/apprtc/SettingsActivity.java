@@ -63,6 +63,7 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
   private String keyprefNegotiated;
   private String keyprefDataId;
   private String keyprefUseLegacyAudioDevice;
+  private String keyprefMultistream;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -107,6 +108,7 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     keyPrefTracing = getString(R.string.pref_tracing_key);
     keyprefEnabledRtcEventLog = getString(R.string.pref_enable_rtceventlog_key);
     keyprefUseLegacyAudioDevice = getString(R.string.pref_use_legacy_audio_device_key);
+    keyprefMultistream = getString(R.string.pref_multistream_key);
 
     // Display the fragment as the main content.
     settingsFragment = new SettingsFragment();
@@ -165,6 +167,7 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
     updateSummaryB(sharedPreferences, keyPrefTracing);
     updateSummaryB(sharedPreferences, keyprefEnabledRtcEventLog);
     updateSummaryB(sharedPreferences, keyprefUseLegacyAudioDevice);
+    updateSummaryB(sharedPreferences, keyprefMultistream);
 
     if (!Camera2Enumerator.isSupported(this)) {
       Preference camera2Preference = settingsFragment.findPreference(keyprefCamera2);
@@ -243,7 +246,8 @@ public class SettingsActivity extends Activity implements OnSharedPreferenceChan
         || key.equals(keyprefOrdered)
         || key.equals(keyprefNegotiated)
         || key.equals(keyprefEnabledRtcEventLog)
-        || key.equals(keyprefUseLegacyAudioDevice)) {
+        || key.equals(keyprefUseLegacyAudioDevice)
+        || key.equals(keyprefMultistream)) {
       updateSummaryB(sharedPreferences, key);
     } else if (key.equals(keyprefSpeakerphone)) {
       updateSummaryList(sharedPreferences, key);
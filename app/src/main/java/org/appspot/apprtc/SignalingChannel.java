@@ -0,0 +1,27 @@
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.WebSocketChannelClient.WebSocketConnectionState;
+
+/**
+ * Message channel to the Janus server, a WebSocket or the Janus HTTP API.
+ *
+ * <p>All methods must be called on the serial executor the channel was created with, the
+ * {@link WebSocketChannelClient.WebSocketChannelEvents} are dispatched on it too.
+ */
+public interface SignalingChannel {
+    void connect(String url, String[] subProtocols);
+
+    void send(String message);
+
+    void disconnect(boolean waitForComplete);
+
+    WebSocketConnectionState getState();
+
+    // Tells the channel the session created or claimed on the server.
+    default void setSessionId(long sessionId) {}
+
+    // Whether the session has to be kept alive with keepalive requests while idle.
+    default boolean needsKeepAlive() {
+        return true;
+    }
+}
@@ -0,0 +1,202 @@
+package org.appspot.apprtc;
+
+import org.appspot.apprtc.util.LongHashMap;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Picks the simulcast substream and temporal layer Janus forwards for each remote feed, from
+ * the size the feed is rendered at and the state of the downlink.
+ *
+ * <p>The rendered height selects the smallest substream that still covers it; a thumbnail
+ * also gets a lower frame rate and a feed that is not on screen the lowest layers. On top
+ * of that each subscriber PeerConnection has a congestion level, every level one substream
+ * (and once at the lowest, one temporal layer) less for all of its feeds. A level is added
+ * after {@link #CONGESTED_TICKS} stats reports in a row with heavy packet loss or with the
+ * estimated downlink below what the feeds need, and removed only after
+ * {@link #CLEAR_TICKS} clean reports with room for the higher layers to spare, so the
+ * layers do not flap.
+ *
+ * <p>A feed is a subscriber handle, or in multistream mode one m-line of the subscriber
+ * handle. Layers are only sent to Janus when they change. UI thread only.
+ */
+public class SubscriberQualityManager {
+    // Smallest rendered height in pixels that a substream is worth receiving for; the
+    // typical three layer simulcast sends 1/4, 1/2 and full resolution of 720p.
+    private static final int[] SUBSTREAM_MIN_HEIGHT = {0, 200, 400};
+    // Rough bitrate of each substream at full frame rate.
+    private static final int[] SUBSTREAM_KBPS = {150, 500, 1500};
+    private static final int MAX_TEMPORAL = 2;
+    private static final int THUMBNAIL_TEMPORAL = 1;
+    private static final int MAX_CONGESTION = SUBSTREAM_KBPS.length - 1 + MAX_TEMPORAL;
+
+    private static final double LOSS_CONGESTED_PERCENT = 5;
+    private static final double LOSS_CLEAR_PERCENT = 1;
+    // The downlink must fit the next higher layers with this much to spare to go up.
+    private static final double CLEAR_HEADROOM = 1.25;
+    private static final int CONGESTED_TICKS = 2;
+    private static final int CLEAR_TICKS = 5;
+
+    public interface Events {
+        // Forward |substream| and |temporal| of the feed on |handleId| (m-line |mid|, if any).
+        void onConfigureSubscriber(BigInteger handleId, @Nullable String mid, int substream, int temporal);
+    }
+
+    private static class Feed {
+        final long handleId;
+        final String mid;
+        int renderHeight;
+        // Last sent to Janus, -1 before the first configure.
+        int substream = -1;
+        int temporal = -1;
+
+        Feed(long handleId, String mid) {
+            this.handleId = handleId;
+            this.mid = mid;
+        }
+    }
+
+    // Downlink state of one subscriber PeerConnection.
+    private static class Link {
+        int congestion;
+        int congestedTicks;
+        int clearTicks;
+    }
+
+    private final Events events;
+    // By feed id: the subscriber handle id, or the multistream feed id.
+    private final LongHashMap<Feed> feeds = new LongHashMap<>();
+    private final LongHashMap<Link> links = new LongHashMap<>();
+    private final List<Feed> linkFeeds = new ArrayList<>();
+
+    public SubscriberQualityManager(Events events) {
+        this.events = events;
+    }
+
+    // Starts managing |feedId|, received on |handleId| (m-line |mid| in multistream mode).
+    public void addFeed(BigInteger feedId, BigInteger handleId, @Nullable String mid) {
+        long id = feedId.longValue();
+        long handle = handleId.longValue();
+        if (feeds.containsKey(id)) {
+            return;
+        }
+        feeds.put(id, new Feed(handle, mid));
+        if (!links.containsKey(handle)) {
+            links.put(handle, new Link());
+        }
+    }
+
+    public void removeFeed(BigInteger feedId) {
+        Feed feed = feeds.remove(feedId.longValue());
+        if (feed == null) {
+            return;
+        }
+        for (Feed other : feeds.values()) {
+            if (other.handleId == feed.handleId) {
+                return;
+            }
+        }
+        links.remove(feed.handleId);
+    }
+
+    // |feedId| is rendered |height| pixels high, 0 if it is not on screen.
+    public void setRenderHeight(BigInteger feedId, int height) {
+        Feed feed = feeds.get(feedId.longValue());
+        if (feed == null || feed.renderHeight == height) {
+            return;
+        }
+        feed.renderHeight = height;
+        apply(feed, links.get(feed.handleId).congestion);
+    }
+
+    // Stats of a subscriber PeerConnection, moves its congestion level.
+    public void onStats(RtcStatsCollector.Snapshot stats) {
+        Link link = links.get(stats.handleId);
+        if (link == null) {
+            return;
+        }
+        for (Feed feed : feeds.values()) {
+            if (feed.handleId == stats.handleId) {
+                linkFeeds.add(feed);
+            }
+        }
+
+        int budgetKbps = stats.availableRecvKbps;
+        boolean congested = stats.packetLossPercent >= LOSS_CONGESTED_PERCENT
+                || (budgetKbps > 0 && neededKbps(link.congestion) > budgetKbps);
+        boolean clear = stats.packetLossPercent < LOSS_CLEAR_PERCENT
+                && (budgetKbps == 0 || neededKbps(link.congestion - 1) * CLEAR_HEADROOM <= budgetKbps);
+        if (congested) {
+            link.clearTicks = 0;
+            if (++link.congestedTicks >= CONGESTED_TICKS && link.congestion < MAX_CONGESTION) {
+                link.congestion++;
+                link.congestedTicks = 0;
+            }
+        } else if (clear && link.congestion > 0) {
+            link.congestedTicks = 0;
+            if (++link.clearTicks >= CLEAR_TICKS) {
+                link.congestion--;
+                link.clearTicks = 0;
+            }
+        } else {
+            link.congestedTicks = 0;
+            link.clearTicks = 0;
+        }
+
+        for (Feed feed : linkFeeds) {
+            apply(feed, link.congestion);
+        }
+        linkFeeds.clear();
+    }
+
+    // Sends the layers of |feed| at |congestion| if they changed.
+    private void apply(Feed feed, int congestion) {
+        int substream = substream(feed, congestion);
+        int temporal = temporal(feed, congestion);
+        if (substream == feed.substream && temporal == feed.temporal) {
+            return;
+        }
+        feed.substream = substream;
+        feed.temporal = temporal;
+        events.onConfigureSubscriber(BigInteger.valueOf(feed.handleId), feed.mid, substream, temporal);
+    }
+
+    // Downlink the feeds of the current stats report need at |congestion|.
+    private int neededKbps(int congestion) {
+        congestion = Math.max(0, congestion);
+        int kbps = 0;
+        for (Feed feed : linkFeeds) {
+            int temporal = temporal(feed, congestion);
+            // Each temporal layer down halves the frame rate, roughly a third less bitrate.
+            kbps += SUBSTREAM_KBPS[substream(feed, congestion)] * (temporal + 1) / (MAX_TEMPORAL + 1);
+        }
+        return kbps;
+    }
+
+    private static int sizeSubstream(Feed feed) {
+        int substream = 0;
+        while (substream + 1 < SUBSTREAM_MIN_HEIGHT.length
+                && feed.renderHeight >= SUBSTREAM_MIN_HEIGHT[substream + 1]) {
+            substream++;
+        }
+        return substream;
+    }
+
+    private static int substream(Feed feed, int congestion) {
+        return Math.max(0, sizeSubstream(feed) - congestion);
+    }
+
+    private static int temporal(Feed feed, int congestion) {
+        if (feed.renderHeight == 0) {
+            return 0;
+        }
+        int sizeSubstream = sizeSubstream(feed);
+        int temporal = sizeSubstream == 0 ? THUMBNAIL_TEMPORAL : MAX_TEMPORAL;
+        // Congestion beyond the lowest substream takes frame rate.
+        return Math.max(0, temporal - Math.max(0, congestion - sizeSubstream));
+    }
+}
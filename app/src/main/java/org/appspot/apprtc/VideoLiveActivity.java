@@ -49,7 +49,6 @@ import org.webrtc.PeerConnectionFactory;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.ScreenCapturerAndroid;
 import org.webrtc.SessionDescription;
-import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
 
@@ -474,6 +473,9 @@ public class VideoLiveActivity extends Activity implements PeerConnectionClient2
         if (PeerConnectionClient2 != null && !screencaptureEnabled) {
             PeerConnectionClient2.stopVideoSource();
         }
+        if (PeerConnectionClient2 != null) {
+            PeerConnectionClient2.setStatsForeground(false);
+        }
         if (cpuMonitor != null) {
             cpuMonitor.pause();
         }
@@ -487,6 +489,9 @@ public class VideoLiveActivity extends Activity implements PeerConnectionClient2
         if (PeerConnectionClient2 != null && !screencaptureEnabled) {
             PeerConnectionClient2.startVideoSource();
         }
+        if (PeerConnectionClient2 != null) {
+            PeerConnectionClient2.setStatsForeground(true);
+        }
         if (cpuMonitor != null) {
             cpuMonitor.resume();
         }
@@ -561,6 +566,10 @@ public class VideoLiveActivity extends Activity implements PeerConnectionClient2
             ft.hide(callFragment);
             ft.hide(hudFragment);
         }
+        if (PeerConnectionClient2 != null) {
+            PeerConnectionClient2.setStatsHudVisible(callControlFragmentVisible
+                    && getIntent().getBooleanExtra(EXTRA_DISPLAY_HUD, false));
+        }
         ft.setTransition(FragmentTransaction.TRANSIT_FRAGMENT_FADE);
         ft.commit();
     }
@@ -603,7 +612,9 @@ public class VideoLiveActivity extends Activity implements PeerConnectionClient2
             return;
         }
         // Enable statistics callback.
-        //PeerConnectionClient2.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
+        PeerConnectionClient2.setStatsHudVisible(callControlFragmentVisible
+                && getIntent().getBooleanExtra(EXTRA_DISPLAY_HUD, false));
+        PeerConnectionClient2.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
         //setSwappedFeeds(false /* isSwappedFeeds */);
     }
 
@@ -885,7 +896,7 @@ public class VideoLiveActivity extends Activity implements PeerConnectionClient2
             public void run() {
                 logAndToast("ICE connected, delay=" + delta + "ms");
                 iceConnected = true;
-                //callConnected();
+                callConnected();
             }
         });
     }
@@ -906,12 +917,12 @@ public class VideoLiveActivity extends Activity implements PeerConnectionClient2
     public void onPeerConnectionClosed(final BigInteger handleId) {}
 
     @Override
-    public void onPeerConnectionStatsReady(final BigInteger handleId, final StatsReport[] reports) {
+    public void onPeerConnectionStatsReady(final BigInteger handleId, final RtcStatsCollector.Snapshot stats) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
                 if (!isError && iceConnected) {
-                    hudFragment.updateEncoderStatistics(reports);
+                    hudFragment.updateConnectionStatistics(stats);
                 }
             }
         });
@@ -1015,6 +1026,7 @@ public class VideoLiveActivity extends Activity implements PeerConnectionClient2
             }
             PeerConnectionClient2.setVideoRender(handleId, null);
             PeerConnectionClient2.dispose(handleId);
+            hudFragment.removeConnectionStatistics(handleId);
             removeClickListener(index);
 
             SurfaceViewRenderer renderer = surfaceViewRenderers.get(index);
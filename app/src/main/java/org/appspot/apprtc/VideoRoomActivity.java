@@ -66,7 +66,6 @@ import org.webrtc.PeerConnectionFactory;
 import org.webrtc.RendererCommon.ScalingType;
 import org.webrtc.ScreenCapturerAndroid;
 import org.webrtc.SessionDescription;
-import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoFileRenderer;
@@ -140,6 +139,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     public static final String EXTRA_ENABLE_RTCEVENTLOG = "org.appspot.apprtc.ENABLE_RTCEVENTLOG";
     public static final String EXTRA_USE_LEGACY_AUDIO_DEVICE =
             "org.appspot.apprtc.USE_LEGACY_AUDIO_DEVICE";
+    public static final String EXTRA_MULTISTREAM = "org.appspot.apprtc.MULTISTREAM";
 
     private static final int CAPTURE_PERMISSION_REQUEST_CODE = 1;
 
@@ -167,6 +167,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     private PeerConnectionClient2 PeerConnectionClient2 = null;
     @Nullable
     private VideoRoomClient videoRoomClient = null;
+    private SubscriberQualityManager qualityManager;
     @Nullable
     private AppRTCAudioManager audioManager = null;
 
@@ -198,6 +199,8 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     private final Vector<BigInteger> positionVector = new Vector<>();
 
     private BigInteger localHandleId = BigInteger.ZERO;
+    // Remote feeds share one subscriber PeerConnection, their renderers are keyed by feed id.
+    private boolean multistream;
 
     @Override
     // TODO(bugs.webrtc.org/8580): LayoutParams.FLAG_TURN_SCREEN_ON and
@@ -335,12 +338,22 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
                         intent.getBooleanExtra(EXTRA_ENABLE_RTCEVENTLOG, false),
                         intent.getBooleanExtra(EXTRA_USE_LEGACY_AUDIO_DEVICE, false), dataChannelParameters);
         commandLineRun = intent.getBooleanExtra(EXTRA_CMDLINE, false);
+        multistream = intent.getBooleanExtra(EXTRA_MULTISTREAM, false);
         int runTimeMs = intent.getIntExtra(EXTRA_RUNTIME, 0);
 
         Log.d(TAG, "VIDEO_FILE: '" + intent.getStringExtra(EXTRA_VIDEO_FILE_AS_CAMERA) + "'");
 
         //Create connection client.Use videoRoomClient to connect to Janus Webrtc Gateway.
         videoRoomClient = new VideoRoomClient(this);
+        // Simulcast layers of the remote feeds, by their size on screen and the downlink.
+        qualityManager = new SubscriberQualityManager(new SubscriberQualityManager.Events() {
+            @Override
+            public void onConfigureSubscriber(BigInteger handleId, String mid, int substream, int temporal) {
+                if (videoRoomClient != null) {
+                    videoRoomClient.configureSubscriber(handleId, mid, substream, temporal);
+                }
+            }
+        });
 
         // Create connection parameters.
         String urlParameters = intent.getStringExtra(EXTRA_URLPARAMETERS);
@@ -491,6 +504,9 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         if (PeerConnectionClient2 != null && !screencaptureEnabled) {
             PeerConnectionClient2.stopVideoSource();
         }
+        if (PeerConnectionClient2 != null) {
+            PeerConnectionClient2.setStatsForeground(false);
+        }
         if (cpuMonitor != null) {
             cpuMonitor.pause();
         }
@@ -504,6 +520,9 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         if (PeerConnectionClient2 != null && !screencaptureEnabled) {
             PeerConnectionClient2.startVideoSource();
         }
+        if (PeerConnectionClient2 != null) {
+            PeerConnectionClient2.setStatsForeground(true);
+        }
         if (cpuMonitor != null) {
             cpuMonitor.resume();
         }
@@ -578,6 +597,10 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
             ft.hide(callFragment);
             ft.hide(hudFragment);
         }
+        if (PeerConnectionClient2 != null) {
+            PeerConnectionClient2.setStatsHudVisible(callControlFragmentVisible
+                    && getIntent().getBooleanExtra(EXTRA_DISPLAY_HUD, false));
+        }
         ft.setTransition(FragmentTransaction.TRANSIT_FRAGMENT_FADE);
         ft.commit();
     }
@@ -589,7 +612,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         }
         callStartedTimeMs = System.currentTimeMillis();
 
-        JanusConnectionParameters connectionParameters = new JanusConnectionParameters(roomUrl, roomId, userId, maxVideoRoomUsers);
+        JanusConnectionParameters connectionParameters = new JanusConnectionParameters(roomUrl, roomId, userId, maxVideoRoomUsers, multistream);
 
         // Start room connection.
         videoRoomClient.connectToServer(connectionParameters);
@@ -620,7 +643,9 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
             return;
         }
         // Enable statistics callback.
-        //PeerConnectionClient2.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
+        PeerConnectionClient2.setStatsHudVisible(callControlFragmentVisible
+                && getIntent().getBooleanExtra(EXTRA_DISPLAY_HUD, false));
+        PeerConnectionClient2.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
         //setSwappedFeeds(false /* isSwappedFeeds */);
     }
 
@@ -772,6 +797,17 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
 
         positionVector.set(pipIndex, positionVector.get(0));
         positionVector.set(0, id);
+        updateRenderHeights();
+    }
+
+    // Reports the height every remote feed is rendered at to the quality manager.
+    private void updateRenderHeights() {
+        for(int i = 0; i < maxVideoRoomUsers; i++) {
+            BigInteger id = positionVector.get(i);
+            if(id == BigInteger.ZERO || id.equals(localHandleId)) continue;
+
+            qualityManager.setRenderHeight(id, surfaceViewRenderers.get(i).getHeight());
+        }
     }
 
     // -----Implementation of PeerConnectionClient2.PeerConnectionEvents.---------
@@ -803,6 +839,10 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                // Multistream feeds are added with their mid by onRemoteStreamAdded.
+                if (!multistream) {
+                    qualityManager.addFeed(handleId, handleId, null);
+                }
                 for(int i = 0; i < maxVideoRoomUsers; i++) {
                     if(positionVector.get(i) == BigInteger.ZERO) {
                         positionVector.set(i, handleId);
@@ -811,6 +851,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
                         renderer.setVisibility(View.VISIBLE);
                         PeerConnectionClient2.setVideoRender(handleId, renderer);
                         setClickListener(i);
+                        updateRenderHeights();
                         return;
                     }
                 }
@@ -916,7 +957,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
             public void run() {
                 logAndToast("ICE connected, delay=" + delta + "ms");
                 iceConnected = true;
-                //callConnected();
+                callConnected();
             }
         });
     }
@@ -937,12 +978,18 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
     public void onPeerConnectionClosed(final BigInteger handleId) {}
 
     @Override
-    public void onPeerConnectionStatsReady(final BigInteger handleId, final StatsReport[] reports) {
+    public void onPeerConnectionStatsReady(final BigInteger handleId, final RtcStatsCollector.Snapshot stats) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
+                if (!isError) {
+                    qualityManager.onStats(stats);
+                }
                 if (!isError && iceConnected) {
-                    hudFragment.updateEncoderStatistics(reports);
+                    hudFragment.updateConnectionStatistics(stats);
+                    if (videoRoomClient != null) {
+                        hudFragment.updateSignalingStatistics(videoRoomClient.getSignalingMetrics());
+                    }
                 }
             }
         });
@@ -964,6 +1011,14 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         });
     }
 
+    @Override
+    public void onSubscriberAttached(final BigInteger handleId) {
+        // Thread safe, the PeerConnection is built on the client executor.
+        if (PeerConnectionClient2 != null) {
+            PeerConnectionClient2.prepareSubscriber(handleId);
+        }
+    }
+
     @Override
     public void onRemoteJsep(final BigInteger handleId, final JSONObject jsep) {
         runOnUiThread(new Runnable() {
@@ -1022,15 +1077,53 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
         });
     }
 
+    @Override
+    public void onRemoteStreamAdded(final BigInteger handleId, final String mid, final BigInteger feedId,
+                                    final String display) {
+        // Posted before the offer is handled, so the feed is known once onRemoteRender shows it.
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                qualityManager.addFeed(feedId, handleId, mid);
+            }
+        });
+        // Ordered before the offer on the client executor, the feed is rendered from onRemoteRender.
+        if (PeerConnectionClient2 != null) {
+            PeerConnectionClient2.addRemoteStream(handleId, mid, feedId);
+        }
+    }
+
+    @Override
+    public void onRemoteStreamRemoved(final BigInteger handleId, final String mid, final BigInteger feedId) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                releaseRenderer(feedId);
+                qualityManager.removeFeed(feedId);
+                if (PeerConnectionClient2 != null) {
+                    PeerConnectionClient2.removeRemoteStream(handleId, mid, feedId);
+                }
+            }
+        });
+    }
+
     public void onLeftInternal(final BigInteger handleId){
-        if(handleId == localHandleId) {
+        if(handleId.equals(localHandleId)) {
             disconnect();
             return;
         }
 
+        releaseRenderer(handleId);
+        qualityManager.removeFeed(handleId);
+        PeerConnectionClient2.dispose(handleId);
+        hudFragment.removeConnectionStatistics(handleId);
+    }
+
+    // Frees the renderer showing |id|, a handle id or a multistream feed id, and closes the gap.
+    private void releaseRenderer(final BigInteger id) {
         for(int index = 0; index < maxVideoRoomUsers; index++) {
 
-            if(positionVector.get(index) != handleId) continue;
+            if(!positionVector.get(index).equals(id)) continue;
 
             while(index < maxVideoRoomUsers - 1) {
                 int step = index == 0 && positionVector.get(index + 1) == localHandleId ? 2 : 1;
@@ -1044,8 +1137,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
                 positionVector.set(index, positionVector.get(index + step));
                 index += step;
             }
-            PeerConnectionClient2.setVideoRender(handleId, null);
-            PeerConnectionClient2.dispose(handleId);
+            PeerConnectionClient2.setVideoRender(id, null);
             removeClickListener(index);
 
             SurfaceViewRenderer renderer = surfaceViewRenderers.get(index);
@@ -1056,6 +1148,7 @@ public class VideoRoomActivity extends Activity implements PeerConnectionClient2
                 renderer.setVisibility(View.INVISIBLE);
             }
             positionVector.set(index, BigInteger.ZERO);
+            updateRenderHeights();
             break;
         }
     }
@@ -9,37 +9,37 @@
  */
 package org.appspot.apprtc;
 
-import android.os.Handler;
 import android.util.Log;
-import de.tavendo.autobahn.WebSocket.WebSocketConnectionObserver;
-import de.tavendo.autobahn.WebSocketConnection;
-import de.tavendo.autobahn.WebSocketException;
-import de.tavendo.autobahn.WebSocketOptions;
 
+import org.appspot.apprtc.util.SerialExecutor;
+import org.appspot.apprtc.util.SignalingTrace;
+
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 
 /**
  * WebSocket client implementation.
  *
- * <p>All public methods should be called from a looper executor thread
+ * <p>All public methods should be called from the serial executor
  * passed in a constructor, otherwise exception will be thrown.
- * All events are dispatched on the same thread.
+ * All events are dispatched on the same executor.
+ *
+ * <p>The connection itself is a {@link WebSocketTransport}, a {@link NioWebSocketTransport}
+ * for both ws:// and wss:// unless one is passed in.
  */
-public class WebSocketChannelClient {
+public class WebSocketChannelClient implements SignalingChannel {
     private static final String TAG = "WebSocketChannelClient";
     private static final int CLOSE_TIMEOUT = 1000;
     private final WebSocketChannelEvents events;
-    private final Handler handler;
-    private WebSocketConnection ws;
+    private final SerialExecutor executor;
+    private WebSocketTransport ws;
     private String wsServerUrl;
     private String [] subProtocols;
     private WebSocketConnectionState state;
-    // Do not remove this member variable. If this is removed, the observer gets garbage collected and
-    // this causes test breakages.
-    private WebSocketObserver wsObserver;
-    private final Object closeEventLock = new Object();
-    private boolean closeEvent;
+    // A disconnect(true) is waiting for the transport to report the close, executor only.
+    private boolean closing;
+    private final Runnable closeTimeout = this::onCloseTimeout;
 
     /**
      * Possible WebSocket connection states.
@@ -48,7 +48,7 @@ public class WebSocketChannelClient {
 
     /**
      * Callback interface for messages delivered on WebSocket.
-     * All events are dispatched from a looper executor thread.
+     * All events are dispatched from the serial executor.
      */
     public interface WebSocketChannelEvents {
         void onWebSocketMessage(final String message);
@@ -57,18 +57,25 @@ public class WebSocketChannelClient {
         void onWebSocketError(final String description);
     }
 
-    public WebSocketChannelClient(Handler handler, WebSocketChannelEvents events) {
-        this.handler = handler;
+    public WebSocketChannelClient(SerialExecutor executor, WebSocketChannelEvents events) {
+        this(executor, events, null);
+    }
+
+    // |transport| null picks one by URL scheme on connect.
+    public WebSocketChannelClient(SerialExecutor executor, WebSocketChannelEvents events, WebSocketTransport transport) {
+        this.executor = executor;
         this.events = events;
+        this.ws = transport;
         state = WebSocketConnectionState.NEW;
         wsServerUrl = "";
     }
 
+    @Override
     public WebSocketConnectionState getState() {
         return state;
     }
 
-    //for janus,all run on websocket without http rest operation.
+    @Override
     public void connect(final String wsUrl, final String [] subProtocols){
         checkIfCalledOnValidThread();
 
@@ -78,20 +85,22 @@ public class WebSocketChannelClient {
         }
         wsServerUrl = wsUrl;
         this.subProtocols = subProtocols;
-        closeEvent = false;
 
         Log.d(TAG, "Connecting WebSocket to: " + wsUrl);
-        ws = new WebSocketConnection();
-        wsObserver = new WebSocketObserver();
         try {
-            ws.connect(new URI(wsServerUrl),subProtocols, wsObserver,new WebSocketOptions());
+            URI uri = new URI(wsServerUrl);
+            if (ws == null) {
+                ws = new NioWebSocketTransport();
+            }
+            ws.connect(uri, subProtocols, new WebSocketObserver());
         } catch (URISyntaxException e) {
             reportError("URI error: " + e.getMessage());
-        } catch (WebSocketException e) {
+        } catch (IOException e) {
             reportError("WebSocket connection error: " + e.getMessage());
         }
     }
 
+    @Override
     public void send(String message){
         checkIfCalledOnValidThread();
 
@@ -100,11 +109,12 @@ public class WebSocketChannelClient {
             return;
         }
 
-        Log.d(TAG, "C->WSS: " + message);
-        ws.sendTextMessage(message);
+        if (SignalingTrace.isEnabled()) SignalingTrace.outbound(TAG, message);
+        ws.sendText(message);
     }
 
 
+    @Override
     public void disconnect(boolean waitForComplete) {
         checkIfCalledOnValidThread();
 
@@ -114,27 +124,35 @@ public class WebSocketChannelClient {
             ws.disconnect();
             state = WebSocketConnectionState.CLOSED;
 
-            // Wait for websocket close event to prevent websocket library from
-            // sending any pending messages to deleted looper thread.
+            // The close handshake finishes on the transport thread, see onClose(). Nothing
+            // waits for it here: the executor thread may be shared with other sessions. Events
+            // the transport still reports are dropped by the state checks.
             if (waitForComplete) {
-                synchronized (closeEventLock) {
-                    while (!closeEvent) {
-                        try {
-                            closeEventLock.wait(CLOSE_TIMEOUT);
-                            break;
-                        } catch (InterruptedException e) {
-                            Log.e(TAG, "Wait error: " + e.toString());
-                        }
-                    }
-                }
+                closing = true;
+                executor.executeDelayed(closeTimeout, CLOSE_TIMEOUT);
             }
         }
-        Log.d(TAG, "Disconnecting WebSocket done.");
+    }
+
+    // Executor only, the transport reported the close.
+    private void onClosed() {
+        if (closing) {
+            closing = false;
+            executor.remove(closeTimeout);
+            Log.d(TAG, "Disconnecting WebSocket done.");
+        }
+    }
+
+    private void onCloseTimeout() {
+        if (closing) {
+            closing = false;
+            Log.w(TAG, "WebSocket close handshake not finished after " + CLOSE_TIMEOUT + " ms, giving up on it.");
+        }
     }
 
     private void reportError(final String errorMessage) {
         Log.e(TAG, errorMessage);
-        handler.post(new Runnable() {
+        executor.execute(new Runnable() {
             @Override
             public void run() {
                 if (state != WebSocketConnectionState.ERROR) {
@@ -146,18 +164,19 @@ public class WebSocketChannelClient {
     }
 
     // Helper method for debugging purposes. Ensures that WebSocket method is
-    // called on a looper thread.
+    // called on the executor.
     private void checkIfCalledOnValidThread() {
-        if (Thread.currentThread() != handler.getLooper().getThread()) {
+        if (!executor.isCurrent()) {
             throw new IllegalStateException("WebSocket method is not called on valid thread");
         }
     }
 
-    private class WebSocketObserver implements WebSocketConnectionObserver {
+    // Called on a transport thread, events are posted to the executor.
+    private class WebSocketObserver implements WebSocketTransport.Listener {
         @Override
         public void onOpen() {
             Log.d(TAG, "WebSocket connection opened to: " + wsServerUrl);
-            handler.post(new Runnable() {
+            executor.execute(new Runnable() {
                 @Override
                 public void run() {
                     if (state != WebSocketConnectionState.CONNECTED) {
@@ -169,16 +188,15 @@ public class WebSocketChannelClient {
         }
 
         @Override
-        public void onClose(WebSocketCloseNotification code, String reason) {
-            Log.d(TAG, "WebSocket connection closed. Code: " + code + ". Reason: " + reason + ". State: "
-                    + state);
-            synchronized (closeEventLock) {
-                closeEvent = true;
-                closeEventLock.notify();
-            }
-            handler.post(new Runnable() {
+        public void onClose(String reason) {
+            Log.d(TAG, "WebSocket connection closed. Reason: " + reason + ". State: " + state);
+            Log.d(TAG, "Signaling bytes sent: " + ws.getRawBytesSent() + " (" + ws.getWireBytesSent()
+                    + " on the wire), received: " + ws.getRawBytesReceived() + " (" + ws.getWireBytesReceived()
+                    + " on the wire), permessage-deflate: " + ws.isDeflateNegotiated());
+            executor.execute(new Runnable() {
                 @Override
                 public void run() {
+                    onClosed();
                     if (state != WebSocketConnectionState.CLOSED) {
                         state = WebSocketConnectionState.CLOSED;
                         events.onWebSocketClose();
@@ -189,9 +207,9 @@ public class WebSocketChannelClient {
 
         @Override
         public void onTextMessage(String payload) {
-            Log.d(TAG, "WSS->C: " + payload);
+            if (SignalingTrace.isEnabled()) SignalingTrace.inbound(TAG, payload);
             final String message = payload;
-            handler.post(new Runnable() {
+            executor.execute(new Runnable() {
                 @Override
                 public void run() {
                     if (state == WebSocketConnectionState.CONNECTED) {
@@ -200,12 +218,6 @@ public class WebSocketChannelClient {
                 }
             });
         }
-
-        @Override
-        public void onRawTextMessage(byte[] payload) {}
-
-        @Override
-        public void onBinaryMessage(byte[] payload) {}
     }
 }
 
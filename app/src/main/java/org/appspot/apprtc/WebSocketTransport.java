@@ -0,0 +1,49 @@
+package org.appspot.apprtc;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Client side of a WebSocket connection, as driven by {@link WebSocketChannelClient}.
+ *
+ * <p>Listener callbacks are made on a thread owned by the transport, never on the thread
+ * that called connect().
+ */
+public interface WebSocketTransport {
+    interface Listener {
+        void onOpen();
+        void onTextMessage(String payload);
+        // The connection is over or could not be established. Called once, disconnect() included.
+        void onClose(String reason);
+    }
+
+    void connect(URI uri, String[] subProtocols, Listener listener) throws IOException;
+
+    // Text sent before onOpen() or after disconnect() is dropped.
+    void sendText(String payload);
+
+    void disconnect();
+
+    // Whether text goes out compressed with permessage-deflate, known once open.
+    default boolean isDeflateNegotiated() {
+        return false;
+    }
+
+    // Payload bytes of text messages before compression and as framed on the wire, 0 if
+    // the transport does not count them.
+    default long getRawBytesSent() {
+        return 0;
+    }
+
+    default long getWireBytesSent() {
+        return 0;
+    }
+
+    default long getRawBytesReceived() {
+        return 0;
+    }
+
+    default long getWireBytesReceived() {
+        return 0;
+    }
+}
@@ -0,0 +1,97 @@
+package org.appspot.apprtc.janus;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.SessionDescription;
+
+import java.math.BigInteger;
+
+/**
+ * Adapter for janus.plugin.audiobridge: a single handle joined to one mixed audio room.
+ */
+public class JanusAudioBridgePlugin extends JanusPluginAdapter {
+    private static final String TAG = "JanusAudioBridgePlugin";
+
+    private final JanusRTCEvents events;
+    private final long roomId;
+    private final String display;
+    private long handleId;
+
+    public JanusAudioBridgePlugin(JanusRTCEvents events, long roomId, String display) {
+        super("janus.plugin.audiobridge");
+        this.events = events;
+        this.roomId = roomId;
+        this.display = display;
+
+        registerEvent("joined", this::onJoined);
+        registerEvent("event", this::onRoomEvent);
+    }
+
+    @Override
+    public void onSessionCreated() {
+        session.attach(this, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                handleId = id;
+                join();
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                Log.e(TAG, "attach error: " + code + " " + reason);
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------
+    // Plugin requests
+    // ----------------------------------------------------------------------------
+    private void join() {
+        session.sendMessage(handleId, body -> body
+                .put("request", "join")
+                .put("room", roomId)
+                .put("display", display), null, null);
+    }
+
+    // Sends the publisher offer, the participant starts muted.
+    public void configure(long handleId, SessionDescription sdp) {
+        session.sendMessage(handleId, body -> body
+                .put("request", "configure")
+                .put("muted", true), sdp, null);
+    }
+
+    public void setMuted(boolean muted) {
+        session.sendMessage(handleId, body -> body
+                .put("request", "configure")
+                .put("muted", muted), null, null);
+    }
+
+    // ----------------------------------------------------------------------------
+    // Plugin event handlers, see registerEvent() calls in the constructor.
+    // ----------------------------------------------------------------------------
+    private void onJoined(JanusHandle handle, JanusMessage message, JanusTransaction2 transaction)
+            throws JSONException {
+        // The participants list of the room is reported here as well, it is not displayed yet.
+        if (handle.handleId == handleId) {
+            events.onPublisherJoined(BigInteger.valueOf(handle.handleId));
+        }
+        onRemoteJsep(handle, message.getJsep());
+    }
+
+    private void onRoomEvent(JanusHandle handle, JanusMessage message, JanusTransaction2 transaction)
+            throws JSONException {
+        String leaving = message.getDataString("leaving");
+        if (!leaving.equals("")) {
+            Log.d(TAG, "participant " + leaving + " left room " + roomId);
+        }
+        onRemoteJsep(handle, message.getJsep());
+    }
+
+    private void onRemoteJsep(JanusHandle handle, JSONObject jsep) {
+        if (jsep != null) {
+            events.onPublisherRemoteJsep(BigInteger.valueOf(handle.handleId), jsep);
+        }
+    }
+}
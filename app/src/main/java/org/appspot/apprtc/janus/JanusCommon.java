@@ -2,14 +2,46 @@ package org.appspot.apprtc.janus;
 
 public class JanusCommon {
 
-    // Janus keepalive interval
+    // Janus keepalive interval, until the session timeout of the server is known
     public static final int delayMillis = 25000;
+    // Idle sessions with keepalives due within this window share one timer wakeup.
+    public static final int keepAliveCoalesceMillis = 5000;
+    public static final int keepAliveMinMillis = 5000;
+
+    // Trickle candidates of a handle are coalesced for up to this long, or until this many
+    // are pending, and sent in one "candidates" request.
+    public static final int trickleBatchDelayMillis = 20;
+    public static final int trickleBatchMaxCandidates = 8;
+
+    // A transaction not answered within this time is retried (if idempotent) or fails.
+    public static final int transactionTimeoutMillis = 10000;
+    // Once acked, the event answering a transaction may take this long.
+    public static final int transactionAckTimeoutMillis = 30000;
+    public static final int maxTransactionRetries = 3;
+    public static final int transactionRetryBaseMillis = 1000;
+    // Requests beyond this many unanswered transactions are queued.
+    public static final int maxInFlightTransactions = 16;
+    // Error codes of transactions failed by the session rather than by Janus: no reply in
+    // time, or in flight when the WebSocket dropped and not safe to resend after the claim.
+    public static final String transactionTimeoutCode = "timeout";
+    public static final String transactionLostCode = "lost";
+
+    // After a WebSocket drop the session is reclaimed on a new socket for this long, well
+    // within the default 60s Janus session timeout counted from the last keepalive.
+    public static final int sessionReclaimTimeoutMillis = 30000;
+    public static final int reconnectBaseDelayMillis = 250;
+    public static final int reconnectMaxDelayMillis = 4000;
+
+    // HTTP transport: events fetched per long poll, and the read timeout of a poll. Janus
+    // answers an idle poll with a keepalive after 30s.
+    public static final int longPollMaxEvents = 10;
+    public static final int longPollTimeoutMillis = 45000;
 
     // Got value by JanusConnectionParameters object
     private static final String[] subProtocols = {"janus-protocol"};
 
     // Janus transaction status
-    public enum JanusServerState { NEW, CONNECTED, CLOSED, ERROR }
+    public enum JanusServerState { NEW, CONNECTED, RECONNECTING, CLOSED, ERROR }
 
     public static class JanusConnectionParameters {
         public final String wsServerUrl;
@@ -17,13 +49,22 @@ public class JanusCommon {
         public final long roomId;
         public final String userDisplay;
         public final int maxUserForRoom;     // videoroom plugin?   // fixme: 0: no limit
+        // videoroom: receive every remote feed over one subscriber handle and PeerConnection
+        // (Janus multistream) instead of one per feed.
+        public final boolean multistream;
 
-        public JanusConnectionParameters(String wsServerUrl, long roomId, String userDisplay, int maxUserForRoom) {
+        public JanusConnectionParameters(String wsServerUrl, long roomId, String userDisplay, int maxUserForRoom,
+                                         boolean multistream) {
             this.wsServerUrl = wsServerUrl;
             this.subProtocols = JanusCommon.subProtocols;
             this.roomId = roomId;
             this.userDisplay = userDisplay;
             this.maxUserForRoom = maxUserForRoom;
+            this.multistream = multistream;
+        }
+
+        public JanusConnectionParameters(String wsServerUrl, long roomId, String userDisplay, int maxUserForRoom) {
+            this(wsServerUrl, roomId, userDisplay, maxUserForRoom, false /* multistream */);
         }
 
         public JanusConnectionParameters(String wsServerUrl, long roomId, String userDisplay) {
@@ -1,15 +1,31 @@
 package org.appspot.apprtc.janus;
 
 import org.appspot.apprtc.PeerConnectionClient2;
+import org.appspot.apprtc.util.SerialExecutor;
+import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
 import org.webrtc.VideoTrack;
 
-import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.List;
 
 public class JanusConnection2 {
-    public BigInteger handleId;
+    public long handleId;
     public PeerConnection peerConnection;
     public PeerConnectionClient2.SDPObserver sdpObserver;
     public VideoTrack videoTrack;
     public boolean type;
+    // Serial lane of this PeerConnection, its observers and calls run there.
+    public SerialExecutor executor;
+    // Publisher only: remote ICE candidates, queued until both descriptions are set.
+    public List<IceCandidate> queuedRemoteCandidates;
+    // Set from the ICE connection state callbacks, read by the stats polling.
+    public volatile boolean iceConnected;
+
+    // Multistream subscriber only, null otherwise: feed id by video mid, the sink of each
+    // mid (reused when Janus recycles the m-line for another feed) and the mids whose
+    // remote track is attached to its sink.
+    public HashMap<String, Long> streamFeeds;
+    public HashMap<String, PeerConnectionClient2.proxyVideoSinks> streamSinks;
+    public HashMap<String, VideoTrack> streamTracks;
 }
@@ -0,0 +1,69 @@
+package org.appspot.apprtc.janus;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.SessionDescription;
+
+import java.math.BigInteger;
+
+/**
+ * Adapter for janus.plugin.echotest: a single handle whose media is echoed back.
+ */
+public class JanusEchoTestPlugin extends JanusPluginAdapter {
+    private static final String TAG = "JanusEchoTestPlugin";
+
+    private final JanusRTCEvents events;
+
+    public JanusEchoTestPlugin(JanusRTCEvents events) {
+        super("janus.plugin.echotest");
+        this.events = events;
+
+        registerEvent("event", this::onEchoEvent);
+    }
+
+    @Override
+    public void onSessionCreated() {
+        session.attach(this, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                events.onPublisherJoined(BigInteger.valueOf(id));
+                negotiate(id);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                Log.e(TAG, "attach error: " + code + " " + reason);
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------
+    // Plugin requests
+    // ----------------------------------------------------------------------------
+    private void negotiate(long handleId) {
+        session.sendMessage(handleId, body -> body
+                .put("audio", true)
+                .put("video", true), null, null);
+    }
+
+    // Sends the local offer, the echoed answer comes back in an "event".
+    public void configure(long handleId, SessionDescription sdp) {
+        session.sendMessage(handleId, body -> body
+                .put("request", "configure")
+                .put("audio", true)
+                .put("video", true), sdp, null);
+    }
+
+    // ----------------------------------------------------------------------------
+    // Plugin event handlers, see registerEvent() calls in the constructor.
+    // ----------------------------------------------------------------------------
+    private void onEchoEvent(JanusHandle handle, JanusMessage message, JanusTransaction2 transaction)
+            throws JSONException {
+        JSONObject jsep = message.getJsep();
+        if (jsep != null) {
+            events.onPublisherRemoteJsep(BigInteger.valueOf(handle.handleId), jsep);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package org.appspot.apprtc.janus;
+
+import android.util.Log;
+
+import org.appspot.apprtc.SignalingChannel;
+import org.appspot.apprtc.WebSocketChannelClient.WebSocketChannelEvents;
+import org.appspot.apprtc.WebSocketChannelClient.WebSocketConnectionState;
+import org.appspot.apprtc.util.AsyncHttpURLConnection;
+import org.appspot.apprtc.util.AsyncHttpURLConnection.AsyncHttpEvents;
+import org.appspot.apprtc.util.SerialExecutor;
+import org.appspot.apprtc.util.SignalingTrace;
+
+import java.util.ArrayDeque;
+
+/**
+ * Janus HTTP (REST) transport, for networks where WebSocket upgrades are blocked.
+ *
+ * <p>Requests are POSTed to {@code /janus}, {@code /janus/{session}} or
+ * {@code /janus/{session}/{handle}} depending on the ids they carry, one at a time and in
+ * order. The reply to each POST and the events fetched by a long-poll GET on
+ * {@code /janus/{session}} are delivered as {@link WebSocketChannelEvents#onWebSocketMessage}
+ * calls, one per Janus message, so {@link JanusSession} does not see a difference.
+ *
+ * <p>One poll is outstanding at a time and asks for up to {@link JanusCommon#longPollMaxEvents}
+ * events (maxev), a burst of events costs one round trip. The poll also keeps the session
+ * alive on the server, no keepalive requests are needed.
+ *
+ * <p>All public methods must be called on the executor passed in the constructor, all
+ * events are dispatched on it.
+ */
+public class JanusHttpChannelClient implements SignalingChannel {
+    private static final String TAG = "JanusHttpChannelClient";
+    private static final String CONTENT_TYPE = "application/json";
+
+    private final SerialExecutor executor;
+    private final WebSocketChannelEvents events;
+    // POSTs waiting for the one in flight to be answered.
+    private final ArrayDeque<String> pendingPosts = new ArrayDeque<>();
+    private String serverUrl;
+    private WebSocketConnectionState state;
+    private boolean postInFlight;
+    private long sessionId;
+    // Bumped on disconnect, answers to requests of an older generation are dropped.
+    private int generation;
+    // Id of the outstanding long poll, 0 if none. Answers to abandoned polls are dropped.
+    private int activePoll;
+    private int lastPoll;
+
+    public JanusHttpChannelClient(SerialExecutor executor, WebSocketChannelEvents events) {
+        this.executor = executor;
+        this.events = events;
+        state = WebSocketConnectionState.NEW;
+    }
+
+    @Override
+    public WebSocketConnectionState getState() {
+        return state;
+    }
+
+    // There is nothing to open, the channel is usable right away and the first POST tells
+    // whether the server is reachable.
+    @Override
+    public void connect(String url, String[] subProtocols) {
+        checkIfCalledOnValidThread();
+
+        if (state != WebSocketConnectionState.NEW) {
+            Log.e(TAG, "HTTP channel is already connected.");
+            return;
+        }
+        serverUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+
+        Log.d(TAG, "Using Janus HTTP API at: " + serverUrl);
+        final int connectGeneration = generation;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (connectGeneration != generation) return;
+                state = WebSocketConnectionState.CONNECTED;
+                events.onWebSocketOpen();
+            }
+        });
+    }
+
+    @Override
+    public void send(String message) {
+        checkIfCalledOnValidThread();
+
+        if (state != WebSocketConnectionState.CONNECTED) {
+            Log.w(TAG, "HTTP send message in non-connection state. State: " + state);
+            return;
+        }
+
+        if (SignalingTrace.isEnabled()) SignalingTrace.outbound(TAG, message);
+        pendingPosts.add(message);
+        sendNextPost();
+    }
+
+    @Override
+    public void setSessionId(long sessionId) {
+        checkIfCalledOnValidThread();
+
+        if (this.sessionId == sessionId) return;
+        this.sessionId = sessionId;
+        // A poll for the previous session must not deliver into this one.
+        activePoll = 0;
+        poll();
+    }
+
+    @Override
+    public boolean needsKeepAlive() {
+        return false;
+    }
+
+    // Pending requests (a destroy, typically) are still sent, their answers are ignored.
+    @Override
+    public void disconnect(boolean waitForComplete) {
+        checkIfCalledOnValidThread();
+
+        Log.d(TAG, "Disconnect HTTP channel. State: " + state);
+        generation++;
+        state = WebSocketConnectionState.CLOSED;
+        activePoll = 0;
+        postInFlight = false;
+        while (!pendingPosts.isEmpty()) {
+            String message = pendingPosts.poll();
+            request("POST", urlFor(message), message, 0, false, null);
+        }
+    }
+
+    private void sendNextPost() {
+        if (postInFlight || pendingPosts.isEmpty()) return;
+
+        String message = pendingPosts.poll();
+        postInFlight = true;
+        final int postGeneration = generation;
+        request("POST", urlFor(message), message, 0, false, new AsyncHttpEvents() {
+            @Override
+            public void onHttpError(final String errorMessage) {
+                executor.execute(() -> {
+                    if (postGeneration != generation) return;
+                    postInFlight = false;
+                    reportError(errorMessage);
+                });
+            }
+
+            @Override
+            public void onHttpComplete(final String response) {
+                executor.execute(() -> {
+                    if (postGeneration != generation) return;
+                    postInFlight = false;
+                    deliver(response);
+                    sendNextPost();
+                });
+            }
+        });
+    }
+
+    private void poll() {
+        if (activePoll != 0 || sessionId == 0 || state != WebSocketConnectionState.CONNECTED) return;
+
+        final int pollId = ++lastPoll;
+        activePoll = pollId;
+        // rid defeats caches between us and the server.
+        String url = serverUrl + "/" + sessionId + "?maxev=" + JanusCommon.longPollMaxEvents
+                + "&rid=" + System.currentTimeMillis();
+        // On a thread of its own, a pending poll must not hold up the POSTs of any session.
+        request("GET", url, null, JanusCommon.longPollTimeoutMillis, true /* longPoll */, new AsyncHttpEvents() {
+            @Override
+            public void onHttpError(final String errorMessage) {
+                executor.execute(() -> {
+                    if (pollId != activePoll) return;
+                    activePoll = 0;
+                    reportError(errorMessage);
+                });
+            }
+
+            @Override
+            public void onHttpComplete(final String response) {
+                executor.execute(() -> {
+                    if (pollId != activePoll) return;
+                    activePoll = 0;
+                    deliver(response);
+                    poll();
+                });
+            }
+        });
+    }
+
+    // |timeoutMs| 0 keeps the default timeout, |httpEvents| null ignores the answer.
+    private static void request(String method, String url, String message, int timeoutMs,
+                                boolean longPoll, AsyncHttpEvents httpEvents) {
+        if (httpEvents == null) {
+            httpEvents = new AsyncHttpEvents() {
+                @Override
+                public void onHttpError(String errorMessage) {
+                    Log.w(TAG, errorMessage);
+                }
+
+                @Override
+                public void onHttpComplete(String response) {}
+            };
+        }
+        AsyncHttpURLConnection connection = new AsyncHttpURLConnection(method, url, message, httpEvents);
+        connection.setContentType(CONTENT_TYPE);
+        if (timeoutMs > 0) {
+            connection.setTimeout(timeoutMs);
+        }
+        connection.setLongPoll(longPoll);
+        connection.send();
+    }
+
+    // A reply is a single message, or with maxev an array of them.
+    private void deliver(String response) {
+        int start = skipWhitespace(response, 0);
+        if (start == response.length()) return;
+        if (response.charAt(start) != '[') {
+            if (SignalingTrace.isEnabled()) SignalingTrace.inbound(TAG, response);
+            events.onWebSocketMessage(response);
+            return;
+        }
+
+        int depth = 0;
+        int elementStart = -1;
+        boolean inString = false;
+        for (int i = start + 1; i < response.length(); i++) {
+            char c = response.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+            if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                if (depth++ == 0) elementStart = i;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) break;
+                if (--depth == 0) {
+                    String message = response.substring(elementStart, i + 1);
+                    if (SignalingTrace.isEnabled()) SignalingTrace.inbound(TAG, message);
+                    events.onWebSocketMessage(message);
+                    // The session may have been torn down by the message.
+                    if (state != WebSocketConnectionState.CONNECTED) return;
+                }
+            }
+        }
+    }
+
+    // The path of a request follows from its session_id and handle_id. JanusSession writes
+    // them right after the request type, so only the top-level fields ahead of the first
+    // nested object are looked at: a plugin body, jsep or candidate may have fields of the
+    // same name.
+    private String urlFor(String message) {
+        int end = topLevelEnd(message);
+        long session = idField(message, "\"session_id\":", end);
+        if (session == 0) return serverUrl;
+        long handle = idField(message, "\"handle_id\":", end);
+        return serverUrl + "/" + session + (handle != 0 ? "/" + handle : "");
+    }
+
+    // Index of the first nested object or array of |message|, its length if there is none.
+    private static int topLevelEnd(String message) {
+        boolean inString = false;
+        for (int i = 1; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                return i;
+            }
+        }
+        return message.length();
+    }
+
+    private static long idField(String message, String key, int end) {
+        int index = message.indexOf(key);
+        if (index < 0 || index >= end) return 0;
+
+        long value = 0;
+        for (int i = skipWhitespace(message, index + key.length()); i < end; i++) {
+            char c = message.charAt(i);
+            if (c < '0' || c > '9') break;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int skipWhitespace(String s, int index) {
+        while (index < s.length() && Character.isWhitespace(s.charAt(index))) index++;
+        return index;
+    }
+
+    private void reportError(String errorMessage) {
+        Log.e(TAG, errorMessage);
+        if (state != WebSocketConnectionState.ERROR && state != WebSocketConnectionState.CLOSED) {
+            state = WebSocketConnectionState.ERROR;
+            events.onWebSocketError(errorMessage);
+        }
+    }
+
+    private void checkIfCalledOnValidThread() {
+        if (!executor.isCurrent()) {
+            throw new IllegalStateException("HTTP channel method is not called on valid thread");
+        }
+    }
+}
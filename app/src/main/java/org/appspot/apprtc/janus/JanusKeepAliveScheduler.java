@@ -0,0 +1,119 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.util.PooledSerialExecutor;
+import org.appspot.apprtc.util.SerialExecutor;
+
+import java.util.ArrayList;
+
+/**
+ * Keepalive timer shared by all Janus sessions of the process.
+ *
+ * <p>Any request resets the Janus session timeout, so a session's keepalive is only due once
+ * nothing was sent on it for its interval; busy sessions never send one. All sessions are
+ * served from one timer task on the shared signaling pool, and a wakeup for one session also sends the keepalives of
+ * the other sessions due within {@link JanusCommon#keepAliveCoalesceMillis}: several idle
+ * sessions cost one radio wakeup per interval rather than one each.
+ *
+ * <p>Keepalives are run on the executor of their session, the scheduler never touches
+ * session state itself.
+ */
+public class JanusKeepAliveScheduler {
+    private static JanusKeepAliveScheduler instance;
+
+    /**
+     * A registered session. {@link #touch()} may be called from the session executor at any rate.
+     */
+    public static final class Entry {
+        final SerialExecutor executor;
+        final Runnable keepAlive;
+        private final SerialExecutor clock;
+        volatile int intervalMillis;
+        volatile long lastActivityMs;
+
+        Entry(SerialExecutor executor, Runnable keepAlive, int intervalMillis, SerialExecutor clock) {
+            this.executor = executor;
+            this.keepAlive = keepAlive;
+            this.clock = clock;
+            this.intervalMillis = intervalMillis;
+            touch();
+        }
+
+        // Records a request sent on the session.
+        public void touch() {
+            lastActivityMs = clock.now();
+        }
+    }
+
+    private final Object lock = new Object();
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private final SerialExecutor executor = new PooledSerialExecutor();
+
+    public static synchronized JanusKeepAliveScheduler getInstance() {
+        if (instance == null) {
+            instance = new JanusKeepAliveScheduler();
+        }
+        return instance;
+    }
+
+    // Keepalive interval for a server session timeout, in seconds: half the timeout less the
+    // coalescing window, or the default if the server does not expire sessions.
+    public static int intervalFor(int sessionTimeoutSeconds) {
+        if (sessionTimeoutSeconds <= 0) {
+            return JanusCommon.delayMillis;
+        }
+        return Math.max(JanusCommon.keepAliveMinMillis,
+                sessionTimeoutSeconds * 1000 / 2 - JanusCommon.keepAliveCoalesceMillis);
+    }
+
+    // |keepAlive| is run on |sessionExecutor| whenever the session has been idle for
+    // |intervalMillis|.
+    public Entry register(SerialExecutor sessionExecutor, Runnable keepAlive, int intervalMillis) {
+        Entry entry = new Entry(sessionExecutor, keepAlive, intervalMillis, executor);
+        synchronized (lock) {
+            entries.add(entry);
+        }
+        reschedule();
+        return entry;
+    }
+
+    // A keepalive already queued on the session executor is not recalled.
+    public void unregister(Entry entry) {
+        synchronized (lock) {
+            entries.remove(entry);
+        }
+        reschedule();
+    }
+
+    public void setInterval(Entry entry, int intervalMillis) {
+        entry.intervalMillis = intervalMillis;
+        reschedule();
+    }
+
+    private void reschedule() {
+        executor.remove(tick);
+        executor.execute(tick);
+    }
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            long now = executor.now();
+            long nextDue = Long.MAX_VALUE;
+            synchronized (lock) {
+                for (Entry entry : entries) {
+                    int interval = entry.intervalMillis;
+                    long due = entry.lastActivityMs + interval;
+                    if (due - Math.min(JanusCommon.keepAliveCoalesceMillis, interval / 4) <= now) {
+                        entry.lastActivityMs = now;
+                        entry.executor.execute(entry.keepAlive);
+                        due = now + interval;
+                    }
+                    nextDue = Math.min(nextDue, due);
+                }
+            }
+            if (nextDue != Long.MAX_VALUE) {
+                executor.executeDelayed(tick, nextDue - now);
+            }
+        }
+    };
+}
@@ -0,0 +1,404 @@
+package org.appspot.apprtc.janus;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Inbound Janus message decoded with a single forward scan of the raw text.
+ *
+ * <p>Only the routing fields are extracted eagerly: {@code janus}, {@code transaction},
+ * {@code sender}, {@code plugindata.plugin} and the plugin event type
+ * ({@code plugindata.data.<plugin>}, e.g. {@code data.videoroom}). Nested objects such as
+ * {@code plugindata.data}, {@code jsep} and {@code error} are only located, and turned into
+ * {@link JSONObject}s the first time a handler asks for them. Acks, keepalives and plain
+ * success replies therefore never build a JSON tree.
+ */
+public class JanusMessage {
+    // Known values of the "janus" field, returned without allocating a new String.
+    private static final String[] JANUS_TYPES = {
+            "ack", "success", "error", "event", "keepalive", "trickle", "webrtcup",
+            "media", "slowlink", "hangup", "detached", "timeout", "server_info"};
+
+    private final String raw;
+    private int pos;
+
+    private String janus = "";
+    private long transactionId = JanusTransactionIds.NONE;
+    private String plugin = "";
+    private String pluginEvent = "";
+    private long sender;
+    private boolean hasSender;
+
+    // [start, end) of nested object values inside |raw|, -1 when absent.
+    private int dataStart = -1, dataEnd = -1;
+    private int pluginDataStart = -1;
+    private int jsepStart = -1, jsepEnd = -1;
+    private int errorStart = -1, errorEnd = -1;
+
+    private JSONObject json;
+    private JSONObject data;
+    private JSONObject jsep;
+    private JSONObject error;
+
+    private JanusMessage(String raw) {
+        this.raw = raw;
+    }
+
+    public static JanusMessage parse(String raw) throws JSONException {
+        JanusMessage message = new JanusMessage(raw);
+        message.parseMessage();
+        return message;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Routing fields
+    // ----------------------------------------------------------------------------
+    public String getJanus() {
+        return janus;
+    }
+
+    // Transaction id as generated by JanusTransactionIds, NONE if the message carries no
+    // transaction or one this client did not generate.
+    public long getTransactionId() {
+        return transactionId;
+    }
+
+    public boolean hasSender() {
+        return hasSender;
+    }
+
+    public long getSender() {
+        return sender;
+    }
+
+    public boolean hasPluginData() {
+        return pluginDataStart >= 0;
+    }
+
+    // e.g. "janus.plugin.videoroom", empty if there is no plugindata.
+    public String getPlugin() {
+        return plugin;
+    }
+
+    // Value of plugindata.data.<plugin short name>, e.g. "joined" for videoroom.
+    public String getPluginEvent() {
+        return pluginEvent;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Lazily materialized parts
+    // ----------------------------------------------------------------------------
+    public String getRaw() {
+        return raw;
+    }
+
+    // Full message as a JSONObject, for the rare handlers that need arbitrary fields.
+    public JSONObject getJSONObject() throws JSONException {
+        if (json == null) {
+            json = new JSONObject(raw);
+        }
+        return json;
+    }
+
+    // plugindata.data (or the top level data of a core reply), or null.
+    public JSONObject getData() throws JSONException {
+        if (data == null && dataStart >= 0) {
+            data = objectAt(dataStart, dataEnd);
+        }
+        return data;
+    }
+
+    public JSONObject getJsep() throws JSONException {
+        if (jsep == null && jsepStart >= 0) {
+            jsep = objectAt(jsepStart, jsepEnd);
+        }
+        return jsep;
+    }
+
+    public JSONObject getError() throws JSONException {
+        if (error == null && errorStart >= 0) {
+            error = objectAt(errorStart, errorEnd);
+        }
+        return error;
+    }
+
+    // data.id of a create/attach success reply, 0 if absent.
+    public long getDataId() throws JSONException {
+        if (dataStart < 0) return 0;
+        int[] bounds = findField(dataStart, dataEnd, "id");
+        if (bounds == null) return 0;
+        int saved = pos;
+        try {
+            pos = bounds[0];
+            return longValue();
+        } finally {
+            pos = saved;
+        }
+    }
+
+    // Scalar field of the data object as a String, empty if absent or null. Does not
+    // build the data object, so routing on e.g. "configured" or "leaving" stays cheap.
+    public String getDataString(String key) throws JSONException {
+        if (dataStart < 0) return "";
+        int[] bounds = findField(dataStart, dataEnd, key);
+        if (bounds == null) return "";
+        int saved = pos;
+        try {
+            pos = bounds[0];
+            String value = stringValue();
+            return raw.charAt(bounds[0]) != '"' && value.equals("null") ? "" : value;
+        } finally {
+            pos = saved;
+        }
+    }
+
+    // Array field of the data object, e.g. videoroom "publishers", or null. Only that
+    // array is materialized.
+    public JSONArray getDataArray(String key) throws JSONException {
+        if (dataStart < 0) return null;
+        int[] bounds = findField(dataStart, dataEnd, key);
+        if (bounds == null || raw.charAt(bounds[0]) != '[') return null;
+        return new JSONArray(raw.substring(bounds[0], bounds[1]));
+    }
+
+    private JSONObject objectAt(int start, int end) throws JSONException {
+        return new JSONObject(new JSONTokener(raw.substring(start, end)));
+    }
+
+    // ----------------------------------------------------------------------------
+    // Scanner
+    // ----------------------------------------------------------------------------
+    private void parseMessage() throws JSONException {
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') return;
+
+        int topDataStart = -1, topDataEnd = -1;
+        while (true) {
+            skipWhitespace();
+            int keyStart = pos + 1;
+            int keyEnd = skipString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            int valueStart = pos;
+            if (keyIs(keyStart, keyEnd, "janus")) {
+                janus = internJanusType(stringValue());
+            } else if (keyIs(keyStart, keyEnd, "transaction")) {
+                transactionId = hexValue();
+            } else if (keyIs(keyStart, keyEnd, "sender")) {
+                sender = longValue();
+                hasSender = true;
+            } else if (keyIs(keyStart, keyEnd, "plugindata")) {
+                skipValue();
+                pluginDataStart = valueStart;
+                parsePluginData(valueStart, pos);
+            } else if (keyIs(keyStart, keyEnd, "jsep")) {
+                skipValue();
+                jsepStart = valueStart;
+                jsepEnd = pos;
+            } else if (keyIs(keyStart, keyEnd, "error")) {
+                skipValue();
+                errorStart = valueStart;
+                errorEnd = pos;
+            } else if (keyIs(keyStart, keyEnd, "data")) {
+                skipValue();
+                topDataStart = valueStart;
+                topDataEnd = pos;
+            } else {
+                skipValue();
+            }
+
+            skipWhitespace();
+            char c = next();
+            if (c == '}') break;
+            if (c != ',') throw syntaxError("Expected ',' or '}'");
+        }
+
+        // Core replies ("success" to create/attach) carry a top level data object.
+        if (pluginDataStart < 0 && topDataStart >= 0) {
+            dataStart = topDataStart;
+            dataEnd = topDataEnd;
+        }
+    }
+
+    private void parsePluginData(int start, int end) throws JSONException {
+        int[] pluginBounds = findField(start, end, "plugin");
+        if (pluginBounds != null) {
+            plugin = raw.substring(pluginBounds[0] + 1, pluginBounds[1] - 1);
+        }
+        int[] dataBounds = findField(start, end, "data");
+        if (dataBounds == null || raw.charAt(dataBounds[0]) != '{') return;
+        dataStart = dataBounds[0];
+        dataEnd = dataBounds[1];
+
+        // "janus.plugin.videoroom" reports its event type in data.videoroom.
+        String eventKey = plugin.substring(plugin.lastIndexOf('.') + 1);
+        int[] eventBounds = eventKey.isEmpty() ? null : findField(dataStart, dataEnd, eventKey);
+        if (eventBounds != null && raw.charAt(eventBounds[0]) == '"') {
+            pos = eventBounds[0];
+            pluginEvent = stringValue();
+        }
+        pos = end;
+    }
+
+    // Returns [start, end) of the value of top level field |name| of the object at [start, end).
+    private int[] findField(int start, int end, String name) throws JSONException {
+        int saved = pos;
+        try {
+            pos = start;
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') return null;
+            while (pos < end) {
+                skipWhitespace();
+                int keyStart = pos + 1;
+                int keyEnd = skipString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                int valueStart = pos;
+                skipValue();
+                if (keyIs(keyStart, keyEnd, name)) {
+                    return new int[] {valueStart, pos};
+                }
+                skipWhitespace();
+                if (next() != ',') return null;
+            }
+            return null;
+        } finally {
+            pos = saved;
+        }
+    }
+
+    private boolean keyIs(int keyStart, int keyEnd, String name) {
+        return keyEnd - keyStart == name.length() && raw.regionMatches(keyStart, name, 0, name.length());
+    }
+
+    private static String internJanusType(String value) {
+        for (String type : JANUS_TYPES) {
+            if (type.equals(value)) return type;
+        }
+        return value;
+    }
+
+    private String stringValue() throws JSONException {
+        if (peek() != '"') {
+            // Janus sends some ids as numbers, keep their textual form.
+            int start = pos;
+            skipValue();
+            return raw.substring(start, pos).trim();
+        }
+        int start = pos + 1;
+        int end = skipString();
+        for (int i = start; i < end; i++) {
+            if (raw.charAt(i) == '\\') {
+                return (String) new JSONTokener(raw.substring(start - 1, end + 1)).nextValue();
+            }
+        }
+        return raw.substring(start, end);
+    }
+
+    // Parses a quoted hex string without allocating, NONE if it is not a valid id.
+    private long hexValue() throws JSONException {
+        if (peek() != '"') {
+            skipValue();
+            return JanusTransactionIds.NONE;
+        }
+        int start = pos + 1;
+        int end = skipString();
+        if (end == start || end - start > 16) return JanusTransactionIds.NONE;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(raw.charAt(i), 16);
+            if (digit < 0) return JanusTransactionIds.NONE;
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private long longValue() throws JSONException {
+        boolean quoted = peek() == '"';
+        if (quoted) pos++;
+        long value = 0;
+        int start = pos;
+        while (pos < raw.length() && Character.isDigit(raw.charAt(pos))) {
+            value = value * 10 + (raw.charAt(pos) - '0');
+            pos++;
+        }
+        if (pos == start) throw syntaxError("Expected a number");
+        if (quoted) expect('"');
+        return value;
+    }
+
+    // Skips a string starting at |pos| and returns the index of its closing quote.
+    private int skipString() throws JSONException {
+        expect('"');
+        while (pos < raw.length()) {
+            char c = raw.charAt(pos++);
+            if (c == '\\') {
+                pos++;
+            } else if (c == '"') {
+                return pos - 1;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void skipValue() throws JSONException {
+        char c = peek();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            while (pos < raw.length()) {
+                c = raw.charAt(pos);
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                pos++;
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) return;
+                }
+            }
+            throw syntaxError("Unterminated object");
+        } else {
+            // number, true, false or null
+            while (pos < raw.length()) {
+                c = raw.charAt(pos);
+                if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) break;
+                pos++;
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < raw.length() && Character.isWhitespace(raw.charAt(pos))) pos++;
+    }
+
+    private char peek() throws JSONException {
+        if (pos >= raw.length()) throw syntaxError("Unexpected end of message");
+        return raw.charAt(pos);
+    }
+
+    private char next() throws JSONException {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    private void expect(char c) throws JSONException {
+        if (next() != c) throw syntaxError("Expected '" + c + "'");
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + pos);
+    }
+}
@@ -0,0 +1,230 @@
+package org.appspot.apprtc.janus;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.util.List;
+
+/**
+ * Serializes outbound Janus requests straight into a reused {@link StringBuilder}.
+ *
+ * <p>Janus requests have a fixed, flat shape, so they are written field by field instead
+ * of going through a {@code JSONObject} map: no per-request map, no boxing of ids and no
+ * intermediate strings for candidates or jsep. The only allocation left per request is
+ * the frame String handed to the WebSocket.
+ *
+ * <p>Not thread safe, one writer is owned by each {@link JanusSession} and only used on
+ * its executor. Usage: {@code begin("keepalive").put("session_id", id) ... finish()}.
+ */
+public class JanusMessageWriter {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Writes the fields of a plugin message body, e.g. {@code "request":"configure"}.
+     */
+    public interface Body {
+        void write(JanusMessageWriter writer);
+    }
+
+    private final StringBuilder builder = new StringBuilder(1024);
+    // false right after an opening brace, true once a field has been written at this level.
+    private boolean needComma;
+    // Type of the request being written: the plugin "request" if there is one, else |janus|.
+    private String janus;
+    private String request;
+
+    // Starts a new request of type |janus|, discarding anything not yet finished.
+    public JanusMessageWriter begin(String janus) {
+        builder.setLength(0);
+        builder.append('{');
+        needComma = false;
+        this.janus = janus;
+        this.request = null;
+        return put("janus", janus);
+    }
+
+    // E.g. "join" for a videoroom join message, "attach" for an attach. Valid until the next
+    // begin().
+    public String requestName() {
+        return request != null ? request : janus;
+    }
+
+    // Closes the request and returns the frame. The writer can be reused right away.
+    public String finish() {
+        builder.append('}');
+        String frame = builder.toString();
+        builder.setLength(0);
+        return frame;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Fields
+    // ----------------------------------------------------------------------------
+    public JanusMessageWriter put(String key, String value) {
+        if (request == null && key.equals("request")) request = value;
+        key(key);
+        if (value == null) {
+            builder.append("null");
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    public JanusMessageWriter put(String key, long value) {
+        key(key);
+        builder.append(value);
+        return this;
+    }
+
+    // Writes |value| as a quoted lowercase hex string, e.g. a transaction id.
+    public JanusMessageWriter putHex(String key, long value) {
+        key(key);
+        builder.append('"');
+        int shift = 60;
+        while (shift > 0 && ((value >>> shift) & 0xf) == 0) shift -= 4;
+        for (; shift >= 0; shift -= 4) {
+            builder.append(HEX[(int) ((value >>> shift) & 0xf)]);
+        }
+        builder.append('"');
+        return this;
+    }
+
+    public JanusMessageWriter put(String key, boolean value) {
+        key(key);
+        builder.append(value);
+        return this;
+    }
+
+    public JanusMessageWriter beginObject(String key) {
+        key(key);
+        builder.append('{');
+        needComma = false;
+        return this;
+    }
+
+    public JanusMessageWriter endObject() {
+        builder.append('}');
+        needComma = true;
+        return this;
+    }
+
+    // "key":[ ... ], elements are written with beginElement()/endObject().
+    public JanusMessageWriter beginArray(String key) {
+        key(key);
+        builder.append('[');
+        needComma = false;
+        return this;
+    }
+
+    public JanusMessageWriter endArray() {
+        builder.append(']');
+        needComma = true;
+        return this;
+    }
+
+    // Opens an object element of the current array, closed with endObject().
+    public JanusMessageWriter beginElement() {
+        if (needComma) builder.append(',');
+        builder.append('{');
+        needComma = false;
+        return this;
+    }
+
+    // "body":{...} of a plugin message.
+    public JanusMessageWriter body(Body body) {
+        beginObject("body");
+        body.write(this);
+        return endObject();
+    }
+
+    // "jsep":{"type":"offer","sdp":"..."}
+    public JanusMessageWriter jsep(SessionDescription sdp) {
+        return beginObject("jsep")
+                .put("type", sdp.type.canonicalForm())
+                .put("sdp", sdp.description)
+                .endObject();
+    }
+
+    // "candidate":{"candidate":"...","sdpMid":"...","sdpMLineIndex":n}
+    public JanusMessageWriter candidate(IceCandidate candidate) {
+        beginObject("candidate");
+        candidateFields(candidate);
+        return endObject();
+    }
+
+    // "candidates":[{...},{...}], followed by {"completed":true} if |completed|.
+    public JanusMessageWriter candidates(List<IceCandidate> candidates, boolean completed) {
+        key("candidates");
+        builder.append('[');
+        for (int i = 0; i < candidates.size(); i++) {
+            if (i > 0) builder.append(',');
+            builder.append('{');
+            needComma = false;
+            candidateFields(candidates.get(i));
+            builder.append('}');
+        }
+        if (completed) {
+            if (!candidates.isEmpty()) builder.append(',');
+            builder.append("{\"completed\":true}");
+        }
+        builder.append(']');
+        needComma = true;
+        return this;
+    }
+
+    // "candidate":{"completed":true}
+    public JanusMessageWriter candidateCompleted() {
+        return beginObject("candidate")
+                .put("completed", true)
+                .endObject();
+    }
+
+    // ----------------------------------------------------------------------------
+    // Helper functions.
+    // ----------------------------------------------------------------------------
+    private void candidateFields(IceCandidate candidate) {
+        put("candidate", candidate.sdp);
+        put("sdpMid", candidate.sdpMid);
+        put("sdpMLineIndex", candidate.sdpMLineIndex);
+    }
+
+    private void key(String key) {
+        if (needComma) builder.append(',');
+        needComma = true;
+        string(key);
+        builder.append(':');
+    }
+
+    private void string(String value) {
+        builder.append('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+}
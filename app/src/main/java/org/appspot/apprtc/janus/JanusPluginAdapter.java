@@ -0,0 +1,75 @@
+package org.appspot.apprtc.janus;
+
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.util.HashMap;
+
+/**
+ * Base class of the plugin adapters driven by {@link JanusSession}.
+ *
+ * <p>Each adapter registers a handler per plugin event type (the value of the
+ * {@code plugindata.data.<plugin>} field), so routing an event is a single table
+ * lookup. Handlers receive the lazily decoded {@link JanusMessage} and only pull the
+ * parts (data fields, jsep) they actually use. All callbacks run on the session executor.
+ */
+public abstract class JanusPluginAdapter {
+    private static final String TAG = "JanusPluginAdapter";
+
+    protected interface EventHandler {
+        void handle(JanusHandle handle, JanusMessage message, JanusTransaction2 transaction) throws JSONException;
+    }
+
+    // e.g. "janus.plugin.videoroom"
+    private final String pluginName;
+    private final HashMap<String, EventHandler> eventTable = new HashMap<>();
+
+    protected JanusSession session;
+
+    protected JanusPluginAdapter(String pluginName) {
+        this.pluginName = pluginName;
+    }
+
+    public String getPluginName() {
+        return pluginName;
+    }
+
+    void setSession(JanusSession session) {
+        this.session = session;
+    }
+
+    protected void registerEvent(String event, EventHandler eventHandler) {
+        eventTable.put(event, eventHandler);
+    }
+
+    // Called once the Janus session is created, plugins attach their first handle here.
+    public abstract void onSessionCreated();
+
+    // Called for core events on a handle of this plugin: webrtcup, media, slowlink, hangup, detached.
+    public void onCoreEvent(JanusHandle handle, String janus, JanusMessage message) throws JSONException {
+        Log.d(TAG, pluginName + ": got a " + janus + " event on handle " + handle.handleId);
+    }
+
+    void dispatchEvent(JanusHandle handle, JanusMessage message, JanusTransaction2 transaction) throws JSONException {
+        String event = message.getPluginEvent();
+        EventHandler eventHandler = eventTable.get(event);
+        if (eventHandler == null) {
+            onUnhandledEvent(handle, event, message, transaction);
+            return;
+        }
+        eventHandler.handle(handle, message, transaction);
+    }
+
+    protected void onUnhandledEvent(JanusHandle handle, String event, JanusMessage message,
+                                    JanusTransaction2 transaction) {
+        Log.w(TAG, pluginName + ": unrecognized event '" + event + "' on handle " + handle.handleId);
+    }
+
+    // Helper to read an error field of a plugin response, falling back to |defaultMessage|.
+    protected static String checkError(JanusMessage message, String checkMessage, String defaultMessage)
+            throws JSONException {
+        String res = message.getDataString(checkMessage);
+        return res.equals("") ? defaultMessage : res;
+    }
+}
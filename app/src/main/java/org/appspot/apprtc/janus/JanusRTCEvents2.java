@@ -5,7 +5,14 @@ import java.math.BigInteger;
 
 public interface JanusRTCEvents2 {
     void onPublisherJoined(BigInteger handleId);
+    // A subscriber handle was attached, its offer follows in onRemoteJsep. Lets the
+    // subscriber PeerConnection be created while the join is still in flight.
+    default void onSubscriberAttached(BigInteger handleId) {}
     void onRemoteJsep(BigInteger handleId, JSONObject jsep);
+    // Multistream mode: video of feed |feedId| is now received, or no longer is, on m-line
+    // |mid| of the subscriber PeerConnection of |handleId|. Sent before the matching offer.
+    default void onRemoteStreamAdded(BigInteger handleId, String mid, BigInteger feedId, String display) {}
+    default void onRemoteStreamRemoved(BigInteger handleId, String mid, BigInteger feedId) {}
     void onLeft(BigInteger handleId);
     void onNotification(String notificationMessage);
 
@@ -0,0 +1,787 @@
+package org.appspot.apprtc.janus;
+
+import android.util.Log;
+
+import org.appspot.apprtc.SignalingChannel;
+import org.appspot.apprtc.WebSocketChannelClient;
+import org.appspot.apprtc.WebSocketChannelClient.WebSocketChannelEvents;
+import org.appspot.apprtc.janus.JanusCommon.JanusServerState;
+import org.appspot.apprtc.util.LongHashMap;
+import org.appspot.apprtc.util.SerialExecutor;
+import org.appspot.apprtc.util.SignalingTrace;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Janus session engine shared by all plugin clients.
+ *
+ * <p>Owns the signaling channel and the session, handle and transaction bookkeeping;
+ * keepalives are timed by the shared {@link JanusKeepAliveScheduler}. Inbound messages
+ * are decoded by {@link JanusMessage}, which only scans the routing fields, and routed
+ * through a dispatch table keyed on the {@code janus} field; plugin events are forwarded
+ * to the {@link JanusPluginAdapter} the sending handle was attached with. Outbound
+ * requests are serialized by a reused {@link JanusMessageWriter}.
+ *
+ * <p>http:// and https:// server URLs are served by {@link JanusHttpChannelClient} (REST
+ * requests and long polling, no keepalives), anything else by a WebSocket.
+ *
+ * <p>Session, handle and transaction ids are kept as primitive longs, Janus ids are
+ * 53-bit integers.
+ *
+ * <p>If the WebSocket drops while the session is up, the session is not torn down: the
+ * socket is reopened with backoff and the existing session is taken over with a Janus
+ * {@code claim}, so handles and the PeerConnections behind them survive. Only if that
+ * fails within {@link JanusCommon#sessionReclaimTimeoutMillis} is an error reported.
+ * Meanwhile requests are queued; after the claim, transactions that were in flight are
+ * resent if they are retryable, the others fail with {@link JanusCommon#transactionLostCode}.
+ *
+ * <p>All methods must be called on the {@link SerialExecutor} passed in the constructor, all
+ * events are dispatched on it. Sessions on executors sharing a pool share its threads.
+ */
+public class JanusSession implements WebSocketChannelEvents {
+    private static final String TAG = "JanusSession";
+
+    /**
+     * Session level events, dispatched on the session executor.
+     */
+    public interface SessionEvents {
+        void onSessionClose();
+        void onSessionError(String errorMessage);
+    }
+
+    // Creates the channel for a server URL, see setChannelFactory().
+    interface ChannelFactory {
+        SignalingChannel create(String url);
+    }
+
+    private interface MessageHandler {
+        void handle(JanusMessage message, JanusTransaction2 transaction) throws JSONException;
+    }
+
+    // Candidates of one handle waiting for their coalescing window to expire.
+    private class TrickleBatch {
+        final long handleId;
+        final List<IceCandidate> candidates = new ArrayList<>();
+        final Runnable flush = () -> flushTrickle(this, false);
+
+        TrickleBatch(long handleId) {
+            this.handleId = handleId;
+        }
+    }
+
+    private final SerialExecutor executor;
+    private final SessionEvents events;
+    private final HashMap<String, MessageHandler> dispatchTable = new HashMap<>();
+    private final List<JanusPluginAdapter> plugins = new ArrayList<>();
+    private final JanusMessageWriter writer = new JanusMessageWriter();
+
+    // Pending trickle candidates per handle, only touched on the executor.
+    private final LongHashMap<TrickleBatch> trickleBatches = new LongHashMap<>();
+    private int trickleBatchDelayMillis = JanusCommon.trickleBatchDelayMillis;
+    private int trickleBatchMaxCandidates = JanusCommon.trickleBatchMaxCandidates;
+
+    private SignalingChannel wsClient;
+    private String wsUrl;
+    private ChannelFactory channelFactory;
+    private String[] subProtocols;
+    private boolean reconnectEnabled = true;
+    private int reconnectAttempts;
+    private long reconnectStartMs;
+    // The claim pending on the current socket.
+    private JanusTransaction2 claimTransaction;
+    private JanusServerState state;
+    private long sessionId;
+    // Keepalive registration while the session is up on a channel that needs keepalives.
+    private JanusKeepAliveScheduler.Entry keepAliveEntry;
+    private int keepAliveIntervalMillis = JanusCommon.delayMillis;
+    private final Runnable fireKeepAlive = this::keepAlive;
+
+    private final JanusTransactionIds transactionIds = new JanusTransactionIds();
+    private final JanusTransactionScheduler scheduler;
+    // Pending transactions keyed on their id, only touched on the executor.
+    private final LongHashMap<JanusTransaction2> transactionMap = new LongHashMap<>();
+    private final LongHashMap<JanusHandle> handleMap = new LongHashMap<>();
+    private final JanusSignalingMetrics metrics = new JanusSignalingMetrics();
+
+    public JanusSession(SerialExecutor executor, SessionEvents events) {
+        this.executor = executor;
+        this.events = events;
+        this.sessionId = 0;
+        this.state = JanusServerState.NEW;
+        this.scheduler = new JanusTransactionScheduler(executor, this::sendFrame,
+                new JanusTransactionScheduler.FailureListener() {
+                    @Override
+                    public void onTransactionTimeout(JanusTransaction2 transaction) {
+                        JanusSession.this.onTransactionTimeout(transaction);
+                    }
+
+                    @Override
+                    public void onTransactionLost(JanusTransaction2 transaction) {
+                        JanusSession.this.onTransactionLost(transaction);
+                    }
+                });
+
+        dispatchTable.put("ack", (message, transaction) -> {});
+        dispatchTable.put("keepalive", (message, transaction) -> {});
+        dispatchTable.put("success", this::onSuccess);
+        dispatchTable.put("server_info", this::onServerInfo);
+        dispatchTable.put("error", this::onError);
+        dispatchTable.put("event", this::onPluginEvent);
+        dispatchTable.put("webrtcup", this::onCoreEvent);
+        dispatchTable.put("media", this::onCoreEvent);
+        dispatchTable.put("slowlink", this::onCoreEvent);
+        dispatchTable.put("hangup", this::onCoreEvent);
+        dispatchTable.put("detached", this::onCoreEvent);
+        dispatchTable.put("timeout", (message, transaction) -> reportError("Janus session timeout."));
+    }
+
+    public void addPlugin(JanusPluginAdapter plugin) {
+        plugin.setSession(this);
+        plugins.add(plugin);
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public JanusServerState getState() {
+        return state;
+    }
+
+    public JanusHandle getHandle(long handleId) {
+        return handleMap.get(handleId);
+    }
+
+    // Transaction latencies of this session, safe to read from any thread.
+    public JanusSignalingMetrics getMetrics() {
+        return metrics;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Session requests
+    // ----------------------------------------------------------------------------
+    public void connect(String wsUrl, String[] subProtocols) {
+        checkIfCalledOnValidThread();
+
+        this.wsUrl = wsUrl;
+        this.subProtocols = subProtocols;
+        wsClient = createChannel(wsUrl);
+        wsClient.connect(wsUrl, subProtocols);
+    }
+
+    // Replaces the WebSocket/HTTP channel chosen by URL, e.g. with an in-memory one for trace
+    // replay in tests. Must be set before connect().
+    void setChannelFactory(ChannelFactory channelFactory) {
+        this.channelFactory = channelFactory;
+    }
+
+    private SignalingChannel createChannel(String url) {
+        if (channelFactory != null) {
+            return channelFactory.create(url);
+        }
+        if (url.startsWith("http://") || url.startsWith("https://")) {
+            return new JanusHttpChannelClient(executor, this);
+        }
+        return new WebSocketChannelClient(executor, this);
+    }
+
+    // Whether a dropped WebSocket is reconnected and the session claimed back (default), or
+    // reported as a session error right away.
+    public void setReconnectEnabled(boolean enabled) {
+        reconnectEnabled = enabled;
+    }
+
+    public void disconnect() {
+        checkIfCalledOnValidThread();
+
+        stopKeepAlive();
+        for (TrickleBatch batch : trickleBatches.values()) {
+            executor.remove(batch.flush);
+        }
+        trickleBatches.clear();
+        destroy();
+
+        handleMap.clear();
+
+        if (wsClient != null) {
+            wsClient.disconnect(true);
+        }
+    }
+
+    private void create() {
+        checkIfCalledOnValidThread();
+
+        if(state != JanusServerState.NEW && state != JanusServerState.CLOSED) {
+            Log.w(TAG, "create() in a error state -- " + state);
+            return;
+        }
+
+        writer.begin("create");
+
+        // Not retryable: a resent create whose first copy did reach Janus would leave an
+        // orphan session behind on the server, alive until its session timeout.
+        send(false, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                sessionId = id;
+                state = JanusServerState.CONNECTED;
+                startKeepAlive();
+                requestServerInfo();
+                for (JanusPluginAdapter plugin : plugins) {
+                    plugin.onSessionCreated();
+                }
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                Log.e(TAG,"Transaction error: " + code + " " + reason);
+                reportError(reason);
+            }
+        });
+    }
+
+    private void keepAlive() {
+        checkIfCalledOnValidThread();
+
+        if(state != JanusServerState.CONNECTED) {
+            Log.w(TAG, "keepalive() in a error state -- " + state);
+            return;
+        }
+
+        writer.begin("keepalive")
+                .put("session_id", sessionId);
+
+        // Janus answers a keepalive with a bare ack.
+        JanusTransaction2 transaction = send(true /* retryable */, keepAliveEvents);
+        transaction.ackIsFinal = true;
+    }
+
+    private final JanusTransaction2.TransactionEvents keepAliveEvents = new JanusTransaction2.TransactionEvents() {
+        @Override
+        public void error(String reason, String code) {
+            reportError("Janus keepalive failed: " + reason);
+        }
+    };
+
+    // Takes over the session after the WebSocket was reopened.
+    private void claim() {
+        checkIfCalledOnValidThread();
+
+        writer.begin("claim")
+                .put("session_id", sessionId);
+
+        long transactionId = transactionIds.next();
+        writer.putHex("transaction", transactionId);
+
+        JanusTransaction2 transaction = new JanusTransaction2();
+        transaction.transactionId = transactionId;
+        transaction.request = "claim";
+        transaction.events = new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                Log.d(TAG, "Session " + sessionId + " claimed after " + reconnectAttempts + " attempt(s), "
+                        + (executor.now() - reconnectStartMs) + " ms");
+                claimTransaction = null;
+                state = JanusServerState.CONNECTED;
+                reconnectAttempts = 0;
+                startKeepAlive();
+                // Replays or fails what was in flight, then sends what was queued meanwhile.
+                scheduler.resume();
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                claimTransaction = null;
+                reportError("Janus session could not be claimed: " + code + " " + reason);
+            }
+        };
+        claimTransaction = transaction;
+        transactionMap.put(transactionId, transaction);
+        // The scheduler is held and the in-flight window may be full, the claim must not wait.
+        scheduler.submitFirst(transaction, writer.finish());
+    }
+
+    // Requests are sent while the session is up and queued while it is being reclaimed.
+    private boolean acceptsRequests() {
+        return state == JanusServerState.CONNECTED || state == JanusServerState.RECONNECTING;
+    }
+
+    private boolean canReconnect() {
+        return reconnectEnabled && sessionId != 0 && acceptsRequests();
+    }
+
+    private void scheduleReconnect(String reason) {
+        long now = executor.now();
+        if (state != JanusServerState.RECONNECTING) {
+            Log.w(TAG, "Lost connection to Janus (" + reason + "), reclaiming session " + sessionId);
+            state = JanusServerState.RECONNECTING;
+            reconnectStartMs = now;
+            reconnectAttempts = 0;
+            stopKeepAlive();
+            scheduler.hold();
+        }
+        if (claimTransaction != null) {
+            // The claim went with the socket, the next one gets its own.
+            transactionMap.remove(claimTransaction.transactionId);
+            scheduler.complete(claimTransaction);
+            claimTransaction = null;
+        }
+
+        if (now - reconnectStartMs >= JanusCommon.sessionReclaimTimeoutMillis) {
+            reportError("Janus reconnect failed: " + reason);
+            return;
+        }
+
+        int delayMillis = Math.min(JanusCommon.reconnectMaxDelayMillis,
+                JanusCommon.reconnectBaseDelayMillis << Math.min(reconnectAttempts, 8));
+        reconnectAttempts++;
+        // An error is usually followed by a close for the same socket, schedule once.
+        executor.remove(reconnect);
+        executor.executeDelayed(reconnect, delayMillis);
+    }
+
+    private final Runnable reconnect = new Runnable() {
+        @Override
+        public void run() {
+            if (state != JanusServerState.RECONNECTING) return;
+
+            Log.d(TAG, "Reconnecting WebSocket, attempt " + reconnectAttempts);
+            wsClient.disconnect(false);
+            wsClient = createChannel(wsUrl);
+            wsClient.connect(wsUrl, subProtocols);
+        }
+    };
+
+    // Called once the session is created or claimed on the current channel.
+    private void startKeepAlive() {
+        wsClient.setSessionId(sessionId);
+        if (wsClient.needsKeepAlive() && keepAliveEntry == null) {
+            keepAliveEntry = JanusKeepAliveScheduler.getInstance()
+                    .register(executor, fireKeepAlive, keepAliveIntervalMillis);
+        }
+    }
+
+    private void stopKeepAlive() {
+        if (keepAliveEntry != null) {
+            JanusKeepAliveScheduler.getInstance().unregister(keepAliveEntry);
+            keepAliveEntry = null;
+        }
+        executor.remove(fireKeepAlive);
+    }
+
+    // Sizes the keepalive interval to the session timeout of the server.
+    private void requestServerInfo() {
+        writer.begin("info");
+
+        send(true /* retryable */, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long sessionTimeout) {
+                keepAliveIntervalMillis = JanusKeepAliveScheduler.intervalFor((int) sessionTimeout);
+                Log.d(TAG, "Janus session timeout " + sessionTimeout + "s, keepalive every "
+                        + keepAliveIntervalMillis + " ms");
+                if (keepAliveEntry != null) {
+                    JanusKeepAliveScheduler.getInstance().setInterval(keepAliveEntry, keepAliveIntervalMillis);
+                }
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                Log.w(TAG, "Janus info failed, keeping the default keepalive interval: " + reason);
+            }
+        });
+    }
+
+    // Transport of |scheduler|. Every request resets the server's session timeout.
+    private void sendFrame(String frame) {
+        if (keepAliveEntry != null) {
+            keepAliveEntry.touch();
+        }
+        wsClient.send(frame);
+    }
+
+    // Attaches a new handle to |plugin|. The handle is registered before |transactionEvents|
+    // success is called with the new handle id.
+    public void attach(final JanusPluginAdapter plugin, final JanusTransaction2.TransactionEvents transactionEvents) {
+        checkIfCalledOnValidThread();
+
+        if(!acceptsRequests()) {
+            Log.w(TAG, "attach() in a error state -- " + state);
+            return;
+        }
+
+        writer.begin("attach")
+                .put("session_id", sessionId)
+                .put("plugin", plugin.getPluginName());
+
+        send(true /* retryable */, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                JanusHandle janusHandle = new JanusHandle();
+                janusHandle.handleId = id;
+                janusHandle.plugin = plugin;
+                handleMap.put(id, janusHandle);
+
+                transactionEvents.success(id);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                transactionEvents.error(reason, code);
+            }
+        });
+    }
+
+    // Sends a plugin message on |handleId|. |jsep| and |transactionEvents| may be null.
+    public void sendMessage(long handleId, JanusMessageWriter.Body body, SessionDescription jsep,
+                            JanusTransaction2.TransactionEvents transactionEvents) {
+        sendMessage(handleId, body, jsep, transactionEvents, false);
+    }
+
+    // As above; a |retryable| message (e.g. a join) is resent if Janus neither acks nor
+    // answers it in time. Only meaningful with |transactionEvents|.
+    public void sendMessage(long handleId, JanusMessageWriter.Body body, SessionDescription jsep,
+                            JanusTransaction2.TransactionEvents transactionEvents, boolean retryable) {
+        checkIfCalledOnValidThread();
+
+        if(!acceptsRequests()) {
+            Log.w(TAG, "message() in a error state -- " + state);
+            return;
+        }
+
+        // The ids go first, JanusHttpChannelClient reads them from the top of the frame.
+        writer.begin("message")
+                .put("session_id", sessionId)
+                .put("handle_id", handleId)
+                .body(body);
+        if (jsep != null) {
+            writer.jsep(jsep);
+        }
+
+        send(retryable, transactionEvents);
+    }
+
+    // Changes how long and how many trickle candidates of a handle are coalesced into one
+    // request. A |maxCandidates| of 1 sends every candidate on its own.
+    public void setTrickleBatching(int delayMillis, int maxCandidates) {
+        trickleBatchDelayMillis = delayMillis;
+        trickleBatchMaxCandidates = Math.max(1, maxCandidates);
+    }
+
+    // Queues |iceCandidate| in the batch of |handleId|, the batch is sent once it is full or
+    // its coalescing window expires.
+    public void trickle(long handleId, IceCandidate iceCandidate) {
+        checkIfCalledOnValidThread();
+
+        if(!acceptsRequests()) {
+            Log.w(TAG, "trickle() in a error state -- " + state);
+            return;
+        }
+
+        TrickleBatch batch = trickleBatches.get(handleId);
+        if (batch == null) {
+            batch = new TrickleBatch(handleId);
+            trickleBatches.put(handleId, batch);
+        }
+        batch.candidates.add(iceCandidate);
+
+        if (batch.candidates.size() >= trickleBatchMaxCandidates || trickleBatchDelayMillis <= 0) {
+            flushTrickle(batch, false);
+        } else if (batch.candidates.size() == 1) {
+            executor.executeDelayed(batch.flush, trickleBatchDelayMillis);
+        }
+    }
+
+    // Sends the pending candidates of |handleId| together with the end-of-candidates marker.
+    public void trickleComplete(long handleId) {
+        checkIfCalledOnValidThread();
+
+        if(!acceptsRequests()) {
+            Log.w(TAG, "trickleComplete() in a error state -- " + state);
+            return;
+        }
+
+        TrickleBatch batch = trickleBatches.remove(handleId);
+        flushTrickle(batch != null ? batch : new TrickleBatch(handleId), true);
+    }
+
+    private void flushTrickle(TrickleBatch batch, boolean completed) {
+        executor.remove(batch.flush);
+        List<IceCandidate> candidates = batch.candidates;
+        if (candidates.isEmpty() && !completed) return;
+
+        if(!acceptsRequests()) {
+            candidates.clear();
+            return;
+        }
+
+        writer.begin("trickle")
+                .put("session_id", sessionId)
+                .put("handle_id", batch.handleId);
+        if (candidates.isEmpty()) {
+            writer.candidateCompleted();
+        } else if (candidates.size() == 1 && !completed) {
+            writer.candidate(candidates.get(0));
+        } else {
+            writer.candidates(candidates, completed);
+        }
+        candidates.clear();
+
+        send(false, null);
+    }
+
+    private void cancelTrickle(long handleId) {
+        TrickleBatch batch = trickleBatches.remove(handleId);
+        if (batch != null) executor.remove(batch.flush);
+    }
+
+    public void detach(final long handleId, JanusTransaction2.TransactionEvents transactionEvents) {
+        checkIfCalledOnValidThread();
+
+        if(!acceptsRequests()) {
+            Log.w(TAG, "detach() in a error state -- " + state);
+            return;
+        }
+
+        writer.begin("detach")
+                .put("session_id", sessionId)
+                .put("handle_id", handleId);
+
+        send(false, transactionEvents);
+
+        cancelTrickle(handleId);
+        handleMap.remove(handleId);
+    }
+
+    private void destroy() {
+        checkIfCalledOnValidThread();
+
+        // Whatever is pending or queued is abandoned with the session.
+        executor.remove(reconnect);
+        scheduler.clear();
+        transactionMap.clear();
+        claimTransaction = null;
+
+        if(sessionId == 0) {
+            Log.w(TAG, "destroy() for sessionid 0");
+            return;
+        }
+
+        writer.begin("destroy")
+                .put("session_id", sessionId);
+
+        send(false, null);
+
+        state = JanusServerState.CLOSED;
+        sessionId = 0;
+    }
+
+    // Adds a transaction id to the request pending in |writer| and hands it to |scheduler|.
+    // If |transactionEvents| is set the transaction is tracked and returned, it is answered
+    // either by the server or by a timeout error.
+    private JanusTransaction2 send(boolean retryable, JanusTransaction2.TransactionEvents transactionEvents) {
+        long transactionId = transactionIds.next();
+        JanusTransaction2 transaction = null;
+        if (transactionEvents != null) {
+            transaction = new JanusTransaction2();
+            transaction.transactionId = transactionId;
+            transaction.events = transactionEvents;
+            transaction.retryable = retryable;
+            transaction.request = writer.requestName();
+            transactionMap.put(transactionId, transaction);
+        }
+        writer.putHex("transaction", transactionId);
+
+        scheduler.submit(transaction, writer.finish());
+        return transaction;
+    }
+
+    private void onTransactionTimeout(JanusTransaction2 transaction) {
+        transactionMap.remove(transaction.transactionId);
+        metrics.recordTimeout(transaction);
+        Log.w(TAG, "Transaction " + Long.toHexString(transaction.transactionId) + " timed out after "
+                + transaction.attempts + " attempt(s)");
+        transaction.events.error("Janus transaction timeout", JanusCommon.transactionTimeoutCode);
+    }
+
+    // |transaction| was in flight when the socket dropped; the server may or may not have
+    // handled it. Not a server timeout, so it is kept out of the metrics.
+    private void onTransactionLost(JanusTransaction2 transaction) {
+        transactionMap.remove(transaction.transactionId);
+        Log.w(TAG, "Transaction " + Long.toHexString(transaction.transactionId) + " ("
+                + transaction.request + ") lost in reconnect");
+        transaction.events.error("Janus transaction lost in reconnect", JanusCommon.transactionLostCode);
+    }
+
+    // ----------------------------------------------------------------------------
+    // Inbound message handlers, see |dispatchTable|.
+    // ----------------------------------------------------------------------------
+    private void onSuccess(JanusMessage message, JanusTransaction2 transaction) throws JSONException {
+        if (message.hasPluginData()) {
+            // Synchronous plugin response, route it as a plugin event.
+            onPluginEvent(message, transaction);
+            return;
+        }
+
+        if (transaction == null || transaction.events == null) return;
+
+        transaction.events.success(message.getDataId());
+    }
+
+    // The transaction succeeds with the session timeout in seconds.
+    private void onServerInfo(JanusMessage message, JanusTransaction2 transaction) throws JSONException {
+        if (transaction == null || transaction.events == null) return;
+
+        transaction.events.success(message.getJSONObject().optLong("session-timeout", 0));
+    }
+
+    private void onError(JanusMessage message, JanusTransaction2 transaction) throws JSONException {
+        JSONObject error = message.getError();
+        if (error == null) return;
+
+        String reason = error.optString("reason");
+        String code = error.optString("code");
+        if (transaction == null || transaction.events == null) {
+            Log.e(TAG, "onWebSocketMessage:error, Code:" + code + ", reason: " + reason);
+        } else {
+            transaction.events.error(reason, code);
+        }
+    }
+
+    private void onPluginEvent(JanusMessage message, JanusTransaction2 transaction) throws JSONException {
+        JanusHandle janusHandle = message.hasSender() ? handleMap.get(message.getSender()) : null;
+        if (janusHandle == null) {
+            Log.e(TAG, "onWebSocketMessage: missing handle " + message.getSender());
+            return;
+        }
+
+        if (message.getPluginEvent().equals("")) {
+            Log.e(TAG, "onWebSocketMessage: plugin event without data on handle " + janusHandle.handleId);
+            return;
+        }
+
+        janusHandle.plugin.dispatchEvent(janusHandle, message, transaction);
+    }
+
+    private void onCoreEvent(JanusMessage message, JanusTransaction2 transaction) throws JSONException {
+        JanusHandle janusHandle = message.hasSender() ? handleMap.get(message.getSender()) : null;
+        if (janusHandle == null) {
+            Log.d(TAG, "onWebSocketMessage: " + message.getJanus() + " event for unknown handle " + message.getSender());
+            return;
+        }
+
+        janusHandle.plugin.onCoreEvent(janusHandle, message.getJanus(), message);
+    }
+
+    // ----------------------------------------------------------------------------
+    // / WebSocketChannelEvents interface implementation.
+    // / All events are called by WebSocketChannelClient on the session executor
+    // / (passed to the channel constructor).
+    // ----------------------------------------------------------------------------
+    @Override
+    public void onWebSocketMessage(final String msg) {
+        if (wsClient.getState() != WebSocketChannelClient.WebSocketConnectionState.CONNECTED) {
+            Log.e(TAG, "onWebSocketMessage: got WebSocket message in error state.");
+            return;
+        }
+
+        try {
+            JanusMessage message = JanusMessage.parse(msg);
+
+            String janus = message.getJanus();
+            MessageHandler messageHandler = dispatchTable.get(janus);
+            if (messageHandler == null) {
+                Log.d(TAG, "onWebSocketMessage: unrecognized protocol " + janus);
+                return;
+            }
+
+            long transactionId = message.getTransactionId();
+            JanusTransaction2 transaction = null;
+            if (transactionId != JanusTransactionIds.NONE) {
+                if (janus.equals("ack")) {
+                    // An ack only confirms reception, the transaction stays pending unless
+                    // the ack is all the request gets.
+                    JanusTransaction2 acked = transactionMap.get(transactionId);
+                    if (acked != null && acked.ackIsFinal) {
+                        transactionMap.remove(transactionId);
+                        scheduler.complete(acked);
+                        metrics.recordReply(acked, executor.now(), 0, false);
+                    } else if (acked != null) {
+                        scheduler.acknowledge(acked);
+                    }
+                } else {
+                    transaction = transactionMap.remove(transactionId);
+                    if (transaction != null) scheduler.complete(transaction);
+                }
+            }
+
+            if (transaction == null) {
+                messageHandler.handle(message, null);
+                return;
+            }
+            long replyMs = executor.now();
+            long handlingStart = System.nanoTime();
+            messageHandler.handle(message, transaction);
+            metrics.recordReply(transaction, replyMs, System.nanoTime() - handlingStart,
+                    janus.equals("error"));
+        } catch (JSONException e) {
+            reportError("WebSocket message JSON parsing error: " + e.toString());
+        }
+    }
+
+    @Override
+    public void onWebSocketOpen() {
+        if (state == JanusServerState.RECONNECTING) {
+            claim();
+        } else {
+            create();
+        }
+    }
+
+    @Override
+    public void onWebSocketClose() {
+        if (canReconnect()) {
+            scheduleReconnect("WebSocket closed");
+            return;
+        }
+        events.onSessionClose();
+    }
+
+    @Override
+    public void onWebSocketError(String description) {
+        if (canReconnect()) {
+            scheduleReconnect(description);
+            return;
+        }
+        reportError("WebSocket error: " + description);
+    }
+
+    // ----------------------------------------------------------------------------
+    // Helper functions.
+    // ----------------------------------------------------------------------------
+    private void checkIfCalledOnValidThread() {
+        if (!executor.isCurrent()) {
+            throw new IllegalStateException("JanusSession method is not called on valid thread");
+        }
+    }
+
+    public void reportError(final String errorMessage) {
+        Log.e(TAG, errorMessage);
+        SignalingTrace.dump(errorMessage);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (state != JanusServerState.ERROR) {
+                    destroy();
+                    state = JanusServerState.ERROR;
+                    events.onSessionError(errorMessage);
+                }
+            }
+        });
+    }
+}
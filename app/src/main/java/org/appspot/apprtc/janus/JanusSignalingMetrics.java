@@ -0,0 +1,126 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.util.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Latency of the tracked Janus transactions of a {@link JanusSession}, per request type
+ * (create, attach, join, configure, start, ...).
+ *
+ * <p>Each transaction is split where the time goes:
+ * <ul>
+ *   <li>queue: from submit until it was sent, waiting for the in-flight window (client);
+ *   <li>ack: from send until the server acked it, or answered if it never acks (network);
+ *   <li>reply: from send until the final reply, the ack included (network and server);
+ *   <li>handling: running the reply handlers, in microseconds (client).
+ * </ul>
+ * A slow join with a fast ack and a slow reply is the server or the plugin; a slow ack is
+ * the network; a long queue or handling time is the app itself.
+ *
+ * <p>Recorded on the session executor, read from any thread.
+ */
+public class JanusSignalingMetrics {
+    /**
+     * Percentiles of one request type, a copy taken by {@link #snapshot()}.
+     */
+    public static class Summary {
+        public final String request;
+        public final int count;
+        public final int timeouts;
+        public final int errors;
+        // Milliseconds, p50, p95, p99.
+        public final long[] ack;
+        public final long[] reply;
+        public final long[] queue;
+        // Microseconds, p50, p95, p99.
+        public final long[] handling;
+
+        Summary(String request, Stats stats) {
+            this.request = request;
+            this.count = stats.reply.getCount();
+            this.timeouts = stats.timeouts;
+            this.errors = stats.errors;
+            this.ack = percentiles(stats.ack);
+            this.reply = percentiles(stats.reply);
+            this.queue = percentiles(stats.queue);
+            this.handling = percentiles(stats.handling);
+        }
+
+        private static long[] percentiles(LatencyHistogram histogram) {
+            return new long[] {histogram.getPercentile(50), histogram.getPercentile(95),
+                    histogram.getPercentile(99)};
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s n=%d reply %d/%d/%d ack %d/%d/%d queue %d handling %.1f%s",
+                    request, count, reply[0], reply[1], reply[2], ack[0], ack[1], ack[2], queue[1],
+                    handling[1] / 1000.0,
+                    timeouts + errors > 0 ? " to=" + timeouts + " err=" + errors : "");
+        }
+    }
+
+    private static class Stats {
+        final LatencyHistogram ack = new LatencyHistogram();
+        final LatencyHistogram reply = new LatencyHistogram();
+        final LatencyHistogram queue = new LatencyHistogram();
+        final LatencyHistogram handling = new LatencyHistogram();
+        int timeouts;
+        int errors;
+    }
+
+    // Sorted, so that the HUD lines keep their order.
+    private final TreeMap<String, Stats> stats = new TreeMap<>();
+
+    // |transaction| got its final reply at |nowMs|, its handlers ran for |handlingNanos|.
+    synchronized void recordReply(JanusTransaction2 transaction, long nowMs, long handlingNanos,
+                                  boolean error) {
+        if (transaction.request == null || transaction.attempts == 0) return;
+        Stats requestStats = statsFor(transaction.request);
+        requestStats.queue.record(transaction.sentMs - transaction.submittedMs);
+        requestStats.ack.record((transaction.acked ? transaction.ackMs : nowMs) - transaction.sentMs);
+        requestStats.reply.record(nowMs - transaction.sentMs);
+        requestStats.handling.record(handlingNanos / 1000);
+        if (error) requestStats.errors++;
+    }
+
+    synchronized void recordTimeout(JanusTransaction2 transaction) {
+        if (transaction.request == null) return;
+        statsFor(transaction.request).timeouts++;
+    }
+
+    public synchronized List<Summary> snapshot() {
+        List<Summary> summaries = new ArrayList<>(stats.size());
+        for (String request : stats.keySet()) {
+            summaries.add(new Summary(request, stats.get(request)));
+        }
+        return summaries;
+    }
+
+    public synchronized void reset() {
+        stats.clear();
+    }
+
+    // One line per request type, latencies in ms as p50/p95/p99.
+    public String format() {
+        StringBuilder text = new StringBuilder();
+        for (Summary summary : snapshot()) {
+            text.append(summary).append('\n');
+        }
+        return text.toString();
+    }
+
+    private Stats statsFor(String request) {
+        Stats requestStats = stats.get(request);
+        if (requestStats == null) {
+            requestStats = new Stats();
+            stats.put(request, requestStats);
+        }
+        return requestStats;
+    }
+}
@@ -1,15 +1,34 @@
 package org.appspot.apprtc.janus;
 
 import org.json.JSONObject;
-import java.math.BigInteger;
 
 public class JanusTransaction2 {
     public interface TransactionEvents{
-        default void success(BigInteger id) {this.success(id, null);}
-        default void success(BigInteger id, JSONObject jsep) { this.success(id);}
+        default void success(long id) {this.success(id, null);}
+        default void success(long id, JSONObject jsep) { this.success(id);}
         default void error(String reason, String code) {};
     }
 
-    public String transactionId;
+    public long transactionId;
     public TransactionEvents events;
+
+    // Request type and timing for JanusSignalingMetrics, times on the session executor clock.
+    String request;
+    long submittedMs;
+    long sentMs;
+    long ackMs;
+
+    // Scheduling state, owned by JanusTransactionScheduler.
+    String frame;
+    boolean retryable;
+    // The reply is a bare ack (keepalive), not an ack followed by an event.
+    boolean ackIsFinal;
+    boolean acked;
+    boolean retrying;
+    boolean inFlight;
+    int attempts;
+    long deadlineTick;
+    int wheelSlot = -1;
+    JanusTransaction2 wheelPrev;
+    JanusTransaction2 wheelNext;
 }
@@ -0,0 +1,36 @@
+package org.appspot.apprtc.janus;
+
+import java.util.Random;
+
+/**
+ * Transaction id generator of a {@link JanusSession}.
+ *
+ * <p>Ids are a random per-generator prefix in the high bits and a counter in the low
+ * bits, packed into one positive long. On the wire they are written as lowercase hex,
+ * so replies can be matched by parsing the echoed transaction back to the same long
+ * instead of keeping String keys. The prefix keeps ids of several sessions sharing a
+ * Janus server (or a process) apart; the counter makes ids unique within a session.
+ *
+ * <p>Not thread safe, only used on the session executor.
+ */
+public class JanusTransactionIds {
+    // Never returned by next(), marks a missing or foreign transaction.
+    public static final long NONE = 0;
+
+    private static final int COUNTER_BITS = 40;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+    private final long prefix;
+    private long counter;
+
+    public JanusTransactionIds() {
+        // 23 random bits, the sign bit stays clear.
+        prefix = ((long) new Random().nextInt(1 << 23)) << COUNTER_BITS;
+    }
+
+    public long next() {
+        counter = (counter + 1) & COUNTER_MASK;
+        if (counter == 0) counter = 1;
+        return prefix | counter;
+    }
+}
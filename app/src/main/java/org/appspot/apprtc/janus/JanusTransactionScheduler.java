@@ -0,0 +1,317 @@
+package org.appspot.apprtc.janus;
+
+import android.util.Log;
+
+import org.appspot.apprtc.util.SerialExecutor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Deadlines, retries and backpressure for the transactions of a {@link JanusSession}.
+ *
+ * <p>Deadlines live in a hashed timer wheel: scheduling and cancelling a transaction is
+ * O(1) and a single executor task per tick serves every pending transaction, instead
+ * of one delayed Runnable each. A transaction not answered by its deadline is resent
+ * with jittered exponential backoff if it was submitted as retryable (attach, join,
+ * keepalive) and the server has not acked it yet; otherwise it expires and the
+ * session is told through {@link FailureListener}.
+ *
+ * <p>At most {@link JanusCommon#maxInFlightTransactions} tracked transactions are in
+ * flight at once. Further requests, tracked or not, are queued in order and sent as
+ * replies come in, so a burst of attaches after a reconnect cannot flood the server.
+ *
+ * <p>While the channel is down the scheduler is held: nothing is sent, new requests are
+ * queued and the deadlines of the transactions in flight are suspended. Once the session
+ * is back, retryable transactions the server has not acked are resent and the others fail
+ * right away as lost, since their replies went with the old channel.
+ *
+ * <p>Not thread safe, only used on the session executor.
+ */
+class JanusTransactionScheduler {
+    private static final String TAG = "JanusTransactionScheduler";
+
+    interface Transport {
+        void send(String frame);
+    }
+
+    interface FailureListener {
+        // No reply before the deadline, retries included.
+        void onTransactionTimeout(JanusTransaction2 transaction);
+        // In flight when the channel dropped and not safe to resend.
+        void onTransactionLost(JanusTransaction2 transaction);
+    }
+
+    // Must be a power of two.
+    private static final int WHEEL_SLOTS = 64;
+    private static final int TICK_MILLIS = 250;
+
+    private final SerialExecutor executor;
+    private final Transport transport;
+    private final FailureListener listener;
+    private final Random random = new Random();
+
+    // Heads of the per slot lists, linked through JanusTransaction2.wheelNext/wheelPrev.
+    private final JanusTransaction2[] wheel = new JanusTransaction2[WHEEL_SLOTS];
+    private final ArrayDeque<JanusTransaction2> queue = new ArrayDeque<>();
+    // In flight when the scheduler was held, their deadlines are suspended.
+    private final ArrayList<JanusTransaction2> suspended = new ArrayList<>();
+    private boolean held;
+    private int scheduled;
+    private int inFlight;
+    private long currentTick;
+    private boolean ticking;
+
+    JanusTransactionScheduler(SerialExecutor executor, Transport transport, FailureListener listener) {
+        this.executor = executor;
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    // Sends |frame|. |transaction| is null for requests nobody waits a reply for.
+    void submit(JanusTransaction2 transaction, String frame) {
+        if (transaction == null) {
+            if (queue.isEmpty() && !held) {
+                transport.send(frame);
+            } else {
+                JanusTransaction2 untracked = new JanusTransaction2();
+                untracked.frame = frame;
+                queue.add(untracked);
+            }
+            return;
+        }
+
+        transaction.frame = frame;
+        transaction.submittedMs = executor.now();
+        if (held || inFlight >= JanusCommon.maxInFlightTransactions || !queue.isEmpty()) {
+            Log.d(TAG, "Queueing transaction, " + inFlight + " in flight");
+            queue.add(transaction);
+            return;
+        }
+        start(transaction);
+    }
+
+    // Sends |transaction| right away, ahead of the queue, regardless of the in-flight cap and
+    // even while held.
+    void submitFirst(JanusTransaction2 transaction, String frame) {
+        transaction.frame = frame;
+        transaction.submittedMs = executor.now();
+        start(transaction);
+    }
+
+    // The server acked |transaction|, its final reply follows as an event: stop retrying
+    // and wait longer.
+    void acknowledge(JanusTransaction2 transaction) {
+        if (!transaction.inFlight) return;
+        transaction.acked = true;
+        transaction.ackMs = executor.now();
+        transaction.retrying = false;
+        // A suspended deadline is restarted by resume().
+        if (transaction.wheelSlot < 0) return;
+        unschedule(transaction);
+        schedule(transaction, JanusCommon.transactionAckTimeoutMillis);
+    }
+
+    // |transaction| got its final reply.
+    void complete(JanusTransaction2 transaction) {
+        if (!transaction.inFlight) return;
+        transaction.inFlight = false;
+        transaction.frame = null;
+        unschedule(transaction);
+        inFlight--;
+        drain();
+    }
+
+    // The channel dropped: stops sending and suspends the deadlines of the transactions in
+    // flight, their replies cannot come before resume().
+    void hold() {
+        if (held) return;
+        held = true;
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            while (wheel[i] != null) {
+                JanusTransaction2 transaction = wheel[i];
+                unschedule(transaction);
+                transaction.retrying = false;
+                suspended.add(transaction);
+            }
+        }
+    }
+
+    // The session is back on a new channel: resends the suspended transactions that may be
+    // sent twice, fails the others as lost and sends what was queued meanwhile.
+    void resume() {
+        if (!held) return;
+        held = false;
+        ArrayList<JanusTransaction2> transactions = new ArrayList<>(suspended);
+        suspended.clear();
+        for (JanusTransaction2 transaction : transactions) {
+            if (!transaction.inFlight) continue;
+            if (transaction.retryable && !transaction.acked) {
+                transaction.attempts++;
+                transaction.sentMs = executor.now();
+                transport.send(transaction.frame);
+                schedule(transaction, JanusCommon.transactionTimeoutMillis);
+            } else {
+                finish(transaction);
+                listener.onTransactionLost(transaction);
+            }
+        }
+        drain();
+    }
+
+    boolean isHeld() {
+        return held;
+    }
+
+    // Drops every pending and queued transaction without notifying anyone.
+    void clear() {
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            JanusTransaction2 transaction = wheel[i];
+            while (transaction != null) {
+                JanusTransaction2 next = transaction.wheelNext;
+                transaction.wheelNext = transaction.wheelPrev = null;
+                transaction.wheelSlot = -1;
+                transaction.inFlight = false;
+                transaction = next;
+            }
+            wheel[i] = null;
+        }
+        for (JanusTransaction2 transaction : suspended) {
+            transaction.inFlight = false;
+        }
+        suspended.clear();
+        held = false;
+        queue.clear();
+        scheduled = 0;
+        inFlight = 0;
+        executor.remove(tick);
+        ticking = false;
+    }
+
+    private void start(JanusTransaction2 transaction) {
+        inFlight++;
+        transaction.inFlight = true;
+        transaction.attempts = 1;
+        transaction.sentMs = executor.now();
+        transport.send(transaction.frame);
+        schedule(transaction, JanusCommon.transactionTimeoutMillis);
+    }
+
+    private void finish(JanusTransaction2 transaction) {
+        transaction.inFlight = false;
+        transaction.frame = null;
+        inFlight--;
+    }
+
+    private void drain() {
+        while (!held && !queue.isEmpty()) {
+            JanusTransaction2 head = queue.peek();
+            if (head.events != null && inFlight >= JanusCommon.maxInFlightTransactions) return;
+            queue.poll();
+            if (head.events == null) {
+                transport.send(head.frame);
+            } else {
+                start(head);
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+    // Timer wheel
+    // ----------------------------------------------------------------------------
+    private void schedule(JanusTransaction2 transaction, int delayMillis) {
+        if (!ticking) {
+            currentTick = nowTick();
+            ticking = true;
+            executor.executeDelayed(tick, TICK_MILLIS);
+        }
+        long ticks = Math.max(1, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+        transaction.deadlineTick = currentTick + ticks;
+
+        int slot = (int) (transaction.deadlineTick & (WHEEL_SLOTS - 1));
+        transaction.wheelSlot = slot;
+        transaction.wheelPrev = null;
+        transaction.wheelNext = wheel[slot];
+        if (wheel[slot] != null) wheel[slot].wheelPrev = transaction;
+        wheel[slot] = transaction;
+        scheduled++;
+    }
+
+    private void unschedule(JanusTransaction2 transaction) {
+        if (transaction.wheelSlot < 0) return;
+        if (transaction.wheelPrev != null) {
+            transaction.wheelPrev.wheelNext = transaction.wheelNext;
+        } else {
+            wheel[transaction.wheelSlot] = transaction.wheelNext;
+        }
+        if (transaction.wheelNext != null) transaction.wheelNext.wheelPrev = transaction.wheelPrev;
+        transaction.wheelNext = transaction.wheelPrev = null;
+        transaction.wheelSlot = -1;
+        scheduled--;
+    }
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            // Catch up on ticks the executor was too busy to run.
+            long now = nowTick();
+            while (currentTick < now && scheduled > 0) {
+                currentTick++;
+                expireSlot((int) (currentTick & (WHEEL_SLOTS - 1)));
+            }
+            currentTick = now;
+
+            if (scheduled > 0) {
+                executor.executeDelayed(tick, TICK_MILLIS);
+            } else {
+                ticking = false;
+            }
+        }
+    };
+
+    private void expireSlot(int slot) {
+        JanusTransaction2 transaction = wheel[slot];
+        while (transaction != null) {
+            JanusTransaction2 next = transaction.wheelNext;
+            // Entries more than a wheel revolution away share the slot, skip them.
+            if (transaction.deadlineTick <= currentTick) {
+                unschedule(transaction);
+                onDeadline(transaction);
+            }
+            transaction = next;
+        }
+    }
+
+    private void onDeadline(JanusTransaction2 transaction) {
+        if (transaction.retrying) {
+            transaction.retrying = false;
+            transaction.attempts++;
+            Log.d(TAG, "Retrying transaction, attempt " + transaction.attempts);
+            transport.send(transaction.frame);
+            schedule(transaction, JanusCommon.transactionTimeoutMillis);
+            return;
+        }
+
+        if (transaction.retryable && !transaction.acked
+                && transaction.attempts <= JanusCommon.maxTransactionRetries) {
+            transaction.retrying = true;
+            schedule(transaction, backoffMillis(transaction.attempts));
+            return;
+        }
+
+        finish(transaction);
+        listener.onTransactionTimeout(transaction);
+        drain();
+    }
+
+    // Exponential backoff with equal jitter: half fixed, half random.
+    private int backoffMillis(int attempt) {
+        int backoff = JanusCommon.transactionRetryBaseMillis << Math.min(attempt - 1, 8);
+        return backoff / 2 + random.nextInt(backoff / 2 + 1);
+    }
+
+    private long nowTick() {
+        return executor.now() / TICK_MILLIS;
+    }
+}
@@ -0,0 +1,686 @@
+package org.appspot.apprtc.janus;
+
+import android.util.Log;
+
+import org.appspot.apprtc.janus.JanusCommon.JanusConnectionParameters;
+import org.appspot.apprtc.util.LongHashMap;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.SessionDescription;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adapter for janus.plugin.videoroom: one publisher handle plus, when
+ * |subscribeToPublishers| is set, one subscriber handle per remote feed.
+ *
+ * <p>Subscribers are set up as independent pipelines: every feed of a publishers list is
+ * attached at once and then advances through its own {@link FeedState} machine, so a
+ * room with N publishers takes one attach/join/start chain of round trips, not N. The
+ * application hears about each subscriber handle as soon as it is attached
+ * ({@link JanusRTCEvents2#onSubscriberAttached}), so it can build the PeerConnection
+ * while the join is still in flight.
+ *
+ * <p>With {@link JanusConnectionParameters#multistream} set, all remote feeds are instead
+ * received over a single subscriber handle (Janus multistream): feeds are added with
+ * "update" requests, each answered by a renegotiation offer on the same PeerConnection,
+ * and the m-line (mid) to feed mapping of every offer is reported to {@link StreamEvents}.
+ */
+public class JanusVideoRoomPlugin extends JanusPluginAdapter {
+    private static final String TAG = "JanusVideoRoomPlugin";
+
+    private final JanusRTCEvents2 events;
+    private final boolean subscribeToPublishers;
+    private JanusConnectionParameters connectionParameters;
+
+    // Setup progress of a subscriber feed.
+    private enum FeedState { ATTACHING, JOINING, NEGOTIATING, STARTING, STARTED }
+
+    private static class SubscriberFeed {
+        final long feedId;
+        final String display;
+        FeedState state = FeedState.ATTACHING;
+        JanusHandle handle;
+        // The feed left before its handle was attached, detach as soon as it is.
+        boolean left;
+
+        SubscriberFeed(long feedId, String display) {
+            this.feedId = feedId;
+            this.display = display;
+        }
+    }
+
+    private final LongHashMap<SubscriberFeed> subscriberFeeds = new LongHashMap<>();
+    private JanusHandle publisherHandle;
+    private long privateId;
+
+    /**
+     * One m-line of a multistream subscription, as listed by "attached" and "updated" events.
+     */
+    public static class Stream {
+        public final String mid;
+        public final String type;
+        // 0 if the m-line is inactive.
+        public final long feedId;
+        public final String display;
+
+        Stream(String mid, String type, long feedId, String display) {
+            this.mid = mid;
+            this.type = type;
+            this.feedId = feedId;
+            this.display = display;
+        }
+
+        public boolean isActive() {
+            return feedId != 0;
+        }
+    }
+
+    public interface StreamEvents {
+        // |streams| lists every m-line of the subscription on |handleId|, active or not.
+        void onStreamsUpdated(long handleId, List<Stream> streams);
+    }
+
+    // Multistream mode: one subscriber handle carries every remote feed.
+    private StreamEvents streamEvents;
+    private JanusHandle streamsHandle;
+    private boolean streamsAttaching;
+    private boolean streamsJoined;
+    // A join or update is in flight or its offer is not answered yet. Janus renegotiates one
+    // change at a time, later feeds wait in pendingStreamFeeds.
+    private boolean streamsBusy;
+    // Display names by feed id, for feeds subscribed or about to be.
+    private final LongHashMap<String> streamFeeds = new LongHashMap<>();
+    private final ArrayList<Long> pendingStreamFeeds = new ArrayList<>();
+
+    public JanusVideoRoomPlugin(JanusRTCEvents2 events, boolean subscribeToPublishers) {
+        super("janus.plugin.videoroom");
+        this.events = events;
+        this.subscribeToPublishers = subscribeToPublishers;
+
+        registerEvent("joined", this::onJoined);
+        registerEvent("attached", this::onAttached);
+        registerEvent("updated", this::onUpdated);
+        registerEvent("event", this::onRoomEvent);
+        registerEvent("slow_link", (handle, message, transaction) ->
+                reportNotification("Got a slow_link event on handle " + handle.handleId));
+        registerEvent("error", this::onRoomError);
+    }
+
+    public void setConnectionParameters(JanusConnectionParameters connectionParameters) {
+        this.connectionParameters = connectionParameters;
+    }
+
+    public void setStreamEvents(StreamEvents streamEvents) {
+        this.streamEvents = streamEvents;
+    }
+
+    @Override
+    public void onSessionCreated() {
+        attachPublisher();
+    }
+
+    @Override
+    public void onCoreEvent(JanusHandle handle, String janus, JanusMessage message) throws JSONException {
+        if (janus.equals("media")) {
+            JSONObject json = message.getJSONObject();
+            reportNotification("Got a media event on handle " + handle.handleId + ", media type is "
+                    + json.optString("type") + ", receiving is " + json.optBoolean("receiving"));
+        } else {
+            super.onCoreEvent(handle, janus, message);
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+    // Plugin requests
+    // ----------------------------------------------------------------------------
+    private void attachPublisher() {
+        session.attach(this, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                publisherHandle = session.getHandle(id);
+                publisherHandle.feedId = id;
+                publisherHandle.display = connectionParameters.userDisplay;
+
+                joinPublisher(id);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                Log.e(TAG,"Transaction error: " + code + " " + reason);
+                session.reportError(reason);
+            }
+        });
+    }
+
+    private void joinPublisher(final long handleId) {
+        JanusMessageWriter.Body body = writer -> writer
+                .put("request", "join")
+                .put("room", connectionParameters.roomId)
+                .put("ptype", "publisher")
+                .put("display", connectionParameters.userDisplay);
+
+        session.sendMessage(handleId, body, null, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                events.onPublisherJoined(BigInteger.valueOf(id));
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusCommon.transactionLostCode.equals(code)) {
+                    // Acked before the socket dropped, the handle may or may not be in the
+                    // room: join again on a fresh one.
+                    Log.w(TAG, "Publisher join lost in reconnect, joining on a new handle");
+                    session.detach(handleId, null);
+                    publisherHandle = null;
+                    attachPublisher();
+                    return;
+                }
+                Log.e(TAG,"Transaction error: " + code + " " + reason);
+                session.reportError(reason);
+            }
+        }, true /* retryable */);
+    }
+
+    // Starts the pipeline of a remote feed, unless it is already set up or in progress.
+    private void subscribe(final long feedId, final String display) {
+        if (subscriberFeeds.containsKey(feedId)) return;
+
+        final SubscriberFeed feed = new SubscriberFeed(feedId, display);
+        subscriberFeeds.put(feedId, feed);
+
+        session.attach(this, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                JanusHandle janusHandle = session.getHandle(id);
+                janusHandle.feedId = feedId;
+                janusHandle.display = display;
+                feed.handle = janusHandle;
+
+                if (feed.left) {
+                    detach(feed);
+                    return;
+                }
+                feed.state = FeedState.JOINING;
+                events.onSubscriberAttached(BigInteger.valueOf(id));
+                joinSubscriber(feed);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                // One failed feed does not take the room down.
+                Log.e(TAG, "Subscriber attach for feed " + feedId + " failed: " + code + " " + reason);
+                subscriberFeeds.remove(feedId);
+            }
+        });
+    }
+
+    private void joinSubscriber(final SubscriberFeed feed) {
+        JanusMessageWriter.Body body = writer -> writer
+                .put("request", "join")
+                .put("room", connectionParameters.roomId)
+                .put("ptype", "subscriber")
+                .put("feed", feed.feedId)
+                .put("private_id", privateId);
+
+        session.sendMessage(feed.handle.handleId, body, null, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id, JSONObject jsep) {
+                if (feed.left || jsep == null) {
+                    Log.w(TAG, "join: no offer for feed " + feed.feedId);
+                    return;
+                }
+                feed.state = FeedState.NEGOTIATING;
+                events.onRemoteJsep(BigInteger.valueOf(id), jsep);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusCommon.transactionLostCode.equals(code)) {
+                    resubscribe(feed);
+                    return;
+                }
+                Log.e(TAG, "Subscriber join for feed " + feed.feedId + " failed: " + code + " " + reason);
+                detach(feed);
+            }
+        }, true /* retryable */);
+    }
+
+    // Sends the publisher offer.
+    public void configure(final long handleId, final SessionDescription sdp) {
+        JanusMessageWriter.Body body = writer -> writer
+                .put("request", "configure")
+                .put("audio", true)
+                .put("video", true);
+
+        session.sendMessage(handleId, body, sdp, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id, JSONObject jsep) {
+                if (session.getHandle(id) == null) {
+                    Log.e(TAG, "offerConfigured: missing handle " + id);
+                } else {
+                    events.onRemoteJsep(BigInteger.valueOf(id), jsep);
+                }
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusCommon.transactionLostCode.equals(code)) {
+                    // The answer was lost. Offering again is safe: if Janus had the first
+                    // offer, it takes this one as a renegotiation.
+                    Log.w(TAG, "Publisher configure lost in reconnect, sending the offer again");
+                    configure(handleId, sdp);
+                    return;
+                }
+                Log.e(TAG,"Transaction error: " + code + " " + reason);
+                session.reportError(reason);
+            }
+        });
+    }
+
+    // Sends a subscriber answer.
+    public void start(long handleId, SessionDescription sdp) {
+        if (streamsHandle != null && handleId == streamsHandle.handleId) {
+            startStreams(sdp);
+            return;
+        }
+
+        JanusHandle janusHandle = session.getHandle(handleId);
+        final SubscriberFeed feed = janusHandle == null ? null : subscriberFeeds.get(janusHandle.feedId);
+        if (feed == null) {
+            Log.w(TAG, "start: no subscriber feed on handle " + handleId);
+            return;
+        }
+        feed.state = FeedState.STARTING;
+
+        JanusMessageWriter.Body body = writer -> writer
+                .put("request", "start")
+                .put("room", connectionParameters.roomId);
+
+        session.sendMessage(handleId, body, sdp, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                feed.state = FeedState.STARTED;
+                reportNotification("Server receive the answer message in handle " + id);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusCommon.transactionLostCode.equals(code)) {
+                    // An answer cannot be sent twice, negotiate the feed again instead.
+                    resubscribe(feed);
+                    return;
+                }
+                Log.e(TAG,"Transaction error: " + code + " " + reason);
+                session.reportError(reason);
+            }
+        });
+    }
+
+    /**
+     * Asks Janus to forward simulcast |substream| and |temporal| layer of a subscription: the
+     * feed of subscriber |handleId|, or in multistream mode the feed on m-line |mid|. Janus
+     * ignores layers the publisher does not send.
+     */
+    public void configureSubscriber(final long handleId, final String mid, final int substream,
+                                    final int temporal) {
+        JanusMessageWriter.Body body;
+        if (mid == null) {
+            body = writer -> writer
+                    .put("request", "configure")
+                    .put("substream", substream)
+                    .put("temporal", temporal);
+        } else {
+            body = writer -> writer
+                    .put("request", "configure")
+                    .beginArray("streams")
+                    .beginElement()
+                    .put("mid", mid)
+                    .put("substream", substream)
+                    .put("temporal", temporal)
+                    .endObject()
+                    .endArray();
+        }
+
+        session.sendMessage(handleId, body, null, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                Log.d(TAG, "Subscriber " + id + (mid == null ? "" : " mid " + mid)
+                        + " configured to substream " + substream + ", temporal " + temporal);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                // The previous layers stay, nothing else depends on it.
+                Log.w(TAG, "Subscriber configure on handle " + handleId + " failed: " + code + " " + reason);
+            }
+        }, true /* retryable */);
+    }
+
+    // Tears down a subscriber feed in any state.
+    private void unsubscribe(long feedId) {
+        if (publisherHandle != null && feedId == publisherHandle.feedId) {
+            detach(publisherHandle);
+            return;
+        }
+        if (connectionParameters.multistream) {
+            unsubscribeStream(feedId);
+            return;
+        }
+
+        SubscriberFeed feed = subscriberFeeds.get(feedId);
+        if (feed == null) return;
+        if (feed.state == FeedState.ATTACHING) {
+            // The attach is in flight, finish it off once the handle exists.
+            feed.left = true;
+            return;
+        }
+        detach(feed);
+    }
+
+    // Sets |feed| up again on a new handle, after a request on its handle was lost in a
+    // reconnect and the handle's negotiation state is unknown.
+    private void resubscribe(SubscriberFeed feed) {
+        if (feed.left) return;
+        Log.w(TAG, "Subscription of feed " + feed.feedId + " lost in reconnect, subscribing again");
+        detach(feed);
+        subscribe(feed.feedId, feed.display);
+    }
+
+    private void detach(SubscriberFeed feed) {
+        feed.left = true;
+        subscriberFeeds.remove(feed.feedId);
+        if (feed.handle != null) detach(feed.handle);
+    }
+
+    private void detach(final JanusHandle janusHandle) {
+        final long handleId = janusHandle.handleId;
+        events.onLeft(BigInteger.valueOf(handleId));
+
+        session.detach(handleId, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                Log.d(TAG, "detach a handle by remote stream " + handleId);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                Log.e(TAG,"Transaction error: " + code + " " + reason);
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------
+    // Multistream subscription
+    // ----------------------------------------------------------------------------
+    private void subscribeStream(long feedId, String display) {
+        if (streamFeeds.containsKey(feedId)) return;
+
+        streamFeeds.put(feedId, display);
+        pendingStreamFeeds.add(feedId);
+        updateStreams();
+    }
+
+    // Janus drops the streams of a leaving publisher by itself and sends an "updated" offer,
+    // only feeds not requested yet need cancelling here.
+    private void unsubscribeStream(long feedId) {
+        if (streamFeeds.remove(feedId) == null) return;
+        pendingStreamFeeds.remove(Long.valueOf(feedId));
+    }
+
+    // Requests the pending feeds, unless a renegotiation is in progress.
+    private void updateStreams() {
+        if (streamsBusy || pendingStreamFeeds.isEmpty()) return;
+        if (streamsHandle == null) {
+            attachStreams();
+            return;
+        }
+
+        final long[] feeds = new long[pendingStreamFeeds.size()];
+        for (int i = 0; i < feeds.length; i++) feeds[i] = pendingStreamFeeds.get(i);
+        pendingStreamFeeds.clear();
+        streamsBusy = true;
+
+        final boolean join = !streamsJoined;
+        JanusMessageWriter.Body body;
+        if (join) {
+            body = writer -> feedList(writer
+                    .put("request", "join")
+                    .put("room", connectionParameters.roomId)
+                    .put("ptype", "subscriber")
+                    .put("private_id", privateId), "streams", feeds);
+        } else {
+            body = writer -> feedList(writer.put("request", "update"), "subscribe", feeds);
+        }
+
+        session.sendMessage(streamsHandle.handleId, body, null, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id, JSONObject jsep) {
+                streamsJoined = true;
+                if (jsep == null) {
+                    // Nothing to renegotiate, e.g. every feed left meanwhile.
+                    streamsBusy = false;
+                    updateStreams();
+                    return;
+                }
+                events.onRemoteJsep(BigInteger.valueOf(id), jsep);
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusCommon.transactionLostCode.equals(code)) {
+                    resubscribeStreams();
+                    return;
+                }
+                Log.e(TAG, "Multistream " + (join ? "join" : "update") + " failed: " + code + " " + reason);
+                for (long feedId : feeds) streamFeeds.remove(feedId);
+                streamsBusy = false;
+                updateStreams();
+            }
+        }, join /* retryable, an update must not be applied twice */);
+    }
+
+    // A request of the multistream handle was lost in a reconnect and its negotiation state
+    // is unknown: subscribe every feed again on a new handle.
+    private void resubscribeStreams() {
+        Log.w(TAG, "Multistream subscription lost in reconnect, subscribing again");
+        if (streamsHandle != null) detach(streamsHandle);
+        streamsHandle = null;
+        streamsJoined = false;
+        streamsBusy = false;
+        pendingStreamFeeds.clear();
+        for (long feedId : streamFeeds.keys()) pendingStreamFeeds.add(feedId);
+        updateStreams();
+    }
+
+    private void attachStreams() {
+        if (streamsAttaching) return;
+        streamsAttaching = true;
+
+        session.attach(this, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                streamsAttaching = false;
+                streamsHandle = session.getHandle(id);
+                events.onSubscriberAttached(BigInteger.valueOf(id));
+                updateStreams();
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                streamsAttaching = false;
+                Log.e(TAG, "Multistream subscriber attach failed: " + code + " " + reason);
+                streamFeeds.clear();
+                pendingStreamFeeds.clear();
+            }
+        });
+    }
+
+    private void startStreams(SessionDescription sdp) {
+        JanusMessageWriter.Body body = writer -> writer
+                .put("request", "start")
+                .put("room", connectionParameters.roomId);
+
+        session.sendMessage(streamsHandle.handleId, body, sdp, new JanusTransaction2.TransactionEvents() {
+            @Override
+            public void success(long id) {
+                streamsBusy = false;
+                updateStreams();
+            }
+
+            @Override
+            public void error(String reason, String code) {
+                if (JanusCommon.transactionLostCode.equals(code)) {
+                    resubscribeStreams();
+                    return;
+                }
+                Log.e(TAG,"Transaction error: " + code + " " + reason);
+                session.reportError(reason);
+            }
+        });
+    }
+
+    // Reports the mid to feed mapping carried by an "attached" or "updated" event.
+    private void reportStreams(JanusHandle handle, JanusMessage message) throws JSONException {
+        if (handle != streamsHandle || streamEvents == null) return;
+
+        JSONArray array = message.getDataArray("streams");
+        if (array == null) return;
+
+        List<Stream> streams = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject stream = array.optJSONObject(i);
+            if (stream == null) continue;
+            long feedId = stream.optBoolean("active", true) ? stream.optLong("feed_id") : 0;
+            streams.add(new Stream(stream.optString("mid"), stream.optString("type"), feedId,
+                    stream.optString("feed_display")));
+        }
+        streamEvents.onStreamsUpdated(handle.handleId, streams);
+    }
+
+    private static void feedList(JanusMessageWriter writer, String key, long[] feeds) {
+        writer.beginArray(key);
+        for (long feedId : feeds) {
+            writer.beginElement().put("feed", feedId).endObject();
+        }
+        writer.endArray();
+    }
+
+    // ----------------------------------------------------------------------------
+    // Plugin event handlers, see registerEvent() calls in the constructor.
+    // ----------------------------------------------------------------------------
+    private void onJoined(JanusHandle handle, JanusMessage message, JanusTransaction2 transaction)
+            throws JSONException {
+        String pid = message.getDataString("private_id");
+        if(!pid.equals("")) privateId = Long.parseLong(pid);
+        // Our own feed id, as used by leaving/unpublished notifications.
+        if (handle == publisherHandle && message.getDataId() != 0) handle.feedId = message.getDataId();
+
+        attachPublishers(message.getDataArray("publishers"));
+
+        if (transaction != null && transaction.events != null) {
+            transaction.events.success(handle.handleId);
+        }
+    }
+
+    private void onAttached(JanusHandle handle, JanusMessage message, JanusTransaction2 transaction)
+            throws JSONException {
+        reportStreams(handle, message);
+        if (transaction != null && transaction.events != null) {
+            transaction.events.success(handle.handleId, message.getJsep());
+        }
+    }
+
+    // Multistream subscription changed, either by our update or by Janus itself when a
+    // publisher left. Either way a new offer may come along.
+    private void onUpdated(JanusHandle handle, JanusMessage message, JanusTransaction2 transaction)
+            throws JSONException {
+        reportStreams(handle, message);
+
+        JSONObject jsep = message.getJsep();
+        if (transaction != null && transaction.events != null) {
+            transaction.events.success(handle.handleId, jsep);
+        } else if (jsep != null) {
+            streamsBusy = true;
+            events.onRemoteJsep(BigInteger.valueOf(handle.handleId), jsep);
+        }
+    }
+
+    private void onRoomEvent(JanusHandle handle, JanusMessage message, JanusTransaction2 transaction)
+            throws JSONException {
+        attachPublishers(message.getDataArray("publishers"));
+
+        String configured = message.getDataString("configured");
+        if(!configured.equals("") && transaction != null && transaction.events != null) {
+            if(configured.equals("ok")) {
+                transaction.events.success(handle.handleId, message.getJsep());
+            } else {
+                transaction.events.error(
+                        checkError(message, "error", "configured is " + configured),
+                        checkError(message, "error_code", "createOffer")
+                );
+            }
+            return;
+        }
+
+        String started = message.getDataString("started");
+        if(!started.equals("") && transaction != null && transaction.events != null) {
+            if(started.equals("ok")) {
+                transaction.events.success(handle.handleId);
+            } else {
+                transaction.events.error(
+                        checkError(message, "error", "started is " + started),
+                        checkError(message, "error_code", "createAnswer")
+                );
+            }
+            return;
+        }
+
+        String unpublished = message.getDataString("unpublished");
+        if(!unpublished.equals("")) {
+            if (unpublished.equals("ok")) {
+                //fixme: this branch is unused, add function later.
+            } else {
+                unsubscribe(Long.parseLong(unpublished));
+            }
+            return;
+        }
+
+        String leaving = message.getDataString("leaving");
+        if (!leaving.equals("")) {
+            unsubscribe(Long.parseLong(leaving));
+        }
+    }
+
+    private void onRoomError(JanusHandle handle, JanusMessage message, JanusTransaction2 transaction)
+            throws JSONException {
+        if (transaction != null && transaction.events != null) {
+            transaction.events.error(checkError(message, "error", "unknown error"), "videoroom");
+        } else {
+            Log.e(TAG, "videoroom error on handle " + handle.handleId + ": " + message.getDataString("error"));
+        }
+    }
+
+    private void attachPublishers(JSONArray publishers) {
+        if (publishers == null || !subscribeToPublishers) return;
+
+        for (int i = 0; i < publishers.length(); i++) {
+            JSONObject publisher = publishers.optJSONObject(i);
+            long feedId = publisher.optLong("id");
+            String display = publisher.optString("display");
+            if (connectionParameters.multistream) {
+                subscribeStream(feedId, display);
+            } else {
+                subscribe(feedId, display);
+            }
+        }
+    }
+
+    private void reportNotification(final String notificationMessage) {
+        events.onNotification(notificationMessage);
+    }
+}
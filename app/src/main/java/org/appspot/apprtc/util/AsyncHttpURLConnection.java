@@ -10,25 +10,18 @@
 
 package org.appspot.apprtc.util;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.util.Scanner;
-
 /**
- * Asynchronous http requests implementation.
+ * Asynchronous http requests implementation, executed by the shared {@link HttpClient}.
  */
 public class AsyncHttpURLConnection {
   private static final int HTTP_TIMEOUT_MS = 8000;
-  private static final String HTTP_ORIGIN = "https://appr.tc";
   private final String method;
   private final String url;
   private final String message;
   private final AsyncHttpEvents events;
   private String contentType;
+  private int timeoutMs = HTTP_TIMEOUT_MS;
+  private boolean longPoll;
 
   /**
    * Http requests callbacks.
@@ -49,66 +42,23 @@ public class AsyncHttpURLConnection {
     this.contentType = contentType;
   }
 
-  public void send() {
-    new Thread(this ::sendHttpMessage).start();
+  // Connect and read timeout, long polls need more than the default.
+  public void setTimeout(int timeoutMs) {
+    this.timeoutMs = timeoutMs;
   }
 
-  private void sendHttpMessage() {
-    try {
-      HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-      byte[] postData = new byte[0];
-      if (message != null) {
-        postData = message.getBytes("UTF-8");
-      }
-      connection.setRequestMethod(method);
-      connection.setUseCaches(false);
-      connection.setDoInput(true);
-      connection.setConnectTimeout(HTTP_TIMEOUT_MS);
-      connection.setReadTimeout(HTTP_TIMEOUT_MS);
-      // TODO(glaznev) - query request origin from pref_room_server_url_key preferences.
-      connection.addRequestProperty("origin", HTTP_ORIGIN);
-      boolean doOutput = false;
-      if (method.equals("POST")) {
-        doOutput = true;
-        connection.setDoOutput(true);
-        connection.setFixedLengthStreamingMode(postData.length);
-      }
-      if (contentType == null) {
-        connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
-      } else {
-        connection.setRequestProperty("Content-Type", contentType);
-      }
-
-      // Send POST request.
-      if (doOutput && postData.length > 0) {
-        OutputStream outStream = connection.getOutputStream();
-        outStream.write(postData);
-        outStream.close();
-      }
-
-      // Get response.
-      int responseCode = connection.getResponseCode();
-      if (responseCode != 200) {
-        events.onHttpError("Non-200 response to " + method + " to URL: " + url + " : "
-            + connection.getHeaderField(null));
-        connection.disconnect();
-        return;
-      }
-      InputStream responseStream = connection.getInputStream();
-      String response = drainStream(responseStream);
-      responseStream.close();
-      connection.disconnect();
-      events.onHttpComplete(response);
-    } catch (SocketTimeoutException e) {
-      events.onHttpError("HTTP " + method + " to " + url + " timeout");
-    } catch (IOException e) {
-      events.onHttpError("HTTP " + method + " to " + url + " error: " + e.getMessage());
-    }
+  // A long poll runs on a thread of its own instead of the shared request pool. It carries
+  // no message.
+  public void setLongPoll(boolean longPoll) {
+    this.longPoll = longPoll;
   }
 
-  // Return the contents of an InputStream as a String.
-  private static String drainStream(InputStream in) {
-    Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
-    return s.hasNext() ? s.next() : "";
+  public void send() {
+    String type = contentType == null ? "text/plain; charset=utf-8" : contentType;
+    if (longPoll) {
+      HttpClient.getDefault().sendLongPoll(method, url, type, timeoutMs, events);
+    } else {
+      HttpClient.getDefault().send(method, url, message, type, timeoutMs, events);
+    }
   }
 }
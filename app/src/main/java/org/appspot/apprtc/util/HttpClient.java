@@ -0,0 +1,234 @@
+package org.appspot.apprtc.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous HTTP client shared by all requests of the app.
+ *
+ * <p>Requests run on a bounded pool of {@link #MAX_THREADS} daemon threads, further requests
+ * queue. Long polls, which the server holds open for up to their timeout, get a thread of
+ * their own each instead, so they cannot starve the requests queued behind them. Idle
+ * threads exit after {@link #KEEP_ALIVE_SECONDS}. Connections are left to the
+ * {@link HttpURLConnection} connection pool: every response body is read to the end and
+ * closed but the connection is not disconnected, so the next request to the same host
+ * reuses the socket (and TLS session) instead of doing a new handshake.
+ *
+ * <p>Response bodies are read into a per-thread buffer that is reused across requests.
+ *
+ * <p>Latency, from the request being queued to its response being read, is recorded per
+ * client for every request but long polls, and shown in the HUD; see {@link #format()}.
+ */
+public class HttpClient {
+  private static final int MAX_THREADS = 4;
+  private static final int KEEP_ALIVE_SECONDS = 30;
+  private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+  // A thread keeps a grown buffer up to this size, larger ones are dropped after the request.
+  private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+  private static final String HTTP_ORIGIN = "https://appr.tc";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final HttpClient DEFAULT = new HttpClient();
+
+  private static final ThreadLocal<byte[]> responseBuffer = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[INITIAL_BUFFER_SIZE];
+    }
+  };
+
+  private final ThreadPoolExecutor executor;
+  private final ThreadPoolExecutor pollExecutor;
+  // In ms, guarded by itself, as is |errors|.
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private int errors;
+
+  public static HttpClient getDefault() {
+    return DEFAULT;
+  }
+
+  public HttpClient() {
+    executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory("HttpClient-"));
+    executor.allowCoreThreadTimeOut(true);
+    // No queue: every poll starts right away, on an idle poll thread or a new one.
+    pollExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threadFactory("HttpPoll-"));
+  }
+
+  private static ThreadFactory threadFactory(final String namePrefix) {
+    final AtomicInteger threadCount = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Queues a request. |message| may be null, |events| is called on a pool thread.
+   */
+  public void send(final String method, final String url, final String message,
+      final String contentType, final int timeoutMs,
+      final AsyncHttpURLConnection.AsyncHttpEvents events) {
+    final long queuedMs = nowMs();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        execute(true, queuedMs, method, url, message, contentType, timeoutMs, events);
+      }
+    });
+  }
+
+  /**
+   * Starts a long poll, a request the server answers only once it has something to send or
+   * its own timeout expires. Runs on a thread of its own and is not counted in the latency.
+   */
+  public void sendLongPoll(final String method, final String url, final String contentType,
+      final int timeoutMs, final AsyncHttpURLConnection.AsyncHttpEvents events) {
+    pollExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        execute(false, 0, method, url, null, contentType, timeoutMs, events);
+      }
+    });
+  }
+
+  // Request latency as p50/p95/p99 in ms, one line like the JanusSignalingMetrics ones.
+  // Empty before the first request.
+  public String format() {
+    synchronized (latency) {
+      if (latency.getCount() == 0) {
+        return "";
+      }
+      return String.format(Locale.US, "http n=%d reply %d/%d/%d%s\n", latency.getCount(),
+          latency.getPercentile(50), latency.getPercentile(95), latency.getPercentile(99),
+          errors > 0 ? " err=" + errors : "");
+    }
+  }
+
+  // |recorded| requests count in the statistics, with their latency from |queuedMs|.
+  private void execute(boolean recorded, long queuedMs, String method, String url,
+      String message, String contentType, int timeoutMs,
+      AsyncHttpURLConnection.AsyncHttpEvents events) {
+    String response;
+    try {
+      response = request(method, url, message, contentType, timeoutMs);
+    } catch (StatusException e) {
+      fail(recorded, queuedMs, events, "Non-200 response to " + method + " to URL: " + url + " : "
+          + e.getMessage());
+      return;
+    } catch (SocketTimeoutException e) {
+      fail(recorded, queuedMs, events, "HTTP " + method + " to " + url + " timeout");
+      return;
+    } catch (IOException e) {
+      fail(recorded, queuedMs, events, "HTTP " + method + " to " + url + " error: " + e.getMessage());
+      return;
+    }
+    if (recorded) {
+      record(queuedMs, false /* error */);
+    }
+    events.onHttpComplete(response);
+  }
+
+  // Non-200 response, the message is the status line.
+  private static class StatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    StatusException(String statusLine) {
+      super(statusLine);
+    }
+  }
+
+  private static String request(String method, String url, String message, String contentType,
+      int timeoutMs) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    byte[] postData = message == null ? new byte[0] : message.getBytes(UTF_8);
+    connection.setRequestMethod(method);
+    connection.setUseCaches(false);
+    connection.setDoInput(true);
+    connection.setConnectTimeout(timeoutMs);
+    connection.setReadTimeout(timeoutMs);
+    // TODO(glaznev) - query request origin from pref_room_server_url_key preferences.
+    connection.addRequestProperty("origin", HTTP_ORIGIN);
+    connection.setRequestProperty("Content-Type", contentType);
+    if (method.equals("POST")) {
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(postData.length);
+      OutputStream outStream = connection.getOutputStream();
+      outStream.write(postData);
+      outStream.close();
+    }
+
+    int responseCode = connection.getResponseCode();
+    if (responseCode != 200) {
+      // Drain the error body too, otherwise the connection cannot be reused.
+      InputStream errorStream = connection.getErrorStream();
+      if (errorStream != null) {
+        readFully(errorStream);
+      }
+      throw new StatusException(connection.getHeaderField(null));
+    }
+    return readFully(connection.getInputStream());
+  }
+
+  // Reads and closes |in|, returning its content as UTF-8.
+  private static String readFully(InputStream in) throws IOException {
+    byte[] buffer = responseBuffer.get();
+    int length = 0;
+    try {
+      int read;
+      while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+        length += read;
+        if (length == buffer.length) {
+          byte[] grown = new byte[buffer.length * 2];
+          System.arraycopy(buffer, 0, grown, 0, length);
+          buffer = grown;
+        }
+      }
+    } finally {
+      in.close();
+    }
+    if (buffer.length <= MAX_RETAINED_BUFFER_SIZE) {
+      responseBuffer.set(buffer);
+    }
+    return new String(buffer, 0, length, UTF_8);
+  }
+
+  private void fail(boolean recorded, long queuedMs,
+      AsyncHttpURLConnection.AsyncHttpEvents events, String error) {
+    if (recorded) {
+      record(queuedMs, true /* error */);
+    }
+    events.onHttpError(error);
+  }
+
+  private void record(long queuedMs, boolean error) {
+    long latencyMs = nowMs() - queuedMs;
+    synchronized (latency) {
+      latency.record(latencyMs);
+      if (error) {
+        errors++;
+      }
+    }
+  }
+
+  private static long nowMs() {
+    return System.nanoTime() / 1000000;
+  }
+}
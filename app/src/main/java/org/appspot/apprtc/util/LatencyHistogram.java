@@ -0,0 +1,88 @@
+package org.appspot.apprtc.util;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size histogram of non-negative latencies, for percentiles without keeping samples.
+ *
+ * <p>Values below 16 get a bucket each; above that every power of two is split into 8
+ * buckets, so a percentile is off by at most 1/8 of its value. Values are clamped to 2^32 - 1
+ * of whatever unit the caller records in.
+ *
+ * <p>Not thread safe.
+ */
+public final class LatencyHistogram {
+  private static final int LINEAR_BUCKETS = 16;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final long MAX_VALUE = (1L << 32) - 1;
+  private static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+  private final int[] counts = new int[BUCKETS];
+  private int count;
+  private long sum;
+  private long max;
+
+  public void record(long value) {
+    value = Math.max(0, Math.min(value, MAX_VALUE));
+    counts[bucketOf(value)]++;
+    count++;
+    sum += value;
+    max = Math.max(max, value);
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public long getMean() {
+    return count == 0 ? 0 : sum / count;
+  }
+
+  // Smallest recorded value bound such that |percentile| percent of the values are at or
+  // below it, 0 if nothing was recorded.
+  public long getPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max);
+      }
+    }
+    return max;
+  }
+
+  public void reset() {
+    Arrays.fill(counts, 0);
+    count = 0;
+    sum = 0;
+    max = 0;
+  }
+
+  private static int bucketOf(long value) {
+    if (value < LINEAR_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+  }
+
+  // Largest value falling in |bucket|.
+  private static long upperBound(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+    int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+}
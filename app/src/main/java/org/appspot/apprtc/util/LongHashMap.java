@@ -0,0 +1,200 @@
+package org.appspot.apprtc.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nullable;
+
+/**
+ * Hash map from primitive long keys to objects, using open addressing with linear probing.
+ *
+ * <p>Janus session, handle and feed ids are 53-bit integers; keying on them directly avoids
+ * boxing or BigInteger keys on every lookup. Unlike {@link android.util.LongSparseArray},
+ * lookups are O(1) rather than a binary search.
+ *
+ * <p>Not thread safe: an instance must either be owned by a single thread (a looper or a
+ * serial executor) that does all reads and writes, or be guarded by one lock that is held
+ * for every access, iterating over {@link #values()} included.
+ */
+public final class LongHashMap<V> {
+  private static final int MIN_CAPACITY = 8;
+
+  private long[] keys;
+  private Object[] values;
+  private boolean[] used;
+  private int size;
+
+  public LongHashMap() {
+    this(MIN_CAPACITY);
+  }
+
+  public LongHashMap(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity * 3 < expectedSize * 4) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean containsKey(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public @Nullable V get(long key) {
+    int index = indexOf(key);
+    return index >= 0 ? (V) values[index] : null;
+  }
+
+  /** Maps |key| to |value| and returns the previous value, if any. */
+  @SuppressWarnings("unchecked")
+  public @Nullable V put(long key, V value) {
+    int mask = keys.length - 1;
+    int index = hash(key) & mask;
+    while (used[index]) {
+      if (keys[index] == key) {
+        V previous = (V) values[index];
+        values[index] = value;
+        return previous;
+      }
+      index = (index + 1) & mask;
+    }
+    keys[index] = key;
+    values[index] = value;
+    used[index] = true;
+    if (++size * 4 > keys.length * 3) {
+      resize(keys.length << 1);
+    }
+    return null;
+  }
+
+  /** Removes |key| and returns its value, if any. */
+  @SuppressWarnings("unchecked")
+  public @Nullable V remove(long key) {
+    int index = indexOf(key);
+    if (index < 0) {
+      return null;
+    }
+    V previous = (V) values[index];
+    deleteAt(index);
+    return previous;
+  }
+
+  public void clear() {
+    for (int i = 0; i < keys.length; i++) {
+      values[i] = null;
+      used[i] = false;
+    }
+    size = 0;
+  }
+
+  /** Keys in no particular order, copied into a new array. */
+  public long[] keys() {
+    long[] result = new long[size];
+    int count = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (used[i]) {
+        result[count++] = keys[i];
+      }
+    }
+    return result;
+  }
+
+  /** Values in no particular order. The map must not be modified while iterating. */
+  public Iterable<V> values() {
+    return () -> new Iterator<V>() {
+      private int next = advance(0);
+
+      private int advance(int from) {
+        while (from < used.length && !used[from]) {
+          from++;
+        }
+        return from;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next < used.length;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public V next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        V value = (V) values[next];
+        next = advance(next + 1);
+        return value;
+      }
+    };
+  }
+
+  private int indexOf(long key) {
+    int mask = keys.length - 1;
+    int index = hash(key) & mask;
+    while (used[index]) {
+      if (keys[index] == key) {
+        return index;
+      }
+      index = (index + 1) & mask;
+    }
+    return -1;
+  }
+
+  // Backward shift deletion keeps probe sequences intact without tombstones.
+  private void deleteAt(int index) {
+    int mask = keys.length - 1;
+    int hole = index;
+    int next = (hole + 1) & mask;
+    while (used[next]) {
+      int home = hash(keys[next]) & mask;
+      // Move the entry into the hole unless its home slot lies cyclically in (hole, next].
+      if (hole <= next ? (home <= hole || home > next) : (home <= hole && home > next)) {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    values[hole] = null;
+    used[hole] = false;
+    size--;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    used = new boolean[capacity];
+  }
+
+  @SuppressWarnings("unchecked")
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    boolean[] oldUsed = used;
+    allocate(capacity);
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldUsed[i]) {
+        put(oldKeys[i], (V) oldValues[i]);
+      }
+    }
+  }
+
+  private static int hash(long key) {
+    // Murmur3 finalizer, spreads sequential and random ids alike.
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key;
+  }
+}
@@ -0,0 +1,64 @@
+package org.appspot.apprtc.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * {@link SerialExecutor} on an Android {@link Looper}.
+ */
+public class LooperSerialExecutor implements SerialExecutor {
+  private final Handler handler;
+  private final boolean ownsLooper;
+
+  // Runs tasks on the looper of |handler|, which shutdown() leaves running.
+  public LooperSerialExecutor(Handler handler) {
+    this(handler, false);
+  }
+
+  private LooperSerialExecutor(Handler handler, boolean ownsLooper) {
+    this.handler = handler;
+    this.ownsLooper = ownsLooper;
+  }
+
+  // Runs tasks on a new HandlerThread named |name|, quit by shutdown().
+  public static LooperSerialExecutor create(String name) {
+    HandlerThread handlerThread = new HandlerThread(name);
+    handlerThread.start();
+    return new LooperSerialExecutor(new Handler(handlerThread.getLooper()), true);
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    handler.post(task);
+  }
+
+  @Override
+  public void executeDelayed(Runnable task, long delayMillis) {
+    handler.postDelayed(task, delayMillis);
+  }
+
+  @Override
+  public void remove(Runnable task) {
+    handler.removeCallbacks(task);
+  }
+
+  @Override
+  public boolean isCurrent() {
+    return Thread.currentThread() == handler.getLooper().getThread();
+  }
+
+  @Override
+  public long now() {
+    return SystemClock.uptimeMillis();
+  }
+
+  @Override
+  public void shutdown() {
+    handler.removeCallbacksAndMessages(null);
+    if (ownsLooper) {
+      handler.getLooper().quit();
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package org.appspot.apprtc.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link SerialExecutor} on top of any {@link Executor}: tasks are queued here and run by a
+ * drain task submitted to the backing executor, never two at once. Many serial executors
+ * can share one pool, so several Janus sessions need no thread of their own.
+ *
+ * <p>A drain runs at most {@link #MAX_TASKS_PER_DRAIN} tasks before it resubmits itself,
+ * a busy executor does not hold on to a pool thread. Delayed tasks are timed by a
+ * {@link ScheduledExecutorService} and then queued like any other task.
+ *
+ * <p>Thread safe. Tasks must not block on other tasks of the same executor.
+ */
+public class PooledSerialExecutor implements SerialExecutor {
+  private static final int MAX_TASKS_PER_DRAIN = 64;
+
+  private static ScheduledThreadPoolExecutor sharedPool;
+
+  // A delayed run of |task|, pending until it is queued or removed.
+  private class DelayedTask implements Runnable {
+    final Runnable task;
+    ScheduledFuture<?> future;
+
+    DelayedTask(Runnable task) {
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      synchronized (lock) {
+        List<DelayedTask> pending = delayed.get(task);
+        if (pending == null || !pending.remove(this)) {
+          return;
+        }
+        if (pending.isEmpty()) {
+          delayed.remove(task);
+        }
+      }
+      execute(task);
+    }
+  }
+
+  private final Executor executor;
+  private final ScheduledExecutorService timer;
+  private final Object lock = new Object();
+  private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+  private final HashMap<Runnable, List<DelayedTask>> delayed = new HashMap<>();
+  private final Runnable drain = this::drain;
+  // Guarded by |lock|.
+  private boolean drainScheduled;
+  private boolean shutdown;
+  private volatile Thread currentThread;
+
+  // Daemon pool shared by all executors created without one, one thread per core.
+  public static synchronized ScheduledExecutorService sharedPool() {
+    if (sharedPool == null) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      sharedPool = new ScheduledThreadPoolExecutor(
+          Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, "Signaling-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      sharedPool.setRemoveOnCancelPolicy(true);
+    }
+    return sharedPool;
+  }
+
+  public PooledSerialExecutor() {
+    this(sharedPool(), sharedPool());
+  }
+
+  // Runs tasks on |executor|, delayed tasks are timed by the shared pool.
+  public PooledSerialExecutor(Executor executor) {
+    this(executor, sharedPool());
+  }
+
+  // Runs tasks on |executor|, delayed tasks are timed by |timer|.
+  public PooledSerialExecutor(Executor executor, ScheduledExecutorService timer) {
+    this.executor = executor;
+    this.timer = timer;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    synchronized (lock) {
+      if (shutdown) {
+        return;
+      }
+      queue.add(task);
+      if (drainScheduled) {
+        return;
+      }
+      drainScheduled = true;
+    }
+    // Outside the lock, |executor| may run the drain right away on this thread.
+    executor.execute(drain);
+  }
+
+  @Override
+  public void executeDelayed(Runnable task, long delayMillis) {
+    synchronized (lock) {
+      if (shutdown) {
+        return;
+      }
+      DelayedTask delayedTask = new DelayedTask(task);
+      List<DelayedTask> pending = delayed.get(task);
+      if (pending == null) {
+        pending = new ArrayList<>(1);
+        delayed.put(task, pending);
+      }
+      pending.add(delayedTask);
+      // Under the lock, DelayedTask.run() cannot miss its future being set.
+      delayedTask.future = timer.schedule(delayedTask, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void remove(Runnable task) {
+    synchronized (lock) {
+      while (queue.removeFirstOccurrence(task)) {}
+      List<DelayedTask> pending = delayed.remove(task);
+      if (pending != null) {
+        for (DelayedTask delayedTask : pending) {
+          delayedTask.future.cancel(false);
+        }
+      }
+    }
+  }
+
+  @Override
+  public boolean isCurrent() {
+    return currentThread == Thread.currentThread();
+  }
+
+  @Override
+  public long now() {
+    return System.nanoTime() / 1000000;
+  }
+
+  @Override
+  public void shutdown() {
+    synchronized (lock) {
+      shutdown = true;
+      queue.clear();
+      for (List<DelayedTask> pending : delayed.values()) {
+        for (DelayedTask delayedTask : pending) {
+          delayedTask.future.cancel(false);
+        }
+      }
+      delayed.clear();
+    }
+  }
+
+  private void drain() {
+    currentThread = Thread.currentThread();
+    boolean more = true;
+    try {
+      for (int i = 0; i < MAX_TASKS_PER_DRAIN; i++) {
+        Runnable task;
+        synchronized (lock) {
+          task = queue.poll();
+          if (task == null) {
+            drainScheduled = false;
+            more = false;
+            return;
+          }
+        }
+        try {
+          task.run();
+        } catch (RuntimeException | Error e) {
+          // A Looper would let it crash the thread; a pool would swallow it silently.
+          Thread thread = Thread.currentThread();
+          thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+      }
+    } finally {
+      currentThread = null;
+      if (more) {
+        executor.execute(drain);
+      }
+    }
+  }
+}
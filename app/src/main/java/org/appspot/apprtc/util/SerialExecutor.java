@@ -0,0 +1,29 @@
+package org.appspot.apprtc.util;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Executor running its tasks one at a time, in submission order, each task seeing the
+ * effects of the ones before it. This is the threading model of the signaling layer: a
+ * Janus session, its plugins and its channel are confined to one serial executor.
+ *
+ * <p>{@link LooperSerialExecutor} runs the tasks on an Android looper,
+ * {@link PooledSerialExecutor} on any {@link Executor}, e.g. a pool shared by several
+ * sessions or, on a desktop JVM, virtual threads.
+ */
+public interface SerialExecutor extends Executor {
+  // Runs |task| once |delayMillis| have passed on the now() clock.
+  void executeDelayed(Runnable task, long delayMillis);
+
+  // Drops the pending runs of |task|, immediate and delayed.
+  void remove(Runnable task);
+
+  // Whether the caller is running as a task of this executor.
+  boolean isCurrent();
+
+  // Monotonic clock in milliseconds, the time base of executeDelayed().
+  long now();
+
+  // Drops pending tasks and accepts no new ones.
+  void shutdown();
+}
@@ -0,0 +1,148 @@
+package org.appspot.apprtc.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.appspot.apprtc.BuildConfig;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Trace of the signaling messages exchanged with the server.
+ *
+ * <p>Callers guard every trace call with {@link #isEnabled()}, so that nothing is built or
+ * concatenated when tracing is off:
+ * <pre>
+ *   if (SignalingTrace.isEnabled()) SignalingTrace.outbound(TAG, message);
+ * </pre>
+ * In release builds {@link #ENABLED} is a compile-time false and the guarded calls are
+ * removed. In debug builds the trace goes to logcat at {@link #LEVEL_SUMMARY} (direction and
+ * size only) or {@link #LEVEL_FULL} (the message, with SDP bodies and long messages
+ * abbreviated).
+ *
+ * <p>Independently of the logcat level, the last messages are kept in a ring buffer (64 by
+ * default, see {@link #setRingBufferSize(int)}) and written to logcat by
+ * {@link #dump(String)} when something fails. Recording stores the message reference only,
+ * messages are formatted when dumped.
+ *
+ * <p>Thread safe, recording is lock free.
+ */
+public final class SignalingTrace {
+  public static final boolean ENABLED = BuildConfig.DEBUG;
+
+  public static final int LEVEL_OFF = 0;
+  public static final int LEVEL_SUMMARY = 1;
+  public static final int LEVEL_FULL = 2;
+
+  private static final String TAG = "SignalingTrace";
+  // Characters of an SDP body kept in the trace.
+  private static final int SDP_PREFIX_LENGTH = 48;
+  // Longer messages are cut, logcat drops lines beyond ~4k anyway.
+  private static final int MAX_MESSAGE_LENGTH = 1024;
+  private static final int DEFAULT_RING_SIZE = 64;
+
+  private static final class Record {
+    final long timeMs;
+    final String tag;
+    final String direction;
+    final String message;
+
+    Record(long timeMs, String tag, String direction, String message) {
+      this.timeMs = timeMs;
+      this.tag = tag;
+      this.direction = direction;
+      this.message = message;
+    }
+  }
+
+  private static volatile int level = LEVEL_SUMMARY;
+  private static volatile AtomicReferenceArray<Record> ring =
+      ENABLED ? new AtomicReferenceArray<Record>(DEFAULT_RING_SIZE) : null;
+  private static final AtomicLong ringNext = new AtomicLong();
+
+  private SignalingTrace() {}
+
+  public static boolean isEnabled() {
+    return ENABLED && (level != LEVEL_OFF || ring != null);
+  }
+
+  public static void setLevel(int newLevel) {
+    level = newLevel;
+  }
+
+  // Keeps the last |entries| messages for dump(), 0 drops the buffer.
+  public static synchronized void setRingBufferSize(int entries) {
+    ring = entries > 0 ? new AtomicReferenceArray<Record>(entries) : null;
+    ringNext.set(0);
+  }
+
+  // A message sent to the server.
+  public static void outbound(String tag, String message) {
+    trace(tag, "C->S", message);
+  }
+
+  // A message received from the server.
+  public static void inbound(String tag, String message) {
+    trace(tag, "S->C", message);
+  }
+
+  // Anything else worth having next to the messages, e.g. which PeerConnection got a message.
+  public static void note(String tag, String text) {
+    trace(tag, "--", text);
+  }
+
+  // Writes the ring buffer, oldest first, to logcat.
+  public static void dump(String reason) {
+    AtomicReferenceArray<Record> buffer = ring;
+    if (!ENABLED || buffer == null) return;
+
+    long end = ringNext.get();
+    long start = Math.max(0, end - buffer.length());
+    Log.w(TAG, "Last " + (end - start) + " signaling messages before: " + reason);
+    for (long i = start; i < end; i++) {
+      Record record = buffer.get((int) (i % buffer.length()));
+      if (record == null) continue;
+      Log.w(TAG, record.timeMs + " " + record.tag + " " + record.direction + " "
+          + abbreviate(record.message));
+    }
+  }
+
+  private static void trace(String tag, String direction, String message) {
+    AtomicReferenceArray<Record> buffer = ring;
+    if (buffer != null) {
+      long slot = ringNext.getAndIncrement();
+      buffer.set((int) (slot % buffer.length()),
+          new Record(SystemClock.elapsedRealtime(), tag, direction, message));
+    }
+
+    int currentLevel = level;
+    if (currentLevel == LEVEL_FULL) {
+      Log.d(tag, direction + ": " + abbreviate(message));
+    } else if (currentLevel == LEVEL_SUMMARY) {
+      Log.d(tag, direction + ": " + message.length() + " chars");
+    }
+  }
+
+  // Cuts the "sdp" value of a JSON message down to its first lines, and the message itself
+  // to MAX_MESSAGE_LENGTH.
+  static String abbreviate(String message) {
+    int sdp = message.indexOf("\"sdp\":\"");
+    if (sdp >= 0) {
+      int valueStart = sdp + 7;
+      int valueEnd = valueStart;
+      while (valueEnd < message.length() && message.charAt(valueEnd) != '"') {
+        valueEnd += message.charAt(valueEnd) == '\\' ? 2 : 1;
+      }
+      if (valueEnd - valueStart > SDP_PREFIX_LENGTH) {
+        message = message.substring(0, valueStart + SDP_PREFIX_LENGTH) + "...("
+            + (valueEnd - valueStart) + " chars)"
+            + message.substring(Math.min(valueEnd, message.length()));
+      }
+    }
+    if (message.length() > MAX_MESSAGE_LENGTH) {
+      message = message.substring(0, MAX_MESSAGE_LENGTH) + "...(" + message.length() + " chars)";
+    }
+    return message;
+  }
+}
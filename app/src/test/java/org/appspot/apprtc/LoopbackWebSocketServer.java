@@ -0,0 +1,328 @@
+package org.appspot.apprtc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * WebSocket echo server on the loopback interface, for running {@link NioWebSocketTransport}
+ * on a desktop JVM.
+ *
+ * <p>Serves one connection at a time on a thread of its own and echoes every text message,
+ * split into frames of {@link #fragmentSize} bytes if set. Close codes received from the
+ * client are queued in {@link #closeCodes}.
+ *
+ * <p>With {@link #deflate} set, a permessage-deflate offer is accepted and every echo goes
+ * out compressed.
+ */
+class LoopbackWebSocketServer implements Closeable {
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int FLAG_RSV1 = 0x40;
+    private static final byte[] DEFLATE_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    // Sec-WebSocket-Protocol of the handshake reply, none if null.
+    volatile String protocol;
+    // Echoed messages are split into frames of this size, 0 for a single frame.
+    volatile int fragmentSize;
+    final BlockingQueue<Integer> closeCodes = new LinkedBlockingQueue<>();
+    // Accept permessage-deflate if offered.
+    volatile boolean deflate;
+    // Ask for no context takeover both ways, whatever the client offered.
+    volatile boolean noContextTakeover;
+    // Sec-WebSocket-Extensions of the last handshake request, null if none.
+    volatile String offeredExtensions;
+    // Messages received compressed.
+    final AtomicInteger compressedMessages = new AtomicInteger();
+
+    private final ServerSocket serverSocket;
+    private final String scheme;
+    private final Thread thread;
+    // Connection being served, written by the server thread and by closeConnection().
+    private volatile OutputStream out;
+    private boolean closeSent;
+
+    // permessage-deflate state of the connection being served.
+    private boolean deflateNegotiated;
+    private boolean clientNoContextTakeover;
+    private boolean serverNoContextTakeover;
+    private Deflater deflater;
+    private Inflater inflater;
+
+    static LoopbackWebSocketServer plain() throws IOException {
+        return new LoopbackWebSocketServer(new ServerSocket(0, 1, InetAddress.getLoopbackAddress()), "ws");
+    }
+
+    // wss:// with the certificate of |context|.
+    static LoopbackWebSocketServer tls(SSLContext context) throws IOException {
+        return new LoopbackWebSocketServer(context.getServerSocketFactory()
+                .createServerSocket(0, 1, InetAddress.getLoopbackAddress()), "wss");
+    }
+
+    private LoopbackWebSocketServer(ServerSocket serverSocket, String scheme) {
+        this.serverSocket = serverSocket;
+        this.scheme = scheme;
+        thread = new Thread(this::run, "LoopbackWebSocketServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String url() {
+        return scheme + "://127.0.0.1:" + serverSocket.getLocalPort() + "/janus";
+    }
+
+    // Starts the close handshake from the server side.
+    synchronized void closeConnection(int code) throws IOException {
+        closeSent = true;
+        send(OPCODE_CLOSE, true, new byte[] {(byte) (code >>> 8), (byte) code});
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                serve(socket);
+            } catch (IOException e) {
+                // Connection over or server closed.
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        synchronized (this) {
+            out = socket.getOutputStream();
+            closeSent = false;
+        }
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true /* nowrap */);
+        inflater = new Inflater(true /* nowrap */);
+        try {
+            handshake(in);
+            serveFrames(in);
+        } finally {
+            synchronized (this) {
+                deflater.end();
+            }
+            inflater.end();
+        }
+    }
+
+    private void serveFrames(DataInputStream in) throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        boolean compressed = false;
+        while (true) {
+            int b0 = in.readUnsignedByte();
+            int b1 = in.readUnsignedByte();
+            long length = b1 & 0x7f;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            byte[] mask = new byte[4];
+            if ((b1 & 0x80) == 0) throw new IOException("Unmasked frame from client");
+            in.readFully(mask);
+            byte[] payload = new byte[(int) length];
+            in.readFully(payload);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+
+            switch (b0 & 0x0f) {
+                case OPCODE_CLOSE:
+                    int code = payload.length >= 2 ? ((payload[0] & 0xff) << 8) | (payload[1] & 0xff) : 1005;
+                    closeCodes.add(code);
+                    synchronized (this) {
+                        if (!closeSent) {
+                            closeSent = true;
+                            send(OPCODE_CLOSE, true, payload);
+                        }
+                    }
+                    return;
+                case OPCODE_TEXT:
+                case OPCODE_CONTINUATION:
+                    if ((b0 & FLAG_RSV1) != 0) compressed = true;
+                    message.write(payload);
+                    if ((b0 & 0x80) != 0) {
+                        if (compressed) {
+                            message.write(DEFLATE_TAIL);
+                            compressedMessages.incrementAndGet();
+                            echo(inflate(message.toByteArray()));
+                        } else {
+                            echo(message.toByteArray());
+                        }
+                        message.reset();
+                        compressed = false;
+                    }
+                    break;
+                default:
+                    // Pings and pongs are not echoed.
+            }
+        }
+    }
+
+    private void handshake(InputStream in) throws IOException {
+        String key = null;
+        String extensions = null;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) continue;
+            String name = line.substring(0, colon).trim();
+            if (name.equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = line.substring(colon + 1).trim();
+            } else if (name.equalsIgnoreCase("Sec-WebSocket-Extensions")) {
+                extensions = line.substring(colon + 1).trim();
+            }
+        }
+        if (key == null) throw new IOException("No Sec-WebSocket-Key");
+        offeredExtensions = extensions;
+        deflateNegotiated = deflate && extensions != null && extensions.startsWith("permessage-deflate");
+        clientNoContextTakeover = noContextTakeover
+                || (extensions != null && extensions.contains("client_no_context_takeover"));
+        serverNoContextTakeover = noContextTakeover
+                || (extensions != null && extensions.contains("server_no_context_takeover"));
+
+        StringBuilder response = new StringBuilder()
+                .append("HTTP/1.1 101 Switching Protocols\r\n")
+                .append("Upgrade: websocket\r\n")
+                .append("Connection: Upgrade\r\n")
+                .append("Sec-WebSocket-Accept: ").append(accept(key)).append("\r\n");
+        if (protocol != null) {
+            response.append("Sec-WebSocket-Protocol: ").append(protocol).append("\r\n");
+        }
+        if (deflateNegotiated) {
+            response.append("Sec-WebSocket-Extensions: permessage-deflate");
+            if (clientNoContextTakeover) response.append("; client_no_context_takeover");
+            if (serverNoContextTakeover) response.append("; server_no_context_takeover");
+            response.append("\r\n");
+        }
+        response.append("\r\n");
+        synchronized (this) {
+            out.write(response.toString().getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+    }
+
+    private synchronized void echo(byte[] text) throws IOException {
+        if (closeSent) return;
+        byte[] payload = deflateNegotiated ? deflate(text) : text;
+        int size = fragmentSize > 0 ? fragmentSize : payload.length;
+        int offset = 0;
+        do {
+            int length = Math.min(size, payload.length - offset);
+            byte[] fragment = new byte[length];
+            System.arraycopy(payload, offset, fragment, 0, length);
+            int opcode = offset > 0 ? OPCODE_CONTINUATION
+                    : deflateNegotiated ? OPCODE_TEXT | FLAG_RSV1 : OPCODE_TEXT;
+            send(opcode, offset + length == payload.length, fragment);
+            offset += length;
+        } while (offset < payload.length);
+    }
+
+    // RFC 7692 7.2.1, the sync flush tail stripped.
+    private byte[] deflate(byte[] data) {
+        if (serverNoContextTakeover) deflater.reset();
+        deflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        do {
+            length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, length);
+        } while (length == buffer.length);
+        byte[] compressed = out.toByteArray();
+        byte[] stripped = new byte[compressed.length - DEFLATE_TAIL.length];
+        System.arraycopy(compressed, 0, stripped, 0, stripped.length);
+        return stripped;
+    }
+
+    // RFC 7692 7.2.2, |data| ends with the tail.
+    private byte[] inflate(byte[] data) throws IOException {
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try {
+            int length;
+            while ((length = inflater.inflate(buffer)) > 0) {
+                out.write(buffer, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        if (clientNoContextTakeover) inflater.reset();
+        return out.toByteArray();
+    }
+
+    // Server frames are not masked.
+    private synchronized void send(int opcode, boolean fin, byte[] payload) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 10);
+        frame.write((fin ? 0x80 : 0) | opcode);
+        if (payload.length < 126) {
+            frame.write(payload.length);
+        } else if (payload.length <= 0xffff) {
+            frame.write(126);
+            frame.write(payload.length >>> 8);
+            frame.write(payload.length);
+        } else {
+            frame.write(127);
+            for (int i = 0; i < 8; i++) {
+                frame.write((int) ((long) payload.length >>> (56 - 8 * i)));
+            }
+        }
+        frame.write(payload);
+        out.write(frame.toByteArray());
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) throw new EOFException();
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    private static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(
+                    sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
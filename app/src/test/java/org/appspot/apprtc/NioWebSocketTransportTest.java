@@ -0,0 +1,281 @@
+package org.appspot.apprtc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NioWebSocketTransportTest {
+    private static final String[] PROTOCOLS = {"janus-protocol"};
+    private static final int TIMEOUT_SECONDS = 5;
+
+    private LoopbackWebSocketServer server;
+    private NioWebSocketTransport transport = new NioWebSocketTransport();
+    private final Events events = new Events();
+
+    @After
+    public void tearDown() throws IOException {
+        transport.disconnect();
+        if (server != null) server.close();
+    }
+
+    @Test
+    public void acceptsHandshakeAndEchoes() throws Exception {
+        open(LoopbackWebSocketServer.plain());
+
+        transport.sendText("hello");
+        assertEquals("hello", events.message());
+    }
+
+    @Test
+    public void rejectsSubprotocolNotRequested() throws Exception {
+        server = LoopbackWebSocketServer.plain();
+        server.protocol = "other-protocol";
+        transport.connect(URI.create(server.url()), PROTOCOLS, events);
+
+        assertTrue(events.closeReason().startsWith("Handshake failed: Sec-WebSocket-Protocol other-protocol"));
+        assertEquals(1, events.opened.getCount());
+    }
+
+    @Test
+    public void rejectsMissingSubprotocol() throws Exception {
+        server = LoopbackWebSocketServer.plain();
+        transport.connect(URI.create(server.url()), PROTOCOLS, events);
+
+        assertTrue(events.closeReason().startsWith("Handshake failed: Sec-WebSocket-Protocol null"));
+        assertEquals(1, events.opened.getCount());
+    }
+
+    @Test
+    public void assemblesFragmentedMessages() throws Exception {
+        open(LoopbackWebSocketServer.plain());
+        server.fragmentSize = 100;
+
+        String text = text(1000);
+        transport.sendText(text);
+        transport.sendText("after");
+        assertEquals(text, events.message());
+        assertEquals("after", events.message());
+    }
+
+    @Test
+    public void sendsAndReceivesLongFrames() throws Exception {
+        open(LoopbackWebSocketServer.plain());
+
+        // 16 and 64 bit payload lengths, the latter larger than the read buffer.
+        String medium = text(1000);
+        String large = text(200 * 1024);
+        transport.sendText(medium);
+        transport.sendText(large);
+        assertEquals(medium, events.message());
+        assertEquals(large, events.message());
+        assertEquals(medium.length() + large.length(), transport.getRawBytesReceived());
+    }
+
+    @Test
+    public void closeHandshakeFromClient() throws Exception {
+        open(LoopbackWebSocketServer.plain());
+
+        transport.disconnect();
+        assertEquals("Disconnected", events.closeReason());
+        assertEquals(Integer.valueOf(1000), server.closeCodes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void closeHandshakeFromServer() throws Exception {
+        open(LoopbackWebSocketServer.plain());
+
+        server.closeConnection(1001);
+        assertEquals("Closed by server: 1001", events.closeReason());
+        // The client echoes the code.
+        assertEquals(Integer.valueOf(1001), server.closeCodes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        // Text after the close is dropped.
+        transport.sendText("late");
+        assertEquals(null, events.messages.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void tlsRoundTrip() throws Exception {
+        SSLContext context = loopbackSslContext();
+        transport.setSslContext(context);
+        open(LoopbackWebSocketServer.tls(context));
+        server.fragmentSize = 10 * 1024;
+
+        // Spans several TLS records both ways.
+        String text = text(100 * 1024);
+        transport.sendText("hello");
+        transport.sendText(text);
+        assertEquals("hello", events.message());
+        assertEquals(text, events.message());
+
+        transport.disconnect();
+        assertEquals("Disconnected", events.closeReason());
+        assertEquals(Integer.valueOf(1000), server.closeCodes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void deflateNotUsedUnlessAccepted() throws Exception {
+        open(LoopbackWebSocketServer.plain());
+
+        assertEquals("permessage-deflate", server.offeredExtensions);
+        assertFalse(transport.isDeflateNegotiated());
+        String text = json(1000);
+        transport.sendText(text);
+        assertEquals(text, events.message());
+        assertEquals(0, server.compressedMessages.get());
+        assertEquals(transport.getRawBytesSent(), transport.getWireBytesSent());
+        assertEquals(transport.getRawBytesReceived(), transport.getWireBytesReceived());
+    }
+
+    @Test
+    public void deflateWithContextTakeover() throws Exception {
+        server = LoopbackWebSocketServer.plain();
+        server.deflate = true;
+        server.fragmentSize = 100;
+        open(server);
+        assertTrue(transport.isDeflateNegotiated());
+
+        String text = json(1000);
+        long first = roundTrip(text);
+        // The repeated message is a back reference into the shared window.
+        long second = roundTrip(text);
+        assertTrue(first + " then " + second, second < first / 4);
+        assertEquals(2, server.compressedMessages.get());
+        assertTrue(transport.getWireBytesReceived() < transport.getRawBytesReceived());
+
+        // Short messages are not worth compressing.
+        roundTrip("{\"janus\":\"keepalive\"}");
+        assertEquals(2, server.compressedMessages.get());
+    }
+
+    @Test
+    public void deflateWithoutContextTakeover() throws Exception {
+        transport = new NioWebSocketTransport(true /* deflate */, false /* contextTakeover */);
+        server = LoopbackWebSocketServer.plain();
+        server.deflate = true;
+        open(server);
+        assertEquals("permessage-deflate; client_no_context_takeover; server_no_context_takeover",
+                server.offeredExtensions);
+        assertTrue(transport.isDeflateNegotiated());
+
+        String text = json(1000);
+        long first = roundTrip(text);
+        // Every message is compressed on its own.
+        assertEquals(first, roundTrip(text));
+        assertTrue(first < text.length());
+        assertEquals(2, server.compressedMessages.get());
+    }
+
+    @Test
+    public void deflateContextTakeoverDeclinedByServer() throws Exception {
+        server = LoopbackWebSocketServer.plain();
+        server.deflate = true;
+        server.noContextTakeover = true;
+        open(server);
+        assertTrue(transport.isDeflateNegotiated());
+
+        String text = json(1000);
+        long first = roundTrip(text);
+        assertEquals(first, roundTrip(text));
+    }
+
+    // Sends |text| and waits for the echo, returns the bytes it took on the wire.
+    private long roundTrip(String text) throws InterruptedException {
+        long wire = transport.getWireBytesSent();
+        transport.sendText(text);
+        assertEquals(text, events.message());
+        return transport.getWireBytesSent() - wire;
+    }
+
+    private void open(LoopbackWebSocketServer server) throws Exception {
+        this.server = server;
+        server.protocol = PROTOCOLS[0];
+        transport.connect(URI.create(server.url()), PROTOCOLS, events);
+        assertTrue("not opened", events.opened.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private static String text(int length) {
+        char[] text = new char[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (char) ('a' + i % 26);
+        }
+        return new String(text);
+    }
+
+    // A Janus-like message padded with random hex, which compresses to about half.
+    private static String json(int length) {
+        SecureRandom random = new SecureRandom();
+        StringBuilder json = new StringBuilder("{\"janus\":\"message\",\"body\":\"");
+        while (json.length() < length - 2) {
+            json.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return json.append("\"}").toString();
+    }
+
+    // Server certificate for localhost and 127.0.0.1, trusted by the client side.
+    static SSLContext loopbackSslContext() throws IOException, GeneralSecurityException {
+        char[] password = "changeit".toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = NioWebSocketTransportTest.class.getResourceAsStream("/loopback.jks")) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    private static class Events implements WebSocketTransport.Listener {
+        final CountDownLatch opened = new CountDownLatch(1);
+        final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> closed = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onOpen() {
+            opened.countDown();
+        }
+
+        @Override
+        public void onTextMessage(String payload) {
+            messages.add(payload);
+        }
+
+        @Override
+        public void onClose(String reason) {
+            closed.add(reason);
+        }
+
+        String message() throws InterruptedException {
+            String message = messages.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (message == null) throw new AssertionError("no message, closed: " + Arrays.toString(closed.toArray()));
+            return message;
+        }
+
+        String closeReason() throws InterruptedException {
+            String reason = closed.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (reason == null) throw new AssertionError("not closed");
+            return reason;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.appspot.apprtc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SdpRewriterTest {
+  // One audio and two video sections, as a publisher of two video tracks offers them.
+  private static final String OFFER = "v=0\r\n"
+      + "o=- 4327261771880257373 2 IN IP4 127.0.0.1\r\n"
+      + "s=-\r\n"
+      + "t=0 0\r\n"
+      + "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 9\r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "a=rtpmap:111 opus/48000/2\r\n"
+      + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+      + "a=rtpmap:103 ISAC/16000\r\n"
+      + "a=rtpmap:9 G722/8000\r\n"
+      + "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100\r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "a=rtpmap:96 VP8/90000\r\n"
+      + "a=rtpmap:97 rtx/90000\r\n"
+      + "a=fmtp:97 apt=96\r\n"
+      + "a=rtpmap:98 H264/90000\r\n"
+      + "a=fmtp:98 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n"
+      + "a=rtpmap:99 rtx/90000\r\n"
+      + "a=fmtp:99 apt=98\r\n"
+      + "a=rtpmap:100 H264/90000\r\n"
+      + "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=0;profile-level-id=42e01f\r\n"
+      + "a=ssrc-group:FID 1111 2222\r\n"
+      + "a=ssrc:1111 cname:abc\r\n"
+      + "a=ssrc:1111 msid:stream track0\r\n"
+      + "a=ssrc:2222 cname:abc\r\n"
+      + "a=ssrc:2222 msid:stream track0\r\n"
+      + "m=video 9 UDP/TLS/RTP/SAVPF 96 98 100\r\n"
+      + "c=IN IP4 0.0.0.0\r\n"
+      + "a=rtpmap:96 VP8/90000\r\n"
+      + "a=fmtp:96 x-google-start-bitrate=300\r\n"
+      + "a=rtpmap:98 H264/90000\r\n"
+      + "a=rtpmap:100 H264/90000\r\n"
+      + "a=ssrc:3333 cname:abc\r\n";
+
+  @Test
+  public void noEditsReturnsTheDescription() {
+    SdpRewriter rewriter = new SdpRewriter();
+    assertTrue(rewriter.isEmpty());
+    assertSame(OFFER, rewriter.rewrite(OFFER));
+  }
+
+  @Test
+  public void preferCodecReordersEveryMatchingMLine() {
+    List<String> lines = lines(new SdpRewriter().preferCodec("H264", false).rewrite(OFFER));
+
+    List<String> mLines = new ArrayList<>();
+    for (String line : lines) {
+      if (line.startsWith("m=")) {
+        mLines.add(line);
+      }
+    }
+    assertEquals(Arrays.asList(
+        "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 9",
+        "m=video 9 UDP/TLS/RTP/SAVPF 98 100 96 97 99",
+        "m=video 9 UDP/TLS/RTP/SAVPF 98 100 96"), mLines);
+    // Only m-lines move.
+    assertEquals(lines(OFFER).size(), lines.size());
+  }
+
+  @Test
+  public void preferAudioCodecLeavesVideoAlone() {
+    String rewritten = new SdpRewriter().preferCodec("ISAC", true).rewrite(OFFER);
+    assertTrue(rewritten.contains("m=audio 9 UDP/TLS/RTP/SAVPF 103 111 9\r\n"));
+    assertTrue(rewritten.contains("m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100\r\n"));
+  }
+
+  @Test
+  public void preferMissingCodecChangesNothing() {
+    assertEquals(OFFER, new SdpRewriter().preferCodec("AV1", false).rewrite(OFFER));
+  }
+
+  @Test
+  public void fmtpParameterIsReplacedNotAppended() {
+    String rewritten = new SdpRewriter().setStartBitrate("VP8", true, 800).rewrite(OFFER);
+
+    // Replaced in place where the parameter was set, added where VP8 had no fmtp line.
+    assertTrue(rewritten.contains("a=fmtp:96 x-google-start-bitrate=800\r\n"));
+    assertFalse(rewritten.contains("x-google-start-bitrate=300"));
+    assertEquals(2, count(rewritten, "x-google-start-bitrate"));
+    assertTrue(rewritten.contains("a=rtpmap:96 VP8/90000\r\na=fmtp:96 x-google-start-bitrate=800\r\n"
+        + "a=rtpmap:97 rtx/90000\r\n"));
+  }
+
+  @Test
+  public void fmtpParameterKeepsTheOthers() {
+    String rewritten = new SdpRewriter()
+        .setFmtpParameter("H264", false, "packetization-mode", "1")
+        .setStartBitrate("opus", false, 32)
+        .rewrite(OFFER);
+
+    assertTrue(rewritten.contains(
+        "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n"));
+    assertTrue(rewritten.contains(
+        "a=fmtp:98 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n"));
+    assertTrue(rewritten.contains("a=fmtp:111 minptime=10;useinbandfec=1;maxaveragebitrate=32000\r\n"));
+    // Applying it again changes nothing.
+    assertEquals(rewritten, new SdpRewriter()
+        .setFmtpParameter("H264", false, "packetization-mode", "1")
+        .setStartBitrate("opus", false, 32)
+        .rewrite(rewritten));
+  }
+
+  @Test
+  public void maxBitrateFollowsTheConnectionLine() {
+    String rewritten = new SdpRewriter().setMaxBitrate(false, 500).rewrite(OFFER);
+    assertEquals(2, count(rewritten, "c=IN IP4 0.0.0.0\r\nb=AS:500\r\n"));
+    assertEquals(OFFER, new SdpRewriter().setMaxBitrate(false, 800).rewrite(rewritten)
+        .replace("b=AS:800\r\n", ""));
+  }
+
+  @Test
+  public void simulcastGroupsLayersAndTheirRtx() {
+    List<String> lines = lines(new SdpRewriter().enableSimulcast(3).rewrite(OFFER));
+
+    String sim = null;
+    List<String[]> fids = new ArrayList<>();
+    for (String line : lines) {
+      if (line.startsWith("a=ssrc-group:SIM ")) {
+        assertEquals(null, sim);
+        sim = line;
+      } else if (line.startsWith("a=ssrc-group:FID ")) {
+        fids.add(line.substring("a=ssrc-group:FID ".length()).split(" "));
+      }
+    }
+    String[] layers = sim.substring("a=ssrc-group:SIM ".length()).split(" ");
+    assertEquals(3, layers.length);
+    assertEquals("1111", layers[0]);
+    assertEquals(3, new HashSet<>(Arrays.asList(layers)).size());
+
+    // One FID group per layer, the first keeping the original RTX SSRC.
+    assertEquals(3, fids.size());
+    HashSet<String> ssrcs = new HashSet<>();
+    for (int i = 0; i < 3; i++) {
+      assertEquals(layers[i], fids.get(i)[0]);
+      ssrcs.add(fids.get(i)[0]);
+      ssrcs.add(fids.get(i)[1]);
+    }
+    assertEquals("2222", fids.get(0)[1]);
+    assertEquals(6, ssrcs.size());
+
+    // Every layer and RTX SSRC carries the track attributes, once.
+    for (String ssrc : ssrcs) {
+      assertEquals(1, lines.stream().filter(("a=ssrc:" + ssrc + " cname:abc")::equals).count());
+      assertEquals(1, lines.stream().filter(("a=ssrc:" + ssrc + " msid:stream track0")::equals).count());
+    }
+    // The second video section is left alone.
+    assertTrue(lines.contains("a=ssrc:3333 cname:abc"));
+    assertEquals(lines.size(), lines.indexOf("a=ssrc:3333 cname:abc") + 1);
+  }
+
+  @Test
+  public void simulcastWithoutRtx() {
+    String offer = "v=0\r\nm=video 9 UDP/TLS/RTP/SAVPF 96\r\na=rtpmap:96 VP8/90000\r\n"
+        + "a=ssrc:1111 cname:abc\r\n";
+    List<String> lines = lines(new SdpRewriter().enableSimulcast(2).rewrite(offer));
+    assertEquals(6, lines.size());
+    assertTrue(lines.get(3).startsWith("a=ssrc-group:SIM 1111 "));
+    assertEquals("a=ssrc:1111 cname:abc", lines.get(4));
+    assertEquals(0, count(String.join("\r\n", lines), "FID"));
+  }
+
+  private static List<String> lines(String description) {
+    assertTrue(description.endsWith("\r\n"));
+    return Arrays.asList(description.split("\r\n"));
+  }
+
+  private static int count(String text, String part) {
+    int count = 0;
+    for (int index = text.indexOf(part); index >= 0; index = text.indexOf(part, index + 1)) {
+      count++;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,161 @@
+package org.appspot.apprtc;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import static org.junit.Assert.assertEquals;
+
+public class SubscriberQualityManagerTest {
+    private static final BigInteger FEED = BigInteger.valueOf(11);
+    private static final long HANDLE = 301;
+
+    private final List<String> configured = new ArrayList<>();
+    private final SubscriberQualityManager manager =
+            new SubscriberQualityManager(new SubscriberQualityManager.Events() {
+                @Override
+                public void onConfigureSubscriber(
+                        BigInteger handleId, @Nullable String mid, int substream, int temporal) {
+                    configured.add(handleId + " " + substream + "/" + temporal);
+                }
+            });
+    private long timestampMs;
+
+    @Before
+    public void setUp() {
+        manager.addFeed(FEED, BigInteger.valueOf(HANDLE), null);
+        // Rendered at 720p: the highest substream at full frame rate.
+        manager.setRenderHeight(FEED, 720);
+        assertConfigured("301 2/2");
+    }
+
+    @Test
+    public void lossRaisesCongestionAfterTwoReports() {
+        report(10 /* lossPercent */, 0 /* availableRecvKbps */);
+        assertConfigured();
+        report(10, 0);
+        assertConfigured("301 1/2");
+
+        // The count starts over at the next level.
+        report(10, 0);
+        assertConfigured();
+        report(10, 0);
+        assertConfigured("301 0/2");
+    }
+
+    @Test
+    public void lowBandwidthEstimateRaisesCongestion() {
+        // The highest substream needs 1500 kbps.
+        report(0, 1000);
+        report(0, 1000);
+        assertConfigured("301 1/2");
+    }
+
+    @Test
+    public void congestionDropsAfterFiveCleanReportsWithHeadroom() {
+        report(10, 0);
+        report(10, 0);
+        assertConfigured("301 1/2");
+
+        // 1500 kbps for the higher substream with 25% to spare.
+        for (int i = 0; i < 4; i++) {
+            report(0, 1875);
+        }
+        assertConfigured();
+        report(0, 1875);
+        assertConfigured("301 2/2");
+    }
+
+    @Test
+    public void congestionStaysWithoutHeadroom() {
+        report(10, 0);
+        report(10, 0);
+        assertConfigured("301 1/2");
+
+        // Enough for the current substream, not for the higher one with headroom.
+        for (int i = 0; i < 10; i++) {
+            report(0, 1800);
+        }
+        assertConfigured();
+    }
+
+    @Test
+    public void interruptedCleanReportsStartOver() {
+        report(10, 0);
+        report(10, 0);
+        assertConfigured("301 1/2");
+
+        for (int i = 0; i < 4; i++) {
+            report(0, 2000);
+        }
+        // Loss between congested and clear.
+        report(3, 2000);
+        for (int i = 0; i < 4; i++) {
+            report(0, 2000);
+        }
+        assertConfigured();
+        report(0, 2000);
+        assertConfigured("301 2/2");
+    }
+
+    @Test
+    public void unchangedLayersAreNotSent() {
+        // Clean reports at the lowest congestion level.
+        for (int i = 0; i < 10; i++) {
+            report(0, 2000);
+        }
+        // A height that maps to the same substream.
+        manager.setRenderHeight(FEED, 1080);
+        manager.setRenderHeight(FEED, 1080);
+        assertConfigured();
+
+        report(10, 0);
+        report(10, 0);
+        assertConfigured("301 1/2");
+        // A single lossy report does not move the level, nor resend its layers.
+        report(10, 0);
+        report(0, 0);
+        assertConfigured();
+    }
+
+    @Test
+    public void reportsOfOtherHandlesAreIgnored() {
+        manager.onStats(snapshot(HANDLE + 1, 50, 0));
+        manager.onStats(snapshot(HANDLE + 1, 50, 0));
+        assertConfigured();
+
+        manager.removeFeed(FEED);
+        report(50, 0);
+        report(50, 0);
+        assertConfigured();
+    }
+
+    private void report(double lossPercent, int availableRecvKbps) {
+        manager.onStats(snapshot(HANDLE, lossPercent, availableRecvKbps));
+    }
+
+    // One second of stats of |handleId| with 1000 packets expected.
+    private RtcStatsCollector.Snapshot snapshot(long handleId, double lossPercent, int availableRecvKbps) {
+        long[] deltas = new long[RtcStatsCollector.COUNTERS];
+        double[] gauges = new double[RtcStatsCollector.GAUGES];
+        deltas[RtcStatsCollector.PACKETS_LOST] = Math.round(lossPercent * 10);
+        deltas[RtcStatsCollector.PACKETS_RECEIVED] = 1000 - deltas[RtcStatsCollector.PACKETS_LOST];
+        gauges[RtcStatsCollector.AVAILABLE_RECV_BPS] = availableRecvKbps * 1000.0;
+        timestampMs += 1000;
+        return new RtcStatsCollector.Snapshot(handleId, timestampMs, 1000, deltas, gauges);
+    }
+
+    // The configures sent since the last call.
+    private void assertConfigured(String... expected) {
+        List<String> list = new ArrayList<>();
+        Collections.addAll(list, expected);
+        assertEquals(list, configured);
+        configured.clear();
+    }
+}
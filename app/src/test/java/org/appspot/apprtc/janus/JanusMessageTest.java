@@ -0,0 +1,144 @@
+package org.appspot.apprtc.janus;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JanusMessageTest {
+    @Test
+    public void transactionIsParsedAsHex() throws JSONException {
+        assertEquals(0x7fffff0000000001L, transaction("\"7fffff0000000001\""));
+        assertEquals(0xabcL, transaction("\"ABC\""));
+        assertEquals(0x1L, transaction("\"1\""));
+    }
+
+    @Test
+    public void foreignTransactionIsNone() throws JSONException {
+        // Ids of other clients: not hex, too long, empty or a number.
+        assertEquals(JanusTransactionIds.NONE, transaction("\"Xy7aQ2\""));
+        assertEquals(JanusTransactionIds.NONE, transaction("\"17fffff0000000001\""));
+        assertEquals(JanusTransactionIds.NONE, transaction("\"\""));
+        assertEquals(JanusTransactionIds.NONE, transaction("1234"));
+        assertEquals(JanusTransactionIds.NONE, JanusMessage.parse("{\"janus\":\"keepalive\"}").getTransactionId());
+    }
+
+    @Test
+    public void writtenTransactionIdsParseBack() throws JSONException {
+        JanusTransactionIds ids = new JanusTransactionIds();
+        JanusMessageWriter writer = new JanusMessageWriter();
+        for (int i = 0; i < 100; i++) {
+            long id = ids.next();
+            String frame = writer.begin("ack").putHex("transaction", id).finish();
+            assertEquals(id, JanusMessage.parse(frame).getTransactionId());
+        }
+    }
+
+    @Test
+    public void routingFieldsOfAPluginEvent() throws JSONException {
+        JanusMessage message = JanusMessage.parse("{\"janus\":\"event\",\"session_id\":4503599627370495,"
+                + "\"transaction\":\"2a\",\"sender\":4503599627370494,\"plugindata\":{"
+                + "\"plugin\":\"janus.plugin.videoroom\",\"data\":{\"videoroom\":\"joined\",\"room\":1234,"
+                + "\"id\":2000,\"publishers\":[{\"id\":1000,\"display\":\"a\"}]}},"
+                + "\"jsep\":{\"type\":\"offer\",\"sdp\":\"v=0\\r\\n\"}}");
+
+        assertSame("event", message.getJanus());
+        assertEquals(0x2a, message.getTransactionId());
+        assertTrue(message.hasSender());
+        assertEquals(4503599627370494L, message.getSender());
+        assertTrue(message.hasPluginData());
+        assertEquals("janus.plugin.videoroom", message.getPlugin());
+        assertEquals("joined", message.getPluginEvent());
+        assertEquals(2000, message.getDataId());
+        assertEquals("1234", message.getDataString("room"));
+        assertEquals(1234, message.getData().getLong("room"));
+        JSONArray publishers = message.getDataArray("publishers");
+        assertEquals(1, publishers.length());
+        assertEquals(1000, publishers.getJSONObject(0).getLong("id"));
+        assertEquals("offer", message.getJsep().getString("type"));
+        assertEquals("v=0\r\n", message.getJsep().getString("sdp"));
+        assertNull(message.getError());
+    }
+
+    @Test
+    public void onlyTopLevelFieldsOfNestedPluginDataCount() throws JSONException {
+        // "videoroom", "id" and "plugindata" also appear deeper and inside strings.
+        JanusMessage message = JanusMessage.parse("{\"janus\":\"event\",\"plugindata\":{"
+                + "\"data\":{\"publishers\":[{\"videoroom\":\"fake\",\"id\":1}],"
+                + "\"description\":\"{\\\"videoroom\\\":\\\"fake\\\"}\",\"videoroom\":\"event\","
+                + "\"nested\":{\"id\":2,\"plugindata\":{\"plugin\":\"x\"}},\"id\":3},"
+                + "\"plugin\":\"janus.plugin.videoroom\"},\"data\":{\"id\":4}}");
+
+        assertEquals("janus.plugin.videoroom", message.getPlugin());
+        assertEquals("event", message.getPluginEvent());
+        // plugindata.data wins over the top level data of core replies.
+        assertEquals(3, message.getDataId());
+        assertEquals("{\"videoroom\":\"fake\"}", message.getDataString("description"));
+        assertEquals(2, message.getData().getJSONObject("nested").getLong("id"));
+    }
+
+    @Test
+    public void topLevelDataOfACoreReply() throws JSONException {
+        JanusMessage message = JanusMessage.parse(
+                "{\"janus\":\"success\",\"transaction\":\"1\",\"data\":{\"id\":4503599627370495}}");
+        assertFalse(message.hasPluginData());
+        assertFalse(message.hasSender());
+        assertEquals("", message.getPlugin());
+        assertEquals("", message.getPluginEvent());
+        assertEquals(4503599627370495L, message.getDataId());
+    }
+
+    @Test
+    public void escapedStringsAreDecoded() throws JSONException {
+        JanusMessage message = JanusMessage.parse("{\"janus\":\"event\",\"plugindata\":{"
+                + "\"plugin\":\"janus.plugin.videoroom\",\"data\":{\"videoroom\":\"event\","
+                + "\"display\":\"a \\\"b\\\" \\\\ c\\n\\u00e9\\/\",\"reason\":null,\"room\":\"r,}]\"}}}");
+
+        assertEquals("a \"b\" \\ c\né/", message.getDataString("display"));
+        assertEquals("", message.getDataString("reason"));
+        assertEquals("r,}]", message.getDataString("room"));
+        assertEquals("", message.getDataString("missing"));
+    }
+
+    @Test
+    public void errorObjectIsLocated() throws JSONException {
+        JanusMessage message = JanusMessage.parse("{\"janus\":\"error\",\"transaction\":\"b\","
+                + "\"error\":{\"code\":458,\"reason\":\"No such session \\\"1\\\"\"}}");
+        assertSame("error", message.getJanus());
+        assertNotNull(message.getError());
+        assertEquals(458, message.getError().getInt("code"));
+        assertEquals("No such session \"1\"", message.getError().getString("reason"));
+    }
+
+    @Test
+    public void prettyPrintedMessage() throws JSONException {
+        // Janus indents its JSON unless configured otherwise.
+        JanusMessage message = JanusMessage.parse("{\n   \"janus\" : \"event\",\n   \"sender\" : 12,\n"
+                + "   \"transaction\" : \"ff\",\n   \"plugindata\" : {\n      \"plugin\" : \"janus.plugin.echotest\",\n"
+                + "      \"data\" : {\n         \"echotest\" : \"event\",\n         \"result\" : \"ok\"\n      }\n   }\n}\n");
+        assertEquals(12, message.getSender());
+        assertEquals(0xff, message.getTransactionId());
+        assertEquals("event", message.getPluginEvent());
+        assertEquals("ok", message.getDataString("result"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void unterminatedMessageFails() throws JSONException {
+        JanusMessage.parse("{\"janus\":\"event\",\"plugindata\":{\"data\":{}");
+    }
+
+    @Test(expected = JSONException.class)
+    public void unterminatedStringFails() throws JSONException {
+        JanusMessage.parse("{\"janus\":\"ev");
+    }
+
+    private static long transaction(String value) throws JSONException {
+        return JanusMessage.parse("{\"janus\":\"ack\",\"transaction\":" + value + "}").getTransactionId();
+    }
+}
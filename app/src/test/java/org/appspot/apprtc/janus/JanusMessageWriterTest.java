@@ -0,0 +1,99 @@
+package org.appspot.apprtc.janus;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JanusMessageWriterTest {
+    private final JanusMessageWriter writer = new JanusMessageWriter();
+
+    @Test
+    public void stringsAreEscaped() throws JSONException {
+        String value = "quote \" backslash \\ slash / newline \n cr \r tab \t bell \u0007 nul \u0000 é中";
+        String frame = writer.begin("message").put("display", value).finish();
+
+        assertTrue(frame.contains("quote \\\" backslash \\\\ slash / newline \\n cr \\r tab \\t"
+                + " bell \\u0007 nul \\u0000 é中"));
+        assertEquals(value, new JSONObject(frame).getString("display"));
+    }
+
+    @Test
+    public void keysAreEscaped() throws JSONException {
+        String frame = writer.begin("message").put("a\"b", 1).finish();
+        assertEquals(1, new JSONObject(frame).getInt("a\"b"));
+    }
+
+    @Test
+    public void scalarsAndNull() throws JSONException {
+        String frame = writer.begin("message").put("session_id", 4503599627370495L)
+                .put("audio", true).put("video", false).put("pin", (String) null).finish();
+        assertEquals("{\"janus\":\"message\",\"session_id\":4503599627370495,\"audio\":true,"
+                + "\"video\":false,\"pin\":null}", frame);
+    }
+
+    @Test
+    public void hexIdsAreLowercaseWithoutLeadingZeros() {
+        assertEquals("{\"janus\":\"ack\",\"transaction\":\"7fffff0000000001\"}",
+                writer.begin("ack").putHex("transaction", 0x7fffff0000000001L).finish());
+        assertEquals("{\"janus\":\"ack\",\"transaction\":\"a0\"}",
+                writer.begin("ack").putHex("transaction", 0xa0).finish());
+        assertEquals("{\"janus\":\"ack\",\"transaction\":\"0\"}",
+                writer.begin("ack").putHex("transaction", 0).finish());
+    }
+
+    @Test
+    public void nestedBodyJsepAndArrays() throws JSONException {
+        String sdp = "v=0\r\no=- 1 2 IN IP4 127.0.0.1\r\na=fmtp:111 minptime=10;useinbandfec=1\r\n";
+        String frame = writer.begin("message").put("handle_id", 7)
+                .body(w -> w.put("request", "configure").put("bitrate", 256000)
+                        .beginArray("streams").beginElement().put("mid", "0").endObject()
+                        .beginElement().put("mid", "1").endObject().endArray())
+                .jsep(new SessionDescription(SessionDescription.Type.OFFER, sdp))
+                .putHex("transaction", 0x10).finish();
+
+        assertEquals("configure", writer.requestName());
+        JSONObject json = new JSONObject(frame);
+        assertEquals(256000, json.getJSONObject("body").getInt("bitrate"));
+        JSONArray streams = json.getJSONObject("body").getJSONArray("streams");
+        assertEquals("1", streams.getJSONObject(1).getString("mid"));
+        assertEquals("offer", json.getJSONObject("jsep").getString("type"));
+        assertEquals(sdp, json.getJSONObject("jsep").getString("sdp"));
+        assertEquals("10", json.getString("transaction"));
+    }
+
+    @Test
+    public void candidates() throws JSONException {
+        List<IceCandidate> candidates = Arrays.asList(
+                new IceCandidate("0", 0, "candidate:1 1 udp 2122260223 192.168.1.2 50000 typ host"),
+                new IceCandidate("1", 1, "candidate:2 1 udp 2122260223 192.168.1.2 50001 typ host"));
+
+        JSONArray array = new JSONObject(writer.begin("trickle").candidates(candidates, true).finish())
+                .getJSONArray("candidates");
+        assertEquals(3, array.length());
+        assertEquals("1", array.getJSONObject(1).getString("sdpMid"));
+        assertEquals(1, array.getJSONObject(1).getInt("sdpMLineIndex"));
+        assertTrue(array.getJSONObject(2).getBoolean("completed"));
+
+        assertEquals("{\"janus\":\"trickle\",\"candidates\":[{\"completed\":true}]}",
+                writer.begin("trickle").candidates(new ArrayList<IceCandidate>(), true).finish());
+        assertEquals("{\"janus\":\"trickle\",\"candidate\":{\"completed\":true}}",
+                writer.begin("trickle").candidateCompleted().finish());
+    }
+
+    @Test
+    public void writerIsReusable() {
+        writer.begin("message").put("unfinished", 1);
+        assertEquals("{\"janus\":\"keepalive\"}", writer.begin("keepalive").finish());
+        assertEquals("keepalive", writer.requestName());
+    }
+}
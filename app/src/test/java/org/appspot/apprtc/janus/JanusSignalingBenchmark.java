@@ -0,0 +1,189 @@
+package org.appspot.apprtc.janus;
+
+import org.json.JSONException;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Throughput and allocation benchmark of the Janus signaling codec: {@link JanusMessage}
+ * parsing, the field access of the dispatch path, and {@link JanusMessageWriter}
+ * serialization.
+ *
+ * <p>Plain Java, runs on a desktop JVM with the app and unit test classes, the org.webrtc
+ * classes and org.json on the classpath:
+ * <pre>
+ *   java -cp ... org.appspot.apprtc.janus.JanusSignalingBenchmark [trace]
+ * </pre>
+ * With a trace file (see {@link JanusTrace}) its inbound messages are measured, otherwise
+ * a built-in videoroom conversation. Bytes per message are only reported where the JVM
+ * exposes per-thread allocation counters (HotSpot), -1 elsewhere.
+ */
+public class JanusSignalingBenchmark {
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int MEASURED_ITERATIONS = 5000;
+
+    private interface Operation {
+        void run() throws JSONException;
+    }
+
+    // Keeps the JIT from dropping the measured work.
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        List<String> inbound = args.length > 0 ? inboundMessages(args[0]) : sampleMessages();
+        for (String line : run(inbound)) {
+            System.out.println(line);
+        }
+    }
+
+    // Runs all benchmarks over |inbound| and returns one result line per benchmark.
+    public static List<String> run(final List<String> inbound) throws JSONException {
+        List<String> results = new ArrayList<>();
+        results.add(measure("parse", inbound.size(), () -> {
+            for (String raw : inbound) {
+                sink += JanusMessage.parse(raw).getTransactionId();
+            }
+        }));
+        results.add(measure("parse+dispatch", inbound.size(), () -> {
+            for (String raw : inbound) {
+                sink += dispatch(JanusMessage.parse(raw));
+            }
+        }));
+
+        final JanusMessageWriter writer = new JanusMessageWriter();
+        final SessionDescription offer = new SessionDescription(SessionDescription.Type.OFFER, sampleSdp());
+        final List<IceCandidate> candidates = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            candidates.add(new IceCandidate("0", 0, "candidate:" + i + " 1 udp 2122260223 192.168.1."
+                    + i + " 5" + i + "000 typ host generation 0 ufrag abcd network-id 1"));
+        }
+        results.add(measure("serialize", 3, () -> {
+            sink += writer.begin("keepalive").put("session_id", 4503599627370495L)
+                    .putHex("transaction", 0x7fffff0000000001L).finish().length();
+            sink += writer.begin("message").put("session_id", 4503599627370495L)
+                    .put("handle_id", 4503599627370494L)
+                    .beginObject("body").put("request", "configure").put("audio", true).put("video", true)
+                    .endObject()
+                    .jsep(offer).putHex("transaction", 0x7fffff0000000002L).finish().length();
+            sink += writer.begin("trickle").put("session_id", 4503599627370495L)
+                    .put("handle_id", 4503599627370494L)
+                    .candidates(candidates, false).putHex("transaction", 0x7fffff0000000003L)
+                    .finish().length();
+        }));
+        return results;
+    }
+
+    // What the session and plugin handlers read of a message.
+    private static long dispatch(JanusMessage message) throws JSONException {
+        long touched = message.getTransactionId() + message.getSender() + message.getJanus().length();
+        if (message.hasPluginData()) {
+            touched += message.getPluginEvent().length();
+            if (message.getData() != null) touched++;
+            if (message.getJsep() != null) touched++;
+        }
+        return touched;
+    }
+
+    private static String measure(String name, int messagesPerIteration, Operation operation)
+            throws JSONException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            operation.run();
+        }
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            operation.run();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        long messages = (long) MEASURED_ITERATIONS * messagesPerIteration;
+        return String.format(Locale.US, "%-16s %9.1f ns/msg %12.0f msg/s %9d B/msg", name,
+                (double) elapsedNanos / messages, messages * 1e9 / elapsedNanos,
+                allocatedBefore < 0 ? -1 : allocated / messages);
+    }
+
+    // Bytes allocated by the current thread so far, -1 if the JVM does not tell.
+    private static long allocatedBytes() {
+        try {
+            Class<?> bean = Class.forName("com.sun.management.ThreadMXBean");
+            Method method = bean.getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+    private static List<String> inboundMessages(String path) throws IOException {
+        List<String> inbound = new ArrayList<>();
+        try (Reader reader = new FileReader(path)) {
+            for (JanusTrace.Entry entry : JanusTrace.parse(reader)) {
+                if (!entry.outbound) inbound.add(entry.message);
+            }
+        }
+        return inbound;
+    }
+
+    // ----------------------------------------------------------------------------
+    // Built-in conversation: a subscriber joining a room with six publishers.
+    // ----------------------------------------------------------------------------
+    private static List<String> sampleMessages() {
+        String session = "\"session_id\":4503599627370495";
+        String plugin = "\"plugindata\":{\"plugin\":\"janus.plugin.videoroom\",\"data\":";
+        StringBuilder publishers = new StringBuilder("[");
+        for (int i = 0; i < 6; i++) {
+            if (i > 0) publishers.append(',');
+            publishers.append("{\"id\":").append(1000 + i).append(",\"display\":\"user").append(i)
+                    .append("\",\"audio_codec\":\"opus\",\"video_codec\":\"vp8\",\"talking\":false}");
+        }
+        publishers.append(']');
+
+        List<String> messages = new ArrayList<>();
+        messages.add("{\"janus\":\"success\",\"transaction\":\"7fffff0000000001\",\"data\":{\"id\":4503599627370495}}");
+        messages.add("{\"janus\":\"success\"," + session
+                + ",\"transaction\":\"7fffff0000000002\",\"data\":{\"id\":4503599627370494}}");
+        messages.add("{\"janus\":\"ack\"," + session + ",\"transaction\":\"7fffff0000000003\"}");
+        messages.add("{\"janus\":\"event\"," + session + ",\"transaction\":\"7fffff0000000003\","
+                + "\"sender\":4503599627370494," + plugin + "{\"videoroom\":\"joined\",\"room\":1234,"
+                + "\"description\":\"Demo Room\",\"id\":2000,\"private_id\":12345,\"publishers\":"
+                + publishers + "}}}");
+        messages.add("{\"janus\":\"event\"," + session + ",\"transaction\":\"7fffff0000000004\","
+                + "\"sender\":4503599627370493," + plugin + "{\"videoroom\":\"attached\",\"room\":1234,"
+                + "\"id\":1000,\"display\":\"user0\"}},\"jsep\":{\"type\":\"offer\",\"sdp\":\""
+                + sampleSdp().replace("\r\n", "\\r\\n") + "\"}}");
+        messages.add("{\"janus\":\"webrtcup\"," + session + ",\"sender\":4503599627370493}");
+        messages.add("{\"janus\":\"media\"," + session + ",\"sender\":4503599627370493,"
+                + "\"type\":\"video\",\"receiving\":true}");
+        messages.add("{\"janus\":\"event\"," + session + ",\"sender\":4503599627370494," + plugin
+                + "{\"videoroom\":\"event\",\"room\":1234,\"unpublished\":1003}}}");
+        messages.add("{\"janus\":\"keepalive\"," + session + "}");
+        return messages;
+    }
+
+    private static String sampleSdp() {
+        StringBuilder sdp = new StringBuilder("v=0\r\no=- 4327261771880257373 2 IN IP4 127.0.0.1\r\n"
+                + "s=-\r\nt=0 0\r\na=group:BUNDLE audio video\r\na=msid-semantic: WMS janus\r\n");
+        String[] kinds = {"audio", "video"};
+        for (String kind : kinds) {
+            sdp.append("m=").append(kind).append(" 9 UDP/TLS/RTP/SAVPF 111 96 97\r\n")
+                    .append("c=IN IP4 0.0.0.0\r\na=rtcp:9 IN IP4 0.0.0.0\r\n")
+                    .append("a=ice-ufrag:abcd\r\na=ice-pwd:0123456789abcdef01234567\r\n")
+                    .append("a=fingerprint:sha-256 AB:CD:EF:01:23:45:67:89:AB:CD:EF:01:23:45:67:89")
+                    .append(":AB:CD:EF:01:23:45:67:89:AB:CD:EF:01:23:45:67:89\r\n")
+                    .append("a=setup:actpass\r\na=mid:").append(kind).append("\r\na=sendrecv\r\na=rtcp-mux\r\n")
+                    .append("a=rtpmap:111 opus/48000/2\r\na=rtpmap:96 VP8/90000\r\na=rtpmap:97 rtx/90000\r\n")
+                    .append("a=fmtp:97 apt=96\r\na=rtcp-fb:96 nack\r\na=rtcp-fb:96 nack pli\r\n")
+                    .append("a=ssrc:12345678 cname:janus\r\na=ssrc:12345678 msid:janus janusv0\r\n");
+        }
+        return sdp.toString();
+    }
+}
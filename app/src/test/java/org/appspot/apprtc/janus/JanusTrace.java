@@ -0,0 +1,63 @@
+package org.appspot.apprtc.janus;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recorded Janus signaling, as replayed by {@link JanusTraceReplayer} and measured by
+ * {@link JanusSignalingBenchmark}.
+ *
+ * <p>Plain Java, usable on a desktop JVM.
+ */
+public class JanusTrace {
+    /**
+     * One recorded message.
+     */
+    public static class Entry {
+        public final boolean outbound;
+        public final String message;
+
+        public Entry(boolean outbound, String message) {
+            this.outbound = outbound;
+            this.message = message;
+        }
+    }
+
+    private JanusTrace() {}
+
+    // Lines holding "C->S" or "S->C" followed by a JSON message are entries, everything before
+    // the direction (logcat prefixes, timestamps) is skipped, other lines are ignored. This
+    // reads SignalingTrace output at LEVEL_FULL as well as hand-written traces.
+    public static List<Entry> parse(Reader reader) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            int outbound = line.indexOf("C->S");
+            int inbound = line.indexOf("S->C");
+            int direction = outbound >= 0 ? outbound : inbound;
+            if (direction < 0) continue;
+            int json = line.indexOf('{', direction);
+            if (json < 0) continue;
+            entries.add(new Entry(outbound >= 0, line.substring(json).trim()));
+        }
+        return entries;
+    }
+
+    // First string value of |key| in |message|, empty if there is none. Enough for the flat
+    // routing fields of Janus messages.
+    public static String stringField(String message, String key) {
+        String pattern = "\"" + key + "\"";
+        int index = message.indexOf(pattern);
+        if (index < 0) return "";
+        int colon = message.indexOf(':', index + pattern.length());
+        if (colon < 0) return "";
+        int start = message.indexOf('"', colon);
+        if (start < 0) return "";
+        int end = message.indexOf('"', start + 1);
+        return end < 0 ? "" : message.substring(start + 1, end);
+    }
+}
@@ -0,0 +1,180 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.SignalingChannel;
+import org.appspot.apprtc.WebSocketChannelClient.WebSocketConnectionState;
+import org.appspot.apprtc.util.SerialExecutor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Replays a recorded Janus signaling trace against a {@link JanusSession} and its plugins,
+ * through an in-memory channel instead of a server.
+ *
+ * <p>A trace is a list of messages in both directions, see {@link JanusTrace}. Inbound
+ * (server to client) messages are delivered to the session in order. Outbound (client to
+ * server) messages are expectations: each is matched against the next request the client
+ * actually sends with the same {@code janus} type and plugin {@code request}, and the
+ * recorded transaction id is mapped to the live one, so that the recorded replies reach
+ * the live transactions. Requests that were recorded but not sent, or sent but not
+ * recorded, are reported as divergences in the {@link Result}.
+ *
+ * <p>Keepalives are not matched, they depend on timing rather than on the conversation.
+ *
+ * <p>The replay runs on the session executor; everything the session queues on its executor
+ * while handling a message runs before the next message is delivered. With a
+ * {@link org.appspot.apprtc.util.ManualSerialExecutor} the test drives it on a virtual clock,
+ * see JanusTraceReplayerTest.
+ */
+public class JanusTraceReplayer {
+    // How long an expected request may take to show up.
+    private static final int OUTBOUND_WAIT_MILLIS = 1000;
+
+    public static class Result {
+        public int delivered;
+        public int matched;
+        public final List<String> divergences = new ArrayList<>();
+        public long elapsedMillis;
+
+        public boolean isClean() {
+            return divergences.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return delivered + " messages delivered, " + matched + " requests matched, "
+                    + divergences.size() + " divergences in " + elapsedMillis + " ms";
+        }
+    }
+
+    public interface Callback {
+        void onReplayDone(Result result);
+    }
+
+    private final SerialExecutor executor;
+    private final JanusSession session;
+    private final List<JanusTrace.Entry> trace;
+    private final ReplayChannel channel = new ReplayChannel();
+    // Recorded transaction -> live transaction.
+    private final HashMap<String, String> transactions = new HashMap<>();
+    private Result result;
+    private Callback callback;
+    private int next;
+    private long waitStartMs;
+    private long startMs;
+
+    // |session| must not be connected yet; its plugins should be added already.
+    public JanusTraceReplayer(SerialExecutor executor, JanusSession session, List<JanusTrace.Entry> trace) {
+        this.executor = executor;
+        this.session = session;
+        this.trace = trace;
+        session.setChannelFactory(url -> channel);
+    }
+
+    public void start(Callback callback) {
+        this.callback = callback;
+        executor.execute(() -> {
+            result = new Result();
+            startMs = executor.now();
+            session.connect("replay://", null);
+            step();
+        });
+    }
+
+    private void step() {
+        while (next < trace.size()) {
+            JanusTrace.Entry entry = trace.get(next);
+            if (entry.outbound) {
+                if (!matchOutbound(entry)) {
+                    long now = executor.now();
+                    if (waitStartMs == 0) waitStartMs = now;
+                    if (now - waitStartMs < OUTBOUND_WAIT_MILLIS) {
+                        executor.executeDelayed(this::step, 1);
+                        return;
+                    }
+                    result.divergences.add("#" + next + " not sent: " + entry.message);
+                }
+                waitStartMs = 0;
+                next++;
+            } else {
+                next++;
+                result.delivered++;
+                session.onWebSocketMessage(rewriteTransaction(entry.message));
+                // Let the session run what it posted before the next message.
+                executor.execute(this::step);
+                return;
+            }
+        }
+        finish();
+    }
+
+    private void finish() {
+        for (String frame : channel.sent) {
+            if (!"keepalive".equals(JanusTrace.stringField(frame, "janus"))) {
+                result.divergences.add("unexpected request: " + frame);
+            }
+        }
+        channel.sent.clear();
+        result.elapsedMillis = executor.now() - startMs;
+        session.disconnect();
+        callback.onReplayDone(result);
+    }
+
+    private boolean matchOutbound(JanusTrace.Entry entry) {
+        String janus = JanusTrace.stringField(entry.message, "janus");
+        String request = JanusTrace.stringField(entry.message, "request");
+        for (Iterator<String> it = channel.sent.iterator(); it.hasNext(); ) {
+            String frame = it.next();
+            if (!janus.equals(JanusTrace.stringField(frame, "janus"))
+                    || !request.equals(JanusTrace.stringField(frame, "request"))) {
+                continue;
+            }
+            it.remove();
+            String recorded = JanusTrace.stringField(entry.message, "transaction");
+            if (!recorded.isEmpty()) {
+                transactions.put(recorded, JanusTrace.stringField(frame, "transaction"));
+            }
+            result.matched++;
+            return true;
+        }
+        return false;
+    }
+
+    private String rewriteTransaction(String message) {
+        String recorded = JanusTrace.stringField(message, "transaction");
+        String live = transactions.get(recorded);
+        if (live == null) return message;
+        return message.replace("\"transaction\":\"" + recorded + "\"",
+                "\"transaction\":\"" + live + "\"");
+    }
+
+    // Collects the frames sent by the session, the replayer plays the server.
+    private class ReplayChannel implements SignalingChannel {
+        final LinkedList<String> sent = new LinkedList<>();
+        WebSocketConnectionState state = WebSocketConnectionState.NEW;
+
+        @Override
+        public void connect(String url, String[] subProtocols) {
+            state = WebSocketConnectionState.CONNECTED;
+            executor.execute(session::onWebSocketOpen);
+        }
+
+        @Override
+        public void send(String message) {
+            sent.add(message);
+        }
+
+        @Override
+        public void disconnect(boolean waitForComplete) {
+            state = WebSocketConnectionState.CLOSED;
+        }
+
+        @Override
+        public WebSocketConnectionState getState() {
+            return state;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.util.ManualSerialExecutor;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JanusTraceReplayerTest {
+    private final ManualSerialExecutor executor = new ManualSerialExecutor();
+    private final JanusSession session = new JanusSession(executor, new JanusSession.SessionEvents() {
+        @Override
+        public void onSessionClose() {}
+
+        @Override
+        public void onSessionError(String errorMessage) {}
+    });
+    private JanusTraceReplayer.Result result;
+
+    @Test
+    public void parsesLogcatAndPlainLines() throws IOException {
+        List<JanusTrace.Entry> entries = JanusTrace.parse(new StringReader(
+                "10-17 12:00:00.000 D/SignalingTrace: C->S {\"janus\":\"create\"}\n"
+                + "not a trace line\n"
+                + "S->C {\"janus\":\"success\",\"transaction\":\"a1\"}\n"));
+        assertEquals(2, entries.size());
+        assertTrue(entries.get(0).outbound);
+        assertEquals("{\"janus\":\"create\"}", entries.get(0).message);
+        assertFalse(entries.get(1).outbound);
+        assertEquals("a1", JanusTrace.stringField(entries.get(1).message, "transaction"));
+        assertEquals("", JanusTrace.stringField(entries.get(1).message, "sender"));
+    }
+
+    @Test
+    public void recordedRepliesReachTheLiveTransactions() throws IOException {
+        replay("C->S {\"janus\":\"create\",\"transaction\":\"Xa1\"}\n"
+                + "S->C {\"janus\":\"success\",\"transaction\":\"Xa1\",\"data\":{\"id\":4503599627370495}}\n"
+                + "C->S {\"janus\":\"info\",\"transaction\":\"Xa2\"}\n"
+                + "S->C {\"janus\":\"server_info\",\"transaction\":\"Xa2\",\"session-timeout\":60}\n");
+
+        assertTrue(result.divergences.toString(), result.isClean());
+        assertEquals(2, result.matched);
+        assertEquals(2, result.delivered);
+        // Both requests completed with the recorded replies.
+        List<JanusSignalingMetrics.Summary> summaries = session.getMetrics().snapshot();
+        assertEquals(2, summaries.size());
+        for (JanusSignalingMetrics.Summary summary : summaries) {
+            assertEquals(summary.request, 1, summary.count);
+            assertEquals(summary.request, 0, summary.timeouts + summary.errors);
+        }
+    }
+
+    @Test
+    public void requestNotSentIsADivergence() throws IOException {
+        replay("C->S {\"janus\":\"create\",\"transaction\":\"Xa1\"}\n"
+                + "S->C {\"janus\":\"success\",\"transaction\":\"Xa1\",\"data\":{\"id\":1}}\n"
+                + "C->S {\"janus\":\"attach\",\"transaction\":\"Xa2\"}\n");
+
+        // The attach was never sent, the info request was not recorded.
+        assertEquals(1, result.matched);
+        assertEquals(2, result.divergences.size());
+        assertTrue(result.divergences.get(0).startsWith("#2 not sent"));
+        assertTrue(result.divergences.get(1).startsWith("unexpected request: {\"janus\":\"info\""));
+    }
+
+    private void replay(String trace) throws IOException {
+        new JanusTraceReplayer(executor, session, JanusTrace.parse(new StringReader(trace)))
+                .start(replayed -> result = replayed);
+        for (int i = 0; i < 10000 && result == null; i++) {
+            executor.advance(1);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.util.ManualSerialExecutor;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JanusTransactionSchedulerTest {
+    private ManualSerialExecutor executor;
+    private JanusTransactionScheduler scheduler;
+    private final List<String> sent = new ArrayList<>();
+    private final List<JanusTransaction2> timedOut = new ArrayList<>();
+    private final List<JanusTransaction2> lost = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        executor = new ManualSerialExecutor();
+        scheduler = new JanusTransactionScheduler(executor, sent::add,
+                new JanusTransactionScheduler.FailureListener() {
+                    @Override
+                    public void onTransactionTimeout(JanusTransaction2 transaction) {
+                        timedOut.add(transaction);
+                    }
+
+                    @Override
+                    public void onTransactionLost(JanusTransaction2 transaction) {
+                        lost.add(transaction);
+                    }
+                });
+    }
+
+    private static JanusTransaction2 transaction(boolean retryable) {
+        JanusTransaction2 transaction = new JanusTransaction2();
+        transaction.retryable = retryable;
+        transaction.events = new JanusTransaction2.TransactionEvents() {};
+        return transaction;
+    }
+
+    @Test
+    public void untrackedFrameIsSentRightAway() {
+        scheduler.submit(null, "trickle");
+        assertEquals(1, sent.size());
+        assertEquals(0, executor.pendingCount());
+    }
+
+    @Test
+    public void transactionTimesOutAtItsDeadline() {
+        JanusTransaction2 transaction = transaction(false);
+        scheduler.submit(transaction, "configure");
+
+        executor.advance(JanusCommon.transactionTimeoutMillis - 500);
+        assertTrue(timedOut.isEmpty());
+        executor.advance(1000);
+        assertEquals(1, timedOut.size());
+        assertEquals(1, transaction.attempts);
+        assertEquals(1, sent.size());
+        // Nothing left to tick for.
+        assertEquals(0, executor.pendingCount());
+    }
+
+    @Test
+    public void completedTransactionDoesNotTimeOut() {
+        JanusTransaction2 transaction = transaction(false);
+        scheduler.submit(transaction, "configure");
+        executor.advance(1000);
+        scheduler.complete(transaction);
+
+        executor.advance(JanusCommon.transactionAckTimeoutMillis * 2);
+        assertTrue(timedOut.isEmpty());
+    }
+
+    @Test
+    public void retryableTransactionIsResentUntilRetriesRunOut() {
+        JanusTransaction2 transaction = transaction(true);
+        scheduler.submit(transaction, "attach");
+
+        executor.advance(JanusCommon.transactionTimeoutMillis + JanusCommon.transactionRetryBaseMillis);
+        assertEquals(2, sent.size());
+        assertEquals("attach", sent.get(1));
+        assertTrue(timedOut.isEmpty());
+
+        executor.advance(120000);
+        assertEquals(1 + JanusCommon.maxTransactionRetries, sent.size());
+        assertEquals(1, timedOut.size());
+        assertEquals(1 + JanusCommon.maxTransactionRetries, transaction.attempts);
+    }
+
+    @Test
+    public void ackedTransactionWaitsLongerAndIsNotRetried() {
+        JanusTransaction2 transaction = transaction(true);
+        scheduler.submit(transaction, "join");
+        executor.advance(1000);
+        scheduler.acknowledge(transaction);
+
+        executor.advance(JanusCommon.transactionAckTimeoutMillis - 1000);
+        assertTrue(timedOut.isEmpty());
+        assertEquals(1, sent.size());
+        executor.advance(2000);
+        assertEquals(1, timedOut.size());
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void requestsBeyondInFlightCapAreQueuedInOrder() {
+        List<JanusTransaction2> transactions = new ArrayList<>();
+        for (int i = 0; i < JanusCommon.maxInFlightTransactions + 1; i++) {
+            JanusTransaction2 transaction = transaction(false);
+            transactions.add(transaction);
+            scheduler.submit(transaction, "t" + i);
+        }
+        // Untracked frames keep their place behind queued transactions.
+        scheduler.submit(null, "trickle");
+        assertEquals(JanusCommon.maxInFlightTransactions, sent.size());
+
+        scheduler.complete(transactions.get(0));
+        assertEquals(JanusCommon.maxInFlightTransactions + 2, sent.size());
+        assertEquals("t" + JanusCommon.maxInFlightTransactions, sent.get(sent.size() - 2));
+        assertEquals("trickle", sent.get(sent.size() - 1));
+    }
+
+    @Test
+    public void heldSchedulerQueuesRequestsAndSuspendsDeadlines() {
+        JanusTransaction2 attach = transaction(true);
+        JanusTransaction2 configure = transaction(false);
+        scheduler.submit(attach, "attach");
+        scheduler.submit(configure, "configure");
+        sent.clear();
+
+        scheduler.hold();
+        scheduler.submit(null, "trickle");
+        JanusTransaction2 message = transaction(false);
+        scheduler.submit(message, "message");
+        executor.advance(JanusCommon.transactionAckTimeoutMillis * 2);
+        assertTrue(sent.isEmpty());
+        assertTrue(timedOut.isEmpty());
+
+        // The claim goes out while held.
+        JanusTransaction2 claim = transaction(false);
+        scheduler.submitFirst(claim, "claim");
+        assertEquals(1, sent.size());
+        scheduler.complete(claim);
+        assertEquals(1, sent.size());
+
+        scheduler.resume();
+        assertEquals(1, lost.size());
+        assertEquals(configure, lost.get(0));
+        assertEquals("attach", sent.get(1));
+        assertEquals(2, attach.attempts);
+        assertEquals("trickle", sent.get(2));
+        assertEquals("message", sent.get(3));
+
+        // Deadlines run again after the resume.
+        executor.advance(JanusCommon.transactionTimeoutMillis + 500);
+        assertEquals(1, timedOut.size());
+        assertEquals(message, timedOut.get(0));
+    }
+
+    @Test
+    public void ackedTransactionIsLostInReconnect() {
+        JanusTransaction2 join = transaction(true);
+        scheduler.submit(join, "join");
+        scheduler.acknowledge(join);
+        scheduler.hold();
+        scheduler.resume();
+        assertEquals(1, lost.size());
+        assertEquals(1, sent.size());
+    }
+}
@@ -0,0 +1,202 @@
+package org.appspot.apprtc.janus;
+
+import org.appspot.apprtc.janus.JanusCommon.JanusConnectionParameters;
+import org.appspot.apprtc.util.ManualSerialExecutor;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a recorded videoroom conversation through {@link JanusVideoRoomPlugin}: the
+ * publisher join and its publishers list, one subscriber pipeline per remote feed with
+ * its offer, answer and trickle, a later publishers event, and feeds leaving in different
+ * states of their pipeline.
+ */
+public class JanusVideoRoomPluginTest {
+    // Session 100, room 1234. Our publisher handle is 201; the subscriber handles of feeds
+    // 11, 12, 13 and 14 are 301, 302, 303 and 304.
+    private static final String[] TRACE = {
+            "C->S {'janus':'create','transaction':'T01'}",
+            "S->C {'janus':'success','transaction':'T01','data':{'id':100}}",
+            "C->S {'janus':'info','transaction':'T02'}",
+            "S->C {'janus':'server_info','transaction':'T02','session-timeout':60}",
+            "C->S {'janus':'attach','transaction':'T03','plugin':'janus.plugin.videoroom'}",
+            "S->C {'janus':'success','session_id':100,'transaction':'T03','data':{'id':201}}",
+            // Publisher join, two feeds are already in the room.
+            "C->S {'janus':'message','body':{'request':'join','ptype':'publisher'},'transaction':'T04'}",
+            "S->C {'janus':'ack','session_id':100,'transaction':'T04'}",
+            "S->C {'janus':'event','session_id':100,'transaction':'T04','sender':201,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'joined','room':1234,"
+                    + "'id':9001,'private_id':555,'publishers':[{'id':11,'display':'alice'},"
+                    + "{'id':12,'display':'bob'}]}}}",
+            // Both feeds are attached at once.
+            "C->S {'janus':'attach','transaction':'T05','plugin':'janus.plugin.videoroom'}",
+            "C->S {'janus':'attach','transaction':'T06','plugin':'janus.plugin.videoroom'}",
+            "S->C {'janus':'success','session_id':100,'transaction':'T05','data':{'id':301}}",
+            "S->C {'janus':'success','session_id':100,'transaction':'T06','data':{'id':302}}",
+            "C->S {'janus':'message','body':{'request':'join','ptype':'subscriber','feed':11},'transaction':'T07'}",
+            "C->S {'janus':'message','body':{'request':'join','ptype':'subscriber','feed':12},'transaction':'T08'}",
+            "S->C {'janus':'ack','session_id':100,'transaction':'T07'}",
+            "S->C {'janus':'ack','session_id':100,'transaction':'T08'}",
+            "S->C {'janus':'event','session_id':100,'transaction':'T07','sender':301,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'attached','room':1234,"
+                    + "'id':11,'display':'alice'}},'jsep':{'type':'offer','sdp':'v=0 feed 11'}}",
+            // Answer and local candidate of feed 11.
+            "C->S {'janus':'message','body':{'request':'start'},'transaction':'T09'}",
+            "C->S {'janus':'trickle','transaction':'T10'}",
+            "S->C {'janus':'ack','session_id':100,'transaction':'T10'}",
+            "S->C {'janus':'event','session_id':100,'transaction':'T09','sender':301,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'event','room':1234,"
+                    + "'started':'ok'}}}",
+            "S->C {'janus':'event','session_id':100,'transaction':'T08','sender':302,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'attached','room':1234,"
+                    + "'id':12,'display':'bob'}},'jsep':{'type':'offer','sdp':'v=0 feed 12'}}",
+            "C->S {'janus':'message','body':{'request':'start'},'transaction':'T11'}",
+            "C->S {'janus':'trickle','transaction':'T12'}",
+            "S->C {'janus':'ack','session_id':100,'transaction':'T12'}",
+            "S->C {'janus':'event','session_id':100,'transaction':'T11','sender':302,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'event','room':1234,"
+                    + "'started':'ok'}}}",
+            // A third feed is published later.
+            "S->C {'janus':'event','session_id':100,'sender':201,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'event','room':1234,"
+                    + "'publishers':[{'id':13,'display':'carol'}]}}}",
+            "C->S {'janus':'attach','transaction':'T13','plugin':'janus.plugin.videoroom'}",
+            "S->C {'janus':'success','session_id':100,'transaction':'T13','data':{'id':303}}",
+            "C->S {'janus':'message','body':{'request':'join','ptype':'subscriber','feed':13},'transaction':'T14'}",
+            "S->C {'janus':'ack','session_id':100,'transaction':'T14'}",
+            "S->C {'janus':'event','session_id':100,'transaction':'T14','sender':303,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'attached','room':1234,"
+                    + "'id':13,'display':'carol'}},'jsep':{'type':'offer','sdp':'v=0 feed 13'}}",
+            "C->S {'janus':'message','body':{'request':'start'},'transaction':'T15'}",
+            "C->S {'janus':'trickle','transaction':'T16'}",
+            "S->C {'janus':'ack','session_id':100,'transaction':'T16'}",
+            "S->C {'janus':'event','session_id':100,'transaction':'T15','sender':303,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'event','room':1234,"
+                    + "'started':'ok'}}}",
+            // A feed already subscribed is listed again: nothing is sent.
+            "S->C {'janus':'event','session_id':100,'sender':201,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'event','room':1234,"
+                    + "'publishers':[{'id':13,'display':'carol'}]}}}",
+            // Feed 11 leaves, feed 12 unpublishes.
+            "S->C {'janus':'event','session_id':100,'sender':201,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'event','room':1234,"
+                    + "'leaving':11}}}",
+            "C->S {'janus':'detach','transaction':'T17'}",
+            "S->C {'janus':'success','session_id':100,'transaction':'T17'}",
+            "S->C {'janus':'event','session_id':100,'sender':201,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'event','room':1234,"
+                    + "'unpublished':12}}}",
+            "C->S {'janus':'detach','transaction':'T18'}",
+            "S->C {'janus':'success','session_id':100,'transaction':'T18'}",
+            // Feed 14 leaves while its handle is being attached: detached without a join.
+            "S->C {'janus':'event','session_id':100,'sender':201,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'event','room':1234,"
+                    + "'publishers':[{'id':14,'display':'dave'}]}}}",
+            "C->S {'janus':'attach','transaction':'T19','plugin':'janus.plugin.videoroom'}",
+            "S->C {'janus':'event','session_id':100,'sender':201,'plugindata':"
+                    + "{'plugin':'janus.plugin.videoroom','data':{'videoroom':'event','room':1234,"
+                    + "'leaving':14}}}",
+            "S->C {'janus':'success','session_id':100,'transaction':'T19','data':{'id':304}}",
+            "C->S {'janus':'detach','transaction':'T20'}",
+            "S->C {'janus':'success','session_id':100,'transaction':'T20'}",
+    };
+
+    private final ManualSerialExecutor executor = new ManualSerialExecutor();
+    private final JanusSession session = new JanusSession(executor, new JanusSession.SessionEvents() {
+        @Override
+        public void onSessionClose() {}
+
+        @Override
+        public void onSessionError(String errorMessage) {
+            log.add("sessionError " + errorMessage);
+        }
+    });
+    private final List<String> log = new ArrayList<>();
+    private JanusVideoRoomPlugin plugin;
+    private JanusTraceReplayer.Result result;
+
+    @Test
+    public void replaysJoinsPublishersTricklesAndLeaving() throws IOException {
+        plugin = new JanusVideoRoomPlugin(new Events(), true /* subscribeToPublishers */);
+        plugin.setConnectionParameters(new JanusConnectionParameters("replay://", 1234, "me"));
+        session.addPlugin(plugin);
+
+        StringBuilder trace = new StringBuilder();
+        for (String line : TRACE) {
+            trace.append(line.replace('\'', '"')).append('\n');
+        }
+        new JanusTraceReplayer(executor, session, JanusTrace.parse(new StringReader(trace.toString())))
+                .start(replayed -> result = replayed);
+        for (int i = 0; i < 100000 && result == null; i++) {
+            executor.advance(1);
+        }
+
+        assertTrue(result.divergences.toString(), result.isClean());
+        assertEquals(20, result.matched);
+        assertEquals(Arrays.asList(
+                "publisherJoined 201",
+                "subscriberAttached 301",
+                "subscriberAttached 302",
+                "remoteJsep 301 offer",
+                "remoteJsep 302 offer",
+                "subscriberAttached 303",
+                "remoteJsep 303 offer",
+                "left 301",
+                "left 302",
+                "left 304"), log);
+        for (JanusSignalingMetrics.Summary summary : session.getMetrics().snapshot()) {
+            assertEquals(summary.request, 0, summary.timeouts + summary.errors);
+        }
+    }
+
+    // Plays the application: answers every subscriber offer and trickles a candidate.
+    private class Events implements JanusRTCEvents2 {
+        @Override
+        public void onPublisherJoined(BigInteger handleId) {
+            log.add("publisherJoined " + handleId);
+        }
+
+        @Override
+        public void onSubscriberAttached(BigInteger handleId) {
+            log.add("subscriberAttached " + handleId);
+        }
+
+        @Override
+        public void onRemoteJsep(BigInteger handleId, JSONObject jsep) {
+            log.add("remoteJsep " + handleId + " " + jsep.optString("type"));
+            long id = handleId.longValue();
+            plugin.start(id, new SessionDescription(SessionDescription.Type.ANSWER, "v=0 answer " + id));
+            session.trickle(id, new IceCandidate("0", 0, "candidate:1 1 udp 2122260223 10.0.0.1 5000 typ host"));
+        }
+
+        @Override
+        public void onLeft(BigInteger handleId) {
+            log.add("left " + handleId);
+        }
+
+        @Override
+        public void onNotification(String notificationMessage) {}
+
+        @Override
+        public void onChannelClose() {
+            log.add("channelClose");
+        }
+
+        @Override
+        public void onChannelError(String errorMessage) {
+            log.add("channelError " + errorMessage);
+        }
+    }
+}
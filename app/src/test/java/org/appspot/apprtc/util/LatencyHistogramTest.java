@@ -0,0 +1,76 @@
+package org.appspot.apprtc.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+  @Test
+  public void emptyHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(0, histogram.getMean());
+    assertEquals(0, histogram.getCount());
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int value = 1; value <= 10; value++) {
+      histogram.record(value);
+    }
+    assertEquals(1, histogram.getPercentile(0));
+    assertEquals(5, histogram.getPercentile(50));
+    assertEquals(9, histogram.getPercentile(90));
+    assertEquals(10, histogram.getPercentile(100));
+    assertEquals(5, histogram.getMean());
+  }
+
+  @Test
+  public void percentilesOfLargerValuesAreBucketBounds() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int value = 1; value <= 100; value++) {
+      histogram.record(value);
+    }
+    // 50 falls in [48, 51], 90 in [88, 95]; 99 in [96, 103], capped at the max.
+    assertEquals(51, histogram.getPercentile(50));
+    assertEquals(95, histogram.getPercentile(90));
+    assertEquals(100, histogram.getPercentile(99));
+    assertEquals(100, histogram.getMax());
+    assertEquals(100, histogram.getCount());
+  }
+
+  @Test
+  public void percentileIsWithinAnEighthOfTheValue() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 16; value < 1L << 32; value = value * 3 / 2 + 1) {
+      histogram.reset();
+      histogram.record(value);
+      histogram.record(Long.MAX_VALUE);
+      long percentile = histogram.getPercentile(50);
+      assertTrue(value + " -> " + percentile, percentile >= value && percentile <= value + value / 8);
+    }
+  }
+
+  @Test
+  public void valuesAreClamped() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    assertEquals(0, histogram.getPercentile(100));
+    histogram.record(1L << 40);
+    assertEquals((1L << 32) - 1, histogram.getMax());
+    assertEquals((1L << 32) - 1, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void resetForgetsEverything() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1000);
+    histogram.reset();
+    histogram.record(3);
+    assertEquals(3, histogram.getPercentile(100));
+    assertEquals(3, histogram.getMax());
+    assertEquals(1, histogram.getCount());
+  }
+}
@@ -0,0 +1,114 @@
+package org.appspot.apprtc.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LongHashMapTest {
+  @Test
+  public void putGetAndReplace() {
+    LongHashMap<String> map = new LongHashMap<>();
+    assertNull(map.put(4503599627370495L, "a"));
+    assertEquals("a", map.put(4503599627370495L, "b"));
+    assertEquals("b", map.get(4503599627370495L));
+    assertNull(map.get(1));
+    assertEquals(1, map.size());
+  }
+
+  @Test
+  public void removeKeepsCollidingKeysReachable() {
+    // Many keys at a 3/4 load factor put long probe sequences through the table, removing
+    // them one by one shifts every kind of run back, wrapping around the end included.
+    for (int capacity : new int[] {8, 64, 1024}) {
+      LongHashMap<Long> map = new LongHashMap<>(capacity);
+      List<Long> keys = new ArrayList<>();
+      for (long key = 1; keys.size() < capacity * 3 / 4 - 1; key++) {
+        keys.add(key * 1000003);
+      }
+      for (long key : keys) {
+        map.put(key, key);
+      }
+      Collections.shuffle(keys, new Random(capacity));
+      for (int i = 0; i < keys.size(); i++) {
+        assertEquals(keys.get(i), map.remove(keys.get(i)));
+        assertNull(map.remove(keys.get(i)));
+        assertEquals(keys.size() - i - 1, map.size());
+        for (int j = i + 1; j < keys.size(); j++) {
+          assertEquals(keys.get(j), map.get(keys.get(j)));
+        }
+      }
+      assertTrue(map.isEmpty());
+    }
+  }
+
+  @Test
+  public void matchesHashMapUnderRandomOperations() {
+    Random random = new Random(42);
+    LongHashMap<Integer> map = new LongHashMap<>();
+    Map<Long, Integer> reference = new HashMap<>();
+    for (int i = 0; i < 100000; i++) {
+      // A small key range keeps the map full of hits, misses and collisions.
+      long key = random.nextInt(512) * 0x100000001L;
+      if (random.nextInt(3) == 0) {
+        assertEquals(reference.remove(key), map.remove(key));
+      } else {
+        assertEquals(reference.put(key, i), map.put(key, i));
+      }
+      assertEquals(reference.size(), map.size());
+    }
+    for (Map.Entry<Long, Integer> entry : reference.entrySet()) {
+      assertEquals(entry.getValue(), map.get(entry.getKey()));
+    }
+  }
+
+  @Test
+  public void keysAndValuesAfterResizeAndRemoval() {
+    LongHashMap<String> map = new LongHashMap<>();
+    for (long key = 0; key < 100; key++) {
+      map.put(key, "v" + key);
+    }
+    for (long key = 0; key < 100; key += 2) {
+      map.remove(key);
+    }
+
+    long[] keys = map.keys();
+    Arrays.sort(keys);
+    assertEquals(50, keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(2 * i + 1, keys[i]);
+    }
+    HashSet<String> values = new HashSet<>();
+    for (String value : map.values()) {
+      values.add(value);
+    }
+    assertEquals(50, values.size());
+    assertTrue(values.contains("v99"));
+    assertFalse(values.contains("v98"));
+  }
+
+  @Test
+  public void clear() {
+    LongHashMap<String> map = new LongHashMap<>();
+    map.put(1, "a");
+    map.put(2, "b");
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertFalse(map.containsKey(1));
+    assertEquals(0, map.keys().length);
+    assertFalse(map.values().iterator().hasNext());
+    map.put(1, "c");
+    assertEquals("c", map.get(1));
+  }
+}
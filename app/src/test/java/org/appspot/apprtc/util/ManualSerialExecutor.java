@@ -0,0 +1,92 @@
+package org.appspot.apprtc.util;
+
+import java.util.PriorityQueue;
+
+/**
+ * {@link SerialExecutor} for tests: nothing runs until the test calls {@link #runPending()}
+ * or {@link #advance(long)}, which run the due tasks in order on the calling thread and
+ * move a virtual clock.
+ *
+ * <p>The thread that created the executor counts as the executor thread, so code that checks
+ * {@link #isCurrent()} can be called from the test directly.
+ */
+public class ManualSerialExecutor implements SerialExecutor {
+  private static class Task implements Comparable<Task> {
+    final Runnable runnable;
+    final long dueMs;
+    final long sequence;
+
+    Task(Runnable runnable, long dueMs, long sequence) {
+      this.runnable = runnable;
+      this.dueMs = dueMs;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      if (dueMs != other.dueMs) {
+        return dueMs < other.dueMs ? -1 : 1;
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+
+  private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+  private final Thread owner = Thread.currentThread();
+  private long nowMs;
+  private long sequence;
+  private boolean shutdown;
+
+  @Override
+  public void execute(Runnable task) {
+    executeDelayed(task, 0);
+  }
+
+  @Override
+  public void executeDelayed(Runnable task, long delayMillis) {
+    if (!shutdown) {
+      tasks.add(new Task(task, nowMs + delayMillis, sequence++));
+    }
+  }
+
+  @Override
+  public void remove(Runnable task) {
+    tasks.removeIf(pending -> pending.runnable == task);
+  }
+
+  @Override
+  public boolean isCurrent() {
+    return Thread.currentThread() == owner;
+  }
+
+  @Override
+  public long now() {
+    return nowMs;
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+    tasks.clear();
+  }
+
+  // Runs the tasks due now, including the ones they post for now.
+  public void runPending() {
+    advance(0);
+  }
+
+  // Moves the clock |millis| forward, running every task that falls due on the way.
+  public void advance(long millis) {
+    long targetMs = nowMs + millis;
+    while (!tasks.isEmpty() && tasks.peek().dueMs <= targetMs) {
+      Task task = tasks.poll();
+      nowMs = Math.max(nowMs, task.dueMs);
+      task.runnable.run();
+    }
+    nowMs = targetMs;
+  }
+
+  public int pendingCount() {
+    return tasks.size();
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2018 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import org.webrtc.Logging.Severity;
+
+/**
+ * Bounded multi-producer, single-consumer queue of log messages, drained to
+ * Logging.deliver() by a background thread.
+ *
+ * Producers claim a slot with a CAS on the tail and publish it by advancing the slot's sequence
+ * number, so logging threads never block on each other or on the consumer. Messages are
+ * formatted on the drain thread. When the buffer is full offer() fails and the caller logs
+ * synchronously instead.
+ */
+class LogRingBuffer {
+  private static final String THREAD_NAME = "WebRtcLogDrain";
+
+  private final int mask;
+  // Sequence number of each slot: equal to the position when the slot is free for that position,
+  // position + 1 once the message at that position is published.
+  private final AtomicLongArray sequences;
+  private final Severity[] severities;
+  private final String[] tags;
+  // A preformatted message, a format string or a Logging.MessageSupplier.
+  private final Object[] messages;
+  private final Object[][] args;
+  private final AtomicLong tail = new AtomicLong();
+  // Only touched by the drain thread.
+  private long head;
+
+  private final Thread drainThread;
+  private final AtomicBoolean drainWaiting = new AtomicBoolean();
+
+  // |capacity| is rounded up to a power of two.
+  LogRingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    mask = size - 1;
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+    severities = new Severity[size];
+    tags = new String[size];
+    messages = new Object[size];
+    args = new Object[size][];
+
+    drainThread = new Thread(this::drain, THREAD_NAME);
+    drainThread.setDaemon(true);
+    drainThread.start();
+  }
+
+  // Returns false if the buffer is full.
+  boolean offer(Severity severity, String tag, Object message, Object[] messageArgs) {
+    long position = tail.get();
+    while (true) {
+      int index = (int) position & mask;
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          severities[index] = severity;
+          tags[index] = tag;
+          messages[index] = message;
+          args[index] = messageArgs;
+          // Publishes the slot, the plain writes above happen-before the consumer's read.
+          sequences.set(index, position + 1);
+          break;
+        }
+        position = tail.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        position = tail.get();
+      }
+    }
+
+    if (drainWaiting.compareAndSet(true, false)) {
+      LockSupport.unpark(drainThread);
+    }
+    return true;
+  }
+
+  private void drain() {
+    while (true) {
+      if (!poll()) {
+        drainWaiting.set(true);
+        // A producer may have published between the failed poll and the flag.
+        if (!poll()) {
+          LockSupport.park(this);
+        }
+        drainWaiting.set(false);
+      }
+    }
+  }
+
+  private boolean poll() {
+    int index = (int) head & mask;
+    if (sequences.get(index) != head + 1) {
+      return false;
+    }
+    Severity severity = severities[index];
+    String tag = tags[index];
+    Object message = messages[index];
+    Object[] messageArgs = args[index];
+    tags[index] = null;
+    messages[index] = null;
+    args[index] = null;
+    sequences.set(index, head + mask + 1);
+    head++;
+
+    try {
+      Logging.deliver(severity, tag, format(message, messageArgs));
+    } catch (Throwable e) {
+      // A bad format string, supplier or Loggable must not stop the drain thread, or the
+      // buffer fills up for good.
+      Logging.reportDropped(tag, e);
+    }
+    return true;
+  }
+
+  static String format(Object message, Object[] messageArgs) {
+    if (message instanceof Logging.MessageSupplier) {
+      return ((Logging.MessageSupplier) message).get();
+    }
+    if (messageArgs != null) {
+      return String.format(Locale.US, (String) message, messageArgs);
+    }
+    return (String) message;
+  }
+}
@@ -38,12 +38,26 @@ import org.webrtc.Loggable;
  *
  * Injecting a Loggable or using any of the enable... methods requires that the native library is
  * loaded, using PeerConnectionFactory.initialize.
+ *
+ * Messages that are expensive to build should be passed as a format string and arguments, or as
+ * a MessageSupplier: they are only built once isLoggable() passed. Hot paths can check
+ * isLoggable() themselves. With enableAsyncLogging() messages are handed to a lock-free ring
+ * buffer and formatted and written on a background thread.
  */
 public class Logging {
   private static final Logger fallbackLogger = createFallbackLogger();
   private static volatile boolean loggingEnabled;
-  @Nullable private static Loggable loggable;
-  private static Severity loggableSeverity;
+  // Read on every log call from any thread, e.g. encoder and decoder threads.
+  @Nullable private static volatile Loggable loggable;
+  private static volatile Severity loggableSeverity;
+  private static volatile Severity nativeSeverity = Severity.LS_NONE;
+  @Nullable private static volatile LogRingBuffer asyncBuffer;
+
+  /**
+   * Builds a log message, only called if the message is logged. With async logging it is called
+   * on the drain thread, so it should only read values it captured.
+   */
+  public interface MessageSupplier { String get(); }
 
   private static Logger createFallbackLogger() {
     final Logger fallbackLogger = Logger.getLogger("org.webrtc.Logging");
@@ -53,8 +67,9 @@ public class Logging {
 
   static void injectLoggable(Loggable injectedLoggable, Severity severity) {
     if (injectedLoggable != null) {
-      loggable = injectedLoggable;
+      // Severity first: a reader that sees the loggable also sees its severity.
       loggableSeverity = severity;
+      loggable = injectedLoggable;
     }
   }
 
@@ -114,19 +129,74 @@ public class Logging {
           + "Delete the Loggable before calling this method.");
     }
     nativeEnableLogToDebugOutput(severity.ordinal());
+    nativeSeverity = severity;
     loggingEnabled = true;
   }
 
+  // Hands messages to a ring buffer of |capacity| entries drained on a background thread, instead
+  // of writing them on the calling thread. Messages are only written synchronously while the buffer
+  // is full. Cannot be turned off again.
+  @SuppressWarnings("NoSynchronizedMethodCheck")
+  public static synchronized void enableAsyncLogging(int capacity) {
+    if (asyncBuffer == null) {
+      asyncBuffer = new LogRingBuffer(capacity);
+    }
+  }
+
+  // Whether a message of |severity| would be written. Cheap enough for per-frame checks.
+  public static boolean isLoggable(Severity severity) {
+    if (loggable != null) {
+      return severity.ordinal() >= loggableSeverity.ordinal();
+    }
+    if (loggingEnabled) {
+      return severity.ordinal() >= nativeSeverity.ordinal();
+    }
+    return fallbackLogger.isLoggable(toLevel(severity));
+  }
+
   public static void log(Severity severity, String tag, String message) {
     if (tag == null || message == null) {
       throw new IllegalArgumentException("Logging tag or message may not be null.");
     }
-    if (loggable != null) {
+    enqueue(severity, tag, message, null);
+  }
+
+  // |format| is a java.util.Formatter format string, formatted only if the message is logged.
+  public static void log(Severity severity, String tag, String format, Object... args) {
+    if (tag == null || format == null) {
+      throw new IllegalArgumentException("Logging tag or message may not be null.");
+    }
+    enqueue(severity, tag, format, args);
+  }
+
+  public static void log(Severity severity, String tag, MessageSupplier supplier) {
+    if (tag == null || supplier == null) {
+      throw new IllegalArgumentException("Logging tag or message may not be null.");
+    }
+    enqueue(severity, tag, supplier, null);
+  }
+
+  // |message| is a String, or a format string if |args| is set, or a MessageSupplier.
+  private static void enqueue(Severity severity, String tag, Object message, Object[] args) {
+    if (!isLoggable(severity)) {
+      return;
+    }
+    LogRingBuffer buffer = asyncBuffer;
+    if (buffer != null && buffer.offer(severity, tag, message, args)) {
+      return;
+    }
+    deliver(severity, tag, LogRingBuffer.format(message, args));
+  }
+
+  // Writes a message that passed the severity check.
+  static void deliver(Severity severity, String tag, String message) {
+    Loggable currentLoggable = loggable;
+    if (currentLoggable != null) {
       // Filter log messages below loggableSeverity.
       if (severity.ordinal() < loggableSeverity.ordinal()) {
         return;
       }
-      loggable.onLogMessage(message, severity, tag);
+      currentLoggable.onLogMessage(message, severity, tag);
       return;
     }
 
@@ -137,28 +207,35 @@ public class Logging {
     }
 
     // Fallback to system log.
-    Level level;
+    fallbackLogger.log(toLevel(severity), tag + ": " + message);
+  }
+
+  // A message of |tag| could not be formatted or written on the drain thread.
+  static void reportDropped(String tag, Throwable error) {
+    fallbackLogger.log(Level.SEVERE, "Dropped a log message of " + tag, error);
+  }
+
+  private static Level toLevel(Severity severity) {
     switch (severity) {
       case LS_ERROR:
-        level = Level.SEVERE;
-        break;
+        return Level.SEVERE;
       case LS_WARNING:
-        level = Level.WARNING;
-        break;
+        return Level.WARNING;
       case LS_INFO:
-        level = Level.INFO;
-        break;
+        return Level.INFO;
       default:
-        level = Level.FINE;
-        break;
+        return Level.FINE;
     }
-    fallbackLogger.log(level, tag + ": " + message);
   }
 
   public static void d(String tag, String message) {
     log(Severity.LS_INFO, tag, message);
   }
 
+  public static void d(String tag, String format, Object... args) {
+    log(Severity.LS_INFO, tag, format, args);
+  }
+
   public static void e(String tag, String message) {
     log(Severity.LS_ERROR, tag, message);
   }
@@ -183,6 +260,10 @@ public class Logging {
     log(Severity.LS_VERBOSE, tag, message);
   }
 
+  public static void v(String tag, String format, Object... args) {
+    log(Severity.LS_VERBOSE, tag, format, args);
+  }
+
   private static String getStackTraceString(Throwable e) {
     if (e == null) {
       return "";
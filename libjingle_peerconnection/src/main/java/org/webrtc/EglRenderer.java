@@ -656,8 +656,12 @@ public class EglRenderer implements VideoSink {
   }
 
   private void logStatistics() {
-    final DecimalFormat fpsFormat = new DecimalFormat("#.0");
     final long currentTimeNs = System.nanoTime();
+    if (!Logging.isLoggable(Logging.Severity.LS_INFO)) {
+      resetStatistics(currentTimeNs);
+      return;
+    }
+    final DecimalFormat fpsFormat = new DecimalFormat("#.0");
     synchronized (statisticsLock) {
       final long elapsedTimeNs = currentTimeNs - statisticsStartTimeNs;
       if (elapsedTimeNs <= 0) {
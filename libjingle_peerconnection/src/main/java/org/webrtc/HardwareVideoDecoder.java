@@ -386,7 +386,9 @@ class HardwareVideoDecoder implements VideoDecoder, VideoSink {
       }
 
       if (result < 0) {
-        Logging.v(TAG, "dequeueOutputBuffer returned " + result);
+        if (Logging.isLoggable(Logging.Severity.LS_VERBOSE)) {
+          Logging.v(TAG, "dequeueOutputBuffer returned %d", result);
+        }
         return;
       }
 
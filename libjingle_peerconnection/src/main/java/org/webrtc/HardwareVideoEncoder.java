@@ -514,9 +514,11 @@ class HardwareVideoEncoder implements VideoEncoder {
 
         final ByteBuffer frameBuffer;
         if (isKeyFrame && codecType == VideoCodecType.H264) {
-          Logging.d(TAG,
-              "Prepending config frame of size " + configBuffer.capacity()
-                  + " to output buffer with offset " + info.offset + ", size " + info.size);
+          if (Logging.isLoggable(Logging.Severity.LS_INFO)) {
+            Logging.d(TAG,
+                "Prepending config frame of size %d to output buffer with offset %d, size %d",
+                configBuffer.capacity(), info.offset, info.size);
+          }
           // For H.264 key frame prepend SPS and PPS NALs at the start.
           frameBuffer = ByteBuffer.allocateDirect(info.size + configBuffer.capacity());
           configBuffer.rewind();
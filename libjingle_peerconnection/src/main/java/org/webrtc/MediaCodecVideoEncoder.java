@@ -879,16 +879,15 @@ public class MediaCodecVideoEncoder {
     // Adjust actual encoder bitrate based on bitrate adjustment type.
     if (bitrateAdjustmentType == BitrateAdjustmentType.FRAMERATE_ADJUSTMENT && targetFps > 0) {
       codecBitrateBps = BITRATE_ADJUSTMENT_FPS * targetBitrateBps / targetFps;
-      Logging.v(TAG,
-          "setRates: " + kbps + " -> " + (codecBitrateBps / 1000) + " kbps. Fps: " + targetFps);
+      Logging.v(TAG, "setRates: %d -> %d kbps. Fps: %d", kbps, codecBitrateBps / 1000, targetFps);
     } else if (bitrateAdjustmentType == BitrateAdjustmentType.DYNAMIC_ADJUSTMENT) {
-      Logging.v(TAG, "setRates: " + kbps + " kbps. Fps: " + targetFps + ". ExpScale: "
-              + bitrateAdjustmentScaleExp);
+      Logging.v(TAG, "setRates: %d kbps. Fps: %d. ExpScale: %d", kbps, targetFps,
+          bitrateAdjustmentScaleExp);
       if (bitrateAdjustmentScaleExp != 0) {
         codecBitrateBps = (int) (codecBitrateBps * getBitrateScale(bitrateAdjustmentScaleExp));
       }
     } else {
-      Logging.v(TAG, "setRates: " + kbps + " kbps. Fps: " + targetFps);
+      Logging.v(TAG, "setRates: %d kbps. Fps: %d", kbps, targetFps);
     }
 
     try {
@@ -996,8 +995,11 @@ public class MediaCodecVideoEncoder {
           Logging.d(TAG, "Sync frame generated");
         }
         if (isKeyFrame && type == VideoCodecType.VIDEO_CODEC_H264) {
-          Logging.d(TAG, "Appending config frame of size " + configData.capacity()
-                  + " to output buffer with offset " + info.offset + ", size " + info.size);
+          if (Logging.isLoggable(Logging.Severity.LS_INFO)) {
+            Logging.d(TAG,
+                "Appending config frame of size %d to output buffer with offset %d, size %d",
+                configData.capacity(), info.offset, info.size);
+          }
           // For H.264 key frame append SPS and PPS NALs at the start
           ByteBuffer keyFrameBuffer = ByteBuffer.allocateDirect(configData.capacity() + info.size);
           configData.rewind();
@@ -1048,8 +1050,8 @@ public class MediaCodecVideoEncoder {
     // Do bitrate adjustment every 3 seconds if actual encoder bitrate deviates too much
     // form the target value.
     if (bitrateObservationTimeMs > 1000 * BITRATE_CORRECTION_SEC) {
-      Logging.d(TAG, "Acc: " + (int) bitrateAccumulator + ". Max: " + (int) bitrateAccumulatorMax
-              + ". ExpScale: " + bitrateAdjustmentScaleExp);
+      Logging.d(TAG, "Acc: %d. Max: %d. ExpScale: %d", (int) bitrateAccumulator,
+          (int) bitrateAccumulatorMax, bitrateAdjustmentScaleExp);
       boolean bitrateAdjustmentScaleChanged = false;
       if (bitrateAccumulator > bitrateAccumulatorMax) {
         // Encoder generates too high bitrate - need to reduce the scale.